@@ -0,0 +1,47 @@
+package com.example.demo.util;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Fixtures for the benchmarks. Synthetic images are seeded so every run measures the same pixels;
+ * 'photo' loads a real image from disk (pass -p photo=/path/to/image.jpg) and scales it to the requested size.
+ */
+final class BenchmarkImages {
+
+    private BenchmarkImages() {
+    }
+
+    static BufferedImage create(String kind, int width, int height, int type, long seed) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Graphics2D graphics = image.createGraphics();
+        switch (kind) {
+            case "noise":
+                Random random = new Random(seed);
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        image.setRGB(x, y, random.nextInt());
+                    }
+                }
+                break;
+            case "gradient":
+                graphics.setPaint(new GradientPaint(0, 0, new Color((int) seed), width, height, Color.WHITE));
+                graphics.fillRect(0, 0, width, height);
+                break;
+            default:
+                BufferedImage photo = ImageIO.read(new File(kind));
+                if (photo == null) {
+                    throw new IOException("Can't decode fixture " + kind);
+                }
+                graphics.drawImage(photo, 0, 0, width, height, null);
+        }
+        graphics.dispose();
+        return image;
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.demo.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The stages of the compose pipeline leading up to matching, at several model sizes and fragment sizes.
+ * The source is always twice the model's size so transformSource has real scaling to do. normalizeImage is fed
+ * an image at least twice the 720px cap whatever the model size, as anything under the cap is returned untouched.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ComposeBenchmark {
+
+    //smallest input that normalizeImage actually has to scale down by half or more
+    private static final int OVERSIZED_MIN_WIDTH = 1440;
+
+    @Param({"180", "360", "720"})
+    int size;
+
+    @Param({"3", "6"})
+    int frag;
+
+    /** noise, gradient, or a path to a real photo */
+    @Param({"noise", "gradient"})
+    String photo;
+
+    private BufferedImage model;
+    private BufferedImage source;
+    private BufferedImage oversized;
+
+    @Setup
+    public void setup() throws IOException {
+        model = BenchmarkImages.create(photo, size, size, BufferedImage.TYPE_INT_RGB, 17);
+        source = BenchmarkImages.create(photo, size * 2, size * 2, BufferedImage.TYPE_3BYTE_BGR, 23);
+        int oversizedWidth = Math.max(size * 4, OVERSIZED_MIN_WIDTH);
+        oversized = BenchmarkImages.create(photo, oversizedWidth, oversizedWidth * 3 / 4, BufferedImage.TYPE_3BYTE_BGR,
+                29);
+    }
+
+    @Benchmark
+    public ArrayList<ArrayList<BufferedImage>> breakdownImage() {
+        return ImageUtils.breakdownImage(model, frag, frag);
+    }
+
+    @Benchmark
+    public SourceFragments sourceFragments() {
+        return SourceFragments.breakdown(model, frag, frag);
+    }
+
+    @Benchmark
+    public BufferedImage transformSource() {
+        return ImageUtils.transformSource(source, model);
+    }
+
+    @Benchmark
+    public BufferedImage normalizeImage() {
+        return ImageUtils.normalizeImage(oversized);
+    }
+}
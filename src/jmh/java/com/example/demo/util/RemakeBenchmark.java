@@ -0,0 +1,83 @@
+package com.example.demo.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole composes, cold (decoded source in hand) and with the source already broken down as the fragment cache
+ * provides it, single-threaded and on the parallel composer, plus coarse-to-fine pyramid matching and
+ * time-budgeted assignment matching
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RemakeBenchmark {
+
+    @Param({"180", "360", "720"})
+    int size;
+
+    @Param({"3", "6"})
+    int frag;
+
+    /** noise, gradient, or a path to a real photo */
+    @Param({"noise", "gradient"})
+    String photo;
+
+    @Param({"1", "4"})
+    int parallelism;
+
+    private BufferedImage model;
+    private BufferedImage source;
+    private SourceFragments fragments;
+
+    @Setup
+    public void setup() throws IOException {
+        model = BenchmarkImages.create(photo, size, size, BufferedImage.TYPE_INT_RGB, 17);
+        source = BenchmarkImages.create(photo, size * 2, size * 2, BufferedImage.TYPE_3BYTE_BGR, 23);
+        fragments = SourceFragments.breakdown(ImageUtils.transformSource(source, model), frag, frag);
+    }
+
+    @Benchmark
+    public BufferedImage remakeImage() {
+        return ImageUtils.remakeImage(source, model, frag, frag, new ComposeOptions().setParallelism(parallelism));
+    }
+
+    /** remakeImage with the source already broken down, i.e. a warm fragment cache */
+    @Benchmark
+    public BufferedImage remakeImagePrepared() {
+        return ImageUtils.remakeImage(fragments, model, new ComposeOptions().setParallelism(parallelism));
+    }
+
+    /** remakeImagePrepared matching through a two level pyramid; always single-threaded */
+    @Benchmark
+    public BufferedImage remakeImagePyramid() {
+        return ImageUtils.remakeImage(fragments, model, new ComposeOptions()
+                .setMatchMode(ComposeOptions.MatchMode.PYRAMID)
+                .setPyramidDepth(2));
+    }
+
+    /** remakeImagePrepared improving the greedy match by trading fragments for up to 500ms */
+    @Benchmark
+    public BufferedImage remakeImageAssignment() {
+        return ImageUtils.remakeImage(fragments, model, new ComposeOptions()
+                .setParallelism(parallelism)
+                .setMatchMode(ComposeOptions.MatchMode.ASSIGNMENT)
+                .setAssignmentBudgetMillis(500));
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.demo.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scaling a 24MP photo down to the in-memory compose size, as normalizeImage does, with each scaling method
+ * and the raster types decoders typically hand us
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ResampleBenchmark {
+
+    @Param({"RESAMPLE", "THUMBNAILATOR", "DRAW_IMAGE"})
+    Resampler.Method method;
+
+    /** TYPE_3BYTE_BGR (JPEG decodes) or TYPE_INT_RGB */
+    @Param({"5", "1"})
+    int type;
+
+    /** noise, gradient, or a path to a real photo */
+    @Param({"noise", "gradient"})
+    String photo;
+
+    private BufferedImage image;
+
+    @Setup
+    public void setup() throws IOException {
+        image = BenchmarkImages.create(photo, 6000, 4000, type, 31);
+    }
+
+    @Benchmark
+    public BufferedImage normalizeImage() {
+        return ImageUtils.normalizeImage(image, method);
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.demo.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of comparing a single pair of fragments, on packed TYPE_INT_RGB rasters and on the getRGB fallback
+ * used for other image types
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SimilarityBenchmark {
+
+    @Param({"3", "8", "16"})
+    int frag;
+
+    @Param({"INT_RGB", "3BYTE_BGR"})
+    String type;
+
+    private BufferedImage src;
+    private BufferedImage tar;
+
+    @Setup
+    public void setup() throws IOException {
+        int imageType = "INT_RGB".equals(type) ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_3BYTE_BGR;
+        src = BenchmarkImages.create("noise", 64, 64, imageType, 1).getSubimage(5, 7, frag, frag);
+        tar = BenchmarkImages.create("noise", 64, 64, imageType, 2).getSubimage(11, 3, frag, frag);
+    }
+
+    @Benchmark
+    public int getSimilarityScore() {
+        return ImageUtils.getSimilarityScore(src, tar);
+    }
+}
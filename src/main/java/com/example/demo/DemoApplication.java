@@ -1,13 +1,19 @@
 package com.example.demo;
 
+import com.example.demo.property.ComposeProperties;
+import com.example.demo.property.EncodeProperties;
 import com.example.demo.property.FileStorageProperties;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 @EnableConfigurationProperties({
-		FileStorageProperties.class
+		FileStorageProperties.class,
+		ComposeProperties.class,
+		EncodeProperties.class
 })
 public class DemoApplication {
 
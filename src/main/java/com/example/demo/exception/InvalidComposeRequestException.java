@@ -0,0 +1,15 @@
+package com.example.demo.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+public class InvalidComposeRequestException extends RuntimeException {
+    public InvalidComposeRequestException(String message) {
+        super(message);
+    }
+
+    public InvalidComposeRequestException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
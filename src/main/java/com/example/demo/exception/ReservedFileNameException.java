@@ -0,0 +1,11 @@
+package com.example.demo.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+public class ReservedFileNameException extends FileStorageException {
+    public ReservedFileNameException(String message) {
+        super(message);
+    }
+}
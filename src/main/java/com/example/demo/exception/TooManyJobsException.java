@@ -0,0 +1,15 @@
+package com.example.demo.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.TOO_MANY_REQUESTS)
+public class TooManyJobsException extends RuntimeException {
+    public TooManyJobsException(String message) {
+        super(message);
+    }
+
+    public TooManyJobsException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
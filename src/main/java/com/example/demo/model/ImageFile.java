@@ -9,13 +9,21 @@ import lombok.RequiredArgsConstructor;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.PrePersist;
 import javax.persistence.Table;
 
 @Data
 @NoArgsConstructor
 @RequiredArgsConstructor
 @Entity
-@Table(name= "imageFiles")
+@Table(name= "imageFiles", indexes = {
+        @Index(columnList = "name", unique = true),
+        @Index(columnList = "contentHash"),
+        @Index(columnList = "createdAt, id"),
+        @Index(columnList = "previewOf"),
+        @Index(columnList = "composeKey")
+})
 public class ImageFile {
 
     @Id
@@ -25,5 +33,22 @@ public class ImageFile {
     private String name;
     @NonNull
     private String downloadUri;
+    //SHA-256 of the bytes, i.e. which blob in the content-addressed store this name points at
+    private String contentHash;
+    private Long fileSize;
+    private String contentType;
+    //epoch millis, kept as a plain number so list cursors compare exactly
+    private Long createdAt;
+    //set on generated previews: the name of the file this is a smaller copy of, and its longest side
+    private String previewOf;
+    private Integer previewSize;
+    //set on compose results: the inputs and settings that produced these bytes, see ComposeService
+    private String composeKey;
 
+    @PrePersist
+    void onCreate() {
+        if (createdAt == null) {
+            createdAt = System.currentTimeMillis();
+        }
+    }
 }
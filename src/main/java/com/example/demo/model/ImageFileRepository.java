@@ -1,7 +1,41 @@
 package com.example.demo.model;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.List;
 
 public interface ImageFileRepository extends JpaRepository<ImageFile, Long> {
     ImageFile findByName(String name);
+
+    long countByContentHash(String contentHash);
+
+    List<ImageFile> findByPreviewOf(String previewOf);
+
+    ImageFile findFirstByComposeKey(String composeKey);
+
+    /**
+     * Keyset page by name: everything after the last name of the previous page. Previews aren't listed.
+     */
+    List<ImageFileSummary> findByPreviewOfIsNullAndNameGreaterThanOrderByNameAsc(String name, Pageable pageable);
+
+    List<ImageFileSummary> findByPreviewOfIsNullOrderByCreatedAtDescIdDesc(Pageable pageable);
+
+    /**
+     * Keyset page by newest first; (createdAt, id) of the previous page's last row is the cursor
+     */
+    @Query("select f.id as id, f.name as name, f.downloadUri as downloadUri, f.fileSize as fileSize, " +
+            "f.contentType as contentType, f.createdAt as createdAt from ImageFile f " +
+            "where f.previewOf is null " +
+            "and (f.createdAt < :createdAt or (f.createdAt = :createdAt and f.id < :id)) " +
+            "order by f.createdAt desc, f.id desc")
+    List<ImageFileSummary> findCreatedBefore(@Param("createdAt") Long createdAt, @Param("id") Long id,
+                                             Pageable pageable);
+
+    List<ImageFile> findByIdGreaterThanOrderByIdAsc(Long id, Pageable pageable);
+
+    @Query("select f.name from ImageFile f")
+    List<String> findAllNames();
 }
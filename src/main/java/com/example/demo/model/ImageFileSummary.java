@@ -0,0 +1,18 @@
+package com.example.demo.model;
+
+/**
+ * Just the columns /list needs, so listing doesn't load whole entities
+ */
+public interface ImageFileSummary {
+    Long getId();
+
+    String getName();
+
+    String getDownloadUri();
+
+    Long getFileSize();
+
+    String getContentType();
+
+    Long getCreatedAt();
+}
@@ -0,0 +1,24 @@
+package com.example.demo.payload;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class CacheStatsResponse {
+    private long hits;
+    private long misses;
+    private long evictions;
+    private int entries;
+    private long currentBytes;
+    private long maxBytes;
+
+    public CacheStatsResponse(long hits, long misses, long evictions, int entries, long currentBytes, long maxBytes) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.entries = entries;
+        this.currentBytes = currentBytes;
+        this.maxBytes = maxBytes;
+    }
+}
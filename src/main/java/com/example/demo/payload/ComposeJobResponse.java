@@ -0,0 +1,29 @@
+package com.example.demo.payload;
+
+import com.example.demo.service.ComposeJob;
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class ComposeJobResponse {
+    private String jobId;
+    private String status;
+    private int progress;
+    private int completedFragments;
+    private int totalFragments;
+    private String fileName;
+    private String fileDownloadUri;
+    private String errorMessage;
+
+    public ComposeJobResponse(ComposeJob job) {
+        this.jobId = job.getId();
+        this.status = job.getStatus().name();
+        this.progress = job.getProgress();
+        this.completedFragments = job.getMonitor().getCompleted();
+        this.totalFragments = job.getMonitor().getTotal();
+        this.fileName = job.getFileName();
+        this.fileDownloadUri = job.getFileDownloadUri();
+        this.errorMessage = job.getErrorMessage();
+    }
+}
@@ -0,0 +1,25 @@
+package com.example.demo.payload;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * A finished strip of a compose's result, as an image to draw at x, y over the ones sent before
+ */
+@Getter
+@Setter
+public class ComposeStripResponse {
+    private int x;
+    private int y;
+    private int width;
+    private int height;
+    private String image;
+
+    public ComposeStripResponse(int x, int y, int width, int height, String image) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.image = image;
+    }
+}
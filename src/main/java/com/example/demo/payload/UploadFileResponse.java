@@ -10,6 +10,8 @@ public class UploadFileResponse {
     private String fileDownloadUri;
     private String fileType;
     private long size;
+    //why the file wasn't stored, for the failures in a batch upload
+    private String error;
 
     public UploadFileResponse(String fileName, String fileDownloadUri, String fileType, long size) {
         this.fileName = fileName;
@@ -17,4 +19,10 @@ public class UploadFileResponse {
         this.fileType = fileType;
         this.size = size;
     }
+
+    public static UploadFileResponse failed(String fileName, String error) {
+        UploadFileResponse response = new UploadFileResponse(fileName, null, null, 0);
+        response.setError(error);
+        return response;
+    }
 }
@@ -0,0 +1,176 @@
+package com.example.demo.property;
+
+import com.example.demo.util.ComposeOptions;
+import com.example.demo.util.Resampler;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties(prefix="compose")
+public class ComposeProperties {
+    //worker threads per compose; 1 keeps the original single-threaded path, 0 shares the cores between the job workers
+    private int parallelism = 0;
+    //when set, parallel composes are repeatable for the same inputs
+    private Long seed;
+    //background compose jobs: worker threads, how many may wait for one, and how long finished jobs stay pollable
+    private int workerThreads = 2;
+    private int queueCapacity = 16;
+    private long jobRetentionMinutes = 60;
+    //compose job event streams: threads timing their updates, how often finished parts of the result go out, and
+    //how long a stream may stay open
+    private int streamThreads = 2;
+    private long streamIntervalMillis = 250;
+    private long streamTimeoutMinutes = 30;
+    //defaults for composes that don't ask for a fragment size or matching mode
+    private int fragSize = 3;
+    private ComposeOptions.MatchMode matchMode = ComposeOptions.MatchMode.NEAREST;
+    private int pyramidDepth = 2;
+    private long assignmentBudgetMillis = 2000;
+    //how models are scaled down to the in-memory limit and sources are scaled to the model; draw_image is the fastest
+    private Resampler.Method scaleMethod = Resampler.Method.DRAW_IMAGE;
+    //compose models bigger than 720px at full size, in bands that each fit in the heap budget
+    private boolean fullResolution = false;
+    private long tileHeapBudgetMegabytes = 256;
+    //keep the fragment assignment of in-memory results so they can be recomposed incrementally later
+    private boolean recomposable = false;
+    //memory budget for decoded compose inputs, measured in pixel bytes
+    private long imageCacheMaxMegabytes = 512;
+
+    public int getParallelism() {
+        if (parallelism > 0) {
+            return parallelism;
+        }
+        //every job worker composes at once, so each gets its share of the cores rather than all of them
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / Math.max(1, workerThreads));
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public Long getSeed() {
+        return seed;
+    }
+
+    public void setSeed(Long seed) {
+        this.seed = seed;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public long getJobRetentionMinutes() {
+        return jobRetentionMinutes;
+    }
+
+    public void setJobRetentionMinutes(long jobRetentionMinutes) {
+        this.jobRetentionMinutes = jobRetentionMinutes;
+    }
+
+    public int getStreamThreads() {
+        return streamThreads;
+    }
+
+    public void setStreamThreads(int streamThreads) {
+        this.streamThreads = streamThreads;
+    }
+
+    public long getStreamIntervalMillis() {
+        return streamIntervalMillis;
+    }
+
+    public void setStreamIntervalMillis(long streamIntervalMillis) {
+        this.streamIntervalMillis = streamIntervalMillis;
+    }
+
+    public long getStreamTimeoutMinutes() {
+        return streamTimeoutMinutes;
+    }
+
+    public void setStreamTimeoutMinutes(long streamTimeoutMinutes) {
+        this.streamTimeoutMinutes = streamTimeoutMinutes;
+    }
+
+    public int getFragSize() {
+        return fragSize;
+    }
+
+    public void setFragSize(int fragSize) {
+        this.fragSize = fragSize;
+    }
+
+    public ComposeOptions.MatchMode getMatchMode() {
+        return matchMode;
+    }
+
+    public void setMatchMode(ComposeOptions.MatchMode matchMode) {
+        this.matchMode = matchMode;
+    }
+
+    public int getPyramidDepth() {
+        return pyramidDepth;
+    }
+
+    public void setPyramidDepth(int pyramidDepth) {
+        this.pyramidDepth = pyramidDepth;
+    }
+
+    public long getAssignmentBudgetMillis() {
+        return assignmentBudgetMillis;
+    }
+
+    public void setAssignmentBudgetMillis(long assignmentBudgetMillis) {
+        this.assignmentBudgetMillis = assignmentBudgetMillis;
+    }
+
+    public Resampler.Method getScaleMethod() {
+        return scaleMethod;
+    }
+
+    public void setScaleMethod(Resampler.Method scaleMethod) {
+        this.scaleMethod = scaleMethod;
+    }
+
+    public boolean isFullResolution() {
+        return fullResolution;
+    }
+
+    public void setFullResolution(boolean fullResolution) {
+        this.fullResolution = fullResolution;
+    }
+
+    public boolean isRecomposable() {
+        return recomposable;
+    }
+
+    public void setRecomposable(boolean recomposable) {
+        this.recomposable = recomposable;
+    }
+
+    public long getTileHeapBudgetMegabytes() {
+        return tileHeapBudgetMegabytes;
+    }
+
+    public void setTileHeapBudgetMegabytes(long tileHeapBudgetMegabytes) {
+        this.tileHeapBudgetMegabytes = tileHeapBudgetMegabytes;
+    }
+
+    public long getImageCacheMaxMegabytes() {
+        return imageCacheMaxMegabytes;
+    }
+
+    public void setImageCacheMaxMegabytes(long imageCacheMaxMegabytes) {
+        this.imageCacheMaxMegabytes = imageCacheMaxMegabytes;
+    }
+}
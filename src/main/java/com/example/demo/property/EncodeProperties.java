@@ -0,0 +1,65 @@
+package com.example.demo.property;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties(prefix="encode")
+public class EncodeProperties {
+    //what in-memory compose results are stored as: jpg, png, or webp (lossless, needs a WebP ImageIO plugin)
+    private String format = "jpg";
+    //JPEG quality from 0 to 1, progressive scans, and 4:4:4 instead of 4:2:0 chroma
+    private float jpegQuality = 0.75f;
+    private boolean progressive = false;
+    private boolean fullChroma = false;
+    //PNG from 0 (smallest) to 1 (fastest), negative for the writer's default
+    private float pngCompression = -1;
+    //idle ImageWriters kept per format
+    private int writerPoolSize = 4;
+
+    public String getFormat() {
+        return format;
+    }
+
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    public float getJpegQuality() {
+        return jpegQuality;
+    }
+
+    public void setJpegQuality(float jpegQuality) {
+        this.jpegQuality = jpegQuality;
+    }
+
+    public boolean isProgressive() {
+        return progressive;
+    }
+
+    public void setProgressive(boolean progressive) {
+        this.progressive = progressive;
+    }
+
+    public boolean isFullChroma() {
+        return fullChroma;
+    }
+
+    public void setFullChroma(boolean fullChroma) {
+        this.fullChroma = fullChroma;
+    }
+
+    public float getPngCompression() {
+        return pngCompression;
+    }
+
+    public void setPngCompression(float pngCompression) {
+        this.pngCompression = pngCompression;
+    }
+
+    public int getWriterPoolSize() {
+        return writerPoolSize;
+    }
+
+    public void setWriterPoolSize(int writerPoolSize) {
+        this.writerPoolSize = writerPoolSize;
+    }
+}
@@ -4,8 +4,30 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 
 @ConfigurationProperties(prefix="file")
 public class FileStorageProperties {
+
+    /**
+     * How raw uploads and downloads move their bytes
+     */
+    public enum IoMode {
+        /** blocking servlet streams, holding the Tomcat thread for the whole transfer */
+        BLOCKING,
+        /** servlet non-blocking I/O, holding a thread only while a piece of the transfer is being copied */
+        NON_BLOCKING
+    }
+
     private String uploadDir;
     private String generatedDir;
+    private String fragmentCacheDir;
+    private long fragmentCacheMaxMegabytes = 2048;
+    private String blobDir;
+    private long downloadMaxAgeSeconds = 3600;
+    private long streamUploadMaxMegabytes = 200;
+    private int uploadThreads = 4;
+    private IoMode ioMode = IoMode.BLOCKING;
+    private long transferTimeoutMinutes = 30;
+    private int[] previewSizes = {160, 480, 1024};
+    private int previewWorkerThreads = 1;
+    private int previewQueueCapacity = 100;
 
     public String getUploadDir() {
         return uploadDir;
@@ -22,4 +44,92 @@ public class FileStorageProperties {
     public void setGeneratedDir(String generatedDir) {
         this.generatedDir = generatedDir;
     }
+
+    public String getFragmentCacheDir() {
+        return fragmentCacheDir;
+    }
+
+    public void setFragmentCacheDir(String fragmentCacheDir) {
+        this.fragmentCacheDir = fragmentCacheDir;
+    }
+
+    public long getFragmentCacheMaxMegabytes() {
+        return fragmentCacheMaxMegabytes;
+    }
+
+    public void setFragmentCacheMaxMegabytes(long fragmentCacheMaxMegabytes) {
+        this.fragmentCacheMaxMegabytes = fragmentCacheMaxMegabytes;
+    }
+
+    public long getStreamUploadMaxMegabytes() {
+        return streamUploadMaxMegabytes;
+    }
+
+    public void setStreamUploadMaxMegabytes(long streamUploadMaxMegabytes) {
+        this.streamUploadMaxMegabytes = streamUploadMaxMegabytes;
+    }
+
+    public String getBlobDir() {
+        return blobDir;
+    }
+
+    public void setBlobDir(String blobDir) {
+        this.blobDir = blobDir;
+    }
+
+    public long getDownloadMaxAgeSeconds() {
+        return downloadMaxAgeSeconds;
+    }
+
+    public void setDownloadMaxAgeSeconds(long downloadMaxAgeSeconds) {
+        this.downloadMaxAgeSeconds = downloadMaxAgeSeconds;
+    }
+
+    public int getUploadThreads() {
+        return uploadThreads;
+    }
+
+    public void setUploadThreads(int uploadThreads) {
+        this.uploadThreads = uploadThreads;
+    }
+
+    public IoMode getIoMode() {
+        return ioMode;
+    }
+
+    public void setIoMode(IoMode ioMode) {
+        this.ioMode = ioMode;
+    }
+
+    public long getTransferTimeoutMinutes() {
+        return transferTimeoutMinutes;
+    }
+
+    public void setTransferTimeoutMinutes(long transferTimeoutMinutes) {
+        this.transferTimeoutMinutes = transferTimeoutMinutes;
+    }
+
+    public int[] getPreviewSizes() {
+        return previewSizes;
+    }
+
+    public void setPreviewSizes(int[] previewSizes) {
+        this.previewSizes = previewSizes;
+    }
+
+    public int getPreviewWorkerThreads() {
+        return previewWorkerThreads;
+    }
+
+    public void setPreviewWorkerThreads(int previewWorkerThreads) {
+        this.previewWorkerThreads = previewWorkerThreads;
+    }
+
+    public int getPreviewQueueCapacity() {
+        return previewQueueCapacity;
+    }
+
+    public void setPreviewQueueCapacity(int previewQueueCapacity) {
+        this.previewQueueCapacity = previewQueueCapacity;
+    }
 }
@@ -0,0 +1,156 @@
+package com.example.demo.service;
+
+import com.example.demo.util.ComposeMonitor;
+
+import java.util.concurrent.Future;
+
+/**
+ * A compose running (or waiting to run) on the background workers of {@link ComposeJobService}
+ */
+public class ComposeJob {
+
+    public enum Status {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    private final String id;
+    private final String baseFile;
+    private final String mapperFile;
+    private final String resultName;
+    private final ComposeSettings settings;
+    private final ComposeMonitor monitor = new ComposeMonitor();
+
+    private volatile Status status = Status.QUEUED;
+    private volatile String fileName;
+    private volatile String fileDownloadUri;
+    private volatile String errorMessage;
+    private volatile long finishedAt;
+    private volatile Future<?> future;
+
+    public ComposeJob(String id, String baseFile, String mapperFile, String resultName,
+                      ComposeSettings settings) {
+        this.id = id;
+        this.baseFile = baseFile;
+        this.mapperFile = mapperFile;
+        this.resultName = resultName;
+        this.settings = settings;
+    }
+
+    /**
+     * @return false if the job was cancelled before it got to start, in which case it mustn't
+     */
+    synchronized boolean started() {
+        if (status != Status.QUEUED) {
+            return false;
+        }
+        status = Status.RUNNING;
+        return true;
+    }
+
+    /**
+     * Cancel the job if it hasn't started yet. A running job is left to say how it ended, as it may already be
+     * past its last cancellation check and about to store its result.
+     * @return whether the job is now cancelled
+     */
+    synchronized boolean cancelIfQueued() {
+        if (status != Status.QUEUED) {
+            return false;
+        }
+        finish(Status.CANCELLED);
+        return true;
+    }
+
+    void succeeded(String fileName, String fileDownloadUri) {
+        this.fileName = fileName;
+        this.fileDownloadUri = fileDownloadUri;
+        finish(Status.DONE);
+    }
+
+    void failed(String errorMessage) {
+        this.errorMessage = errorMessage;
+        finish(Status.FAILED);
+    }
+
+    void cancelled() {
+        finish(Status.CANCELLED);
+    }
+
+    /**
+     * Only the first way a job ends counts, so a status that's been reported never changes
+     */
+    private synchronized void finish(Status status) {
+        if (isFinished()) {
+            return;
+        }
+        //before the status, so nothing sees a finished job without its finishing time
+        this.finishedAt = System.currentTimeMillis();
+        this.status = status;
+    }
+
+    void setFuture(Future<?> future) {
+        this.future = future;
+    }
+
+    Future<?> getFuture() {
+        return future;
+    }
+
+    public boolean isFinished() {
+        return status == Status.DONE || status == Status.FAILED || status == Status.CANCELLED;
+    }
+
+    /**
+     * Percentage of the result's fragments that have been placed
+     */
+    public int getProgress() {
+        if (status == Status.DONE) {
+            return 100;
+        }
+        int total = monitor.getTotal();
+        return total == 0 ? 0 : (int) (100L * monitor.getCompleted() / total);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getBaseFile() {
+        return baseFile;
+    }
+
+    public String getMapperFile() {
+        return mapperFile;
+    }
+
+    public String getResultName() {
+        return resultName;
+    }
+
+    public ComposeSettings getSettings() {
+        return settings;
+    }
+
+    public ComposeMonitor getMonitor() {
+        return monitor;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getFileDownloadUri() {
+        return fileDownloadUri;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.demo.service;
+
+import com.example.demo.exception.JobNotFoundException;
+import com.example.demo.exception.TooManyJobsException;
+import com.example.demo.property.ComposeProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Runs composes on a small dedicated pool instead of the request threads.
+ * The queue in front of the pool is bounded; once it's full new submissions are turned away with a 429
+ * rather than piling up. Finished jobs are kept around for polling for compose.job-retention-minutes.
+ */
+@Service
+public class ComposeJobService {
+
+    Logger log = LoggerFactory.getLogger(ComposeJobService.class);
+
+    private final ComposeService composeService;
+    private final ThreadPoolExecutor executor;
+    private final long retentionMillis;
+    private final Map<String, ComposeJob> jobs = new ConcurrentHashMap<>();
+
+    @Autowired
+    public ComposeJobService(ComposeService composeService, ComposeProperties composeProperties,
+                             PipelineMetrics metrics) {
+        this.composeService = composeService;
+        this.retentionMillis = TimeUnit.MINUTES.toMillis(composeProperties.getJobRetentionMinutes());
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "compose-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.executor = new ThreadPoolExecutor(composeProperties.getWorkerThreads(),
+                composeProperties.getWorkerThreads(), 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(composeProperties.getQueueCapacity()), threadFactory,
+                new ThreadPoolExecutor.AbortPolicy());
+        metrics.monitor(executor, "composeJobs");
+    }
+
+    /**
+     * Queue up a compose
+     * @param downloadUri turns the stored file name into its download URI once the job is done
+     * @throws TooManyJobsException if the queue is full
+     */
+    public ComposeJob submit(String baseFile, String mapperFile, String resultName, ComposeSettings settings,
+                             Function<String, String> downloadUri) {
+        evictFinishedJobs();
+        ComposeJob job = new ComposeJob(UUID.randomUUID().toString(), baseFile, mapperFile, resultName, settings);
+        jobs.put(job.getId(), job);
+        try {
+            job.setFuture(executor.submit(() -> run(job, downloadUri)));
+        } catch (RejectedExecutionException ex) {
+            jobs.remove(job.getId());
+            throw new TooManyJobsException("Too many composes queued, try again later", ex);
+        }
+        log.info("queued compose job " + job.getId() + ", " + executor.getQueue().size() + " waiting");
+        return job;
+    }
+
+    public ComposeJob getJob(String jobId) {
+        ComposeJob job = jobs.get(jobId);
+        if (job == null) {
+            throw new JobNotFoundException("No compose job " + jobId);
+        }
+        return job;
+    }
+
+    /**
+     * Stop a job. Queued jobs are cancelled there and then and never start; running ones bail out at their next
+     * cancellation check and report CANCELLED once they have, or DONE if they'd already got past the last one.
+     */
+    public ComposeJob cancel(String jobId) {
+        ComposeJob job = getJob(jobId);
+        if (job.isFinished()) {
+            return job;
+        }
+        job.getMonitor().cancel();
+        if (job.cancelIfQueued() && job.getFuture() != null) {
+            job.getFuture().cancel(false);
+            executor.remove((Runnable) job.getFuture());
+        }
+        return job;
+    }
+
+    private void run(ComposeJob job, Function<String, String> downloadUri) {
+        if (!job.started()) {
+            //cancelled while it was queued
+            return;
+        }
+        try {
+            String fileName = composeService.compose(job.getBaseFile(), job.getMapperFile(), job.getResultName(),
+                    job.getSettings(), job.getMonitor(), downloadUri);
+            String fileDownloadUri = downloadUri.apply(fileName);
+            job.succeeded(fileName, fileDownloadUri);
+            log.info("compose job " + job.getId() + " finished as " + fileName);
+        } catch (CancellationException ex) {
+            job.cancelled();
+            log.info("compose job " + job.getId() + " cancelled");
+        } catch (Exception ex) {
+            if (job.getMonitor().isCancelled()) {
+                job.cancelled();
+            } else {
+                log.info("compose job " + job.getId() + " failed " + ex.getMessage());
+                job.failed(ex.getMessage());
+            }
+        }
+    }
+
+    private void evictFinishedJobs() {
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        jobs.values().removeIf(job -> job.isFinished() && job.getFinishedAt() < cutoff);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        jobs.values().forEach(job -> job.getMonitor().cancel());
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,242 @@
+package com.example.demo.service;
+
+import com.example.demo.exception.InvalidComposeRequestException;
+import com.example.demo.exception.MyFileNotFoundException;
+import com.example.demo.property.ComposeProperties;
+import com.example.demo.util.ComposeMonitor;
+import com.example.demo.util.ComposeOptions;
+import com.example.demo.util.ComposeResult;
+import com.example.demo.util.FragmentAssignment;
+import com.example.demo.util.ImageDecoder;
+import com.example.demo.util.ImageUtils;
+import com.example.demo.util.RasterFile;
+import com.example.demo.util.Resampler;
+import com.example.demo.util.SourceFragments;
+import com.example.demo.util.TiledComposer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.function.Function;
+
+/**
+ * Loads the inputs of a compose, runs {@link ImageUtils#remakeImage} on them and stores the result.
+ * Shared by the synchronous /compose endpoint and the background compose jobs.
+ *
+ * Results are remembered by the content hashes of both inputs plus the settings that shape the output, the
+ * configured parallelism and seed among them. Asking for the same compose again, under any name, just points the
+ * new name at the bytes already stored, and identical composes that arrive while one is running wait for its
+ * result rather than doing the work twice, see {@link InFlightComposes}.
+ */
+@Service
+public class ComposeService {
+
+    private static final int MAX_FRAG_SIZE = 64;
+    private static final int MAX_PYRAMID_DEPTH = 8;
+    private static final long MAX_BUDGET_MILLIS = 60_000;
+
+    Logger log = LoggerFactory.getLogger(ComposeService.class);
+
+    private final FileStorageService fileStorageService;
+    private final ComposeProperties composeProperties;
+    private final DecodedImageCache imageCache;
+    private final FragmentCache fragmentCache;
+    private final PipelineMetrics metrics;
+    private final InFlightComposes inFlight = new InFlightComposes();
+
+    @Autowired
+    public ComposeService(FileStorageService fileStorageService, ComposeProperties composeProperties,
+                          DecodedImageCache imageCache, FragmentCache fragmentCache, PipelineMetrics metrics) {
+        this.fileStorageService = fileStorageService;
+        this.composeProperties = composeProperties;
+        this.imageCache = imageCache;
+        this.fragmentCache = fragmentCache;
+        this.metrics = metrics;
+        metrics.monitorCache("composeResults", inFlight, InFlightComposes::getHits, InFlightComposes::getMisses);
+    }
+
+    /**
+     * Resolve the optional per-request compose parameters against the configured defaults
+     * @throws InvalidComposeRequestException if any of them are out of range
+     */
+    public ComposeSettings settings(Integer fragSize, String matchMode, Integer pyramidDepth, Long budgetMillis,
+                                    Boolean fullResolution, Boolean recomposable, String previous) {
+        int size = fragSize != null ? fragSize : composeProperties.getFragSize();
+        if (size < 1 || size > MAX_FRAG_SIZE) {
+            throw new InvalidComposeRequestException("fragSize must be between 1 and " + MAX_FRAG_SIZE);
+        }
+        ComposeOptions.MatchMode mode = composeProperties.getMatchMode();
+        if (matchMode != null) {
+            try {
+                mode = ComposeOptions.MatchMode.valueOf(matchMode.toUpperCase());
+            } catch (IllegalArgumentException ex) {
+                throw new InvalidComposeRequestException("Unknown compose mode " + matchMode, ex);
+            }
+        }
+        int depth = pyramidDepth != null ? pyramidDepth : composeProperties.getPyramidDepth();
+        if (depth < 0 || depth > MAX_PYRAMID_DEPTH) {
+            throw new InvalidComposeRequestException("pyramidDepth must be between 0 and " + MAX_PYRAMID_DEPTH);
+        }
+        long budget = budgetMillis != null ? budgetMillis : composeProperties.getAssignmentBudgetMillis();
+        if (budget < 0 || budget > MAX_BUDGET_MILLIS) {
+            throw new InvalidComposeRequestException("budgetMillis must be between 0 and " + MAX_BUDGET_MILLIS);
+        }
+        return new ComposeSettings(size, mode, depth, budget,
+                fullResolution != null ? fullResolution : composeProperties.isFullResolution(),
+                recomposable != null ? recomposable : composeProperties.isRecomposable(), previous);
+    }
+
+    /**
+     * Remake the base image out of the mapper's fragments and store it under resultName, or reuse the stored
+     * result of an identical compose
+     * @param settings fragment size and matching mode, from {@link #settings}
+     * @param monitor receives progress updates and can cancel the compose
+     * @param downloadUri maps the stored name to the URI it'll be served from
+     * @return the name the result was stored under
+     */
+    public String compose(String baseFile, String mapperFile, String resultName, ComposeSettings settings,
+                          ComposeMonitor monitor, Function<String, String> downloadUri) throws IOException {
+        File baseImage = fileStorageService.loadFileAsResource(baseFile).getFile();
+        boolean tiled = settings.isFullResolution() && !fitsInMemory(baseImage);
+        //tiled results are always PNG, which the encoder can write a row at a time
+        String format = tiled ? "png" : fileStorageService.getResultFormat();
+        String storedName = format.equals("jpg") ? resultName : withExtension(resultName, format);
+        String previousHash = null;
+        if (settings.getPrevious() != null && !tiled) {
+            try {
+                previousHash = fileStorageService.getContentHash(settings.getPrevious());
+            } catch (MyFileNotFoundException ex) {
+                log.info("{} is gone, composing from scratch", settings.getPrevious());
+            }
+        }
+        ComposeSettings effective = settings.getPrevious() != null && previousHash == null
+                ? settings.fromScratch() : settings;
+        String key = fileStorageService.getContentHash(baseFile) + ":" + fileStorageService.getContentHash(mapperFile)
+                + ":" + effective.key() + "/" + composeProperties.getScaleMethod() + "/" + parallelKey()
+                + ":" + fileStorageService.describeEncoding(format)
+                //a recompose keeps the previous result's fragments, so it's only the same as another from there
+                + (previousHash != null ? ":from:" + previousHash : "");
+        return inFlight.compose(key, monitor, () -> fileStorageService.storeComposed(key, storedName, downloadUri),
+                () -> tiled
+                        ? composeTiled(baseImage, mapperFile, storedName, key, effective, monitor, downloadUri)
+                        : composeInMemory(baseImage, baseFile, mapperFile, storedName, format, key, effective,
+                                monitor, downloadUri));
+    }
+
+    private static boolean fitsInMemory(File image) throws IOException {
+        Dimension size = TiledComposer.dimensions(image);
+        return ImageUtils.fitsInMemory(size.width, size.height);
+    }
+
+    /**
+     * How the configured parallelism and seed shape the output: more than one worker switches to the banded
+     * composer, whose result depends on the band count, and without a seed its workers race for fragments so
+     * the result differs from run to run
+     */
+    private String parallelKey() {
+        int parallelism = composeProperties.getParallelism();
+        if (parallelism <= 1) {
+            return "serial";
+        }
+        Long seed = composeProperties.getSeed();
+        return parallelism + (seed != null ? "/seed-" + seed : "/racing");
+    }
+
+    private String composeInMemory(File baseImage, String baseFile, String mapperFile, String resultName,
+                                   String format, String key, ComposeSettings settings, ComposeMonitor monitor,
+                                   Function<String, String> downloadUri) throws IOException {
+        //If the model is too big for us to process quickly, scale it down
+        Resampler.Method scaling = composeProperties.getScaleMethod();
+        Dimension displayed = imageCache.getDisplayedSize(baseFile, baseImage.lastModified(),
+                () -> ImageDecoder.displayedSize(baseImage));
+        Dimension normalized = ImageUtils.normalizedSize(displayed.width, displayed.height);
+        BufferedImage decodedBase = loadOrientedFile(baseFile, normalized.width, normalized.height, displayed);
+        BufferedImage base = metrics.time("normalize", () -> ImageUtils.normalizeImage(decodedBase, scaling));
+        //The mapper only needs decoding and breaking down the first time it's used at this size
+        int fragSize = settings.getFragSize();
+        SourceFragments fragments = fragmentCache.get(mapperFile, base.getWidth(), base.getHeight(),
+                fragSize, fragSize, scaling, () -> {
+                    BufferedImage mapper = loadOrientedFile(mapperFile, base.getWidth(), base.getHeight(), null);
+                    BufferedImage source = metrics.time("normalize",
+                            () -> ImageUtils.transformSource(mapper, base, scaling));
+                    return metrics.time("breakdown", () -> SourceFragments.breakdown(source, fragSize, fragSize));
+                });
+
+        FragmentAssignment previous = null;
+        if (settings.getPrevious() != null) {
+            previous = fragmentCache.getAssignment(settings.getPrevious(), mapperFile, base.getWidth(),
+                    base.getHeight(), fragSize, fragSize, scaling);
+            if (previous == null) {
+                log.info("{} wasn't composed from {} on this grid, composing from scratch", settings.getPrevious(),
+                        mapperFile);
+            }
+        }
+
+        log.info("composing with {}", settings);
+        ComposeOptions options = options(settings, monitor);
+        FragmentAssignment from = previous;
+        ComposeResult result = metrics.time("match", () -> from != null
+                ? ImageUtils.recompose(fragments, base, from, options)
+                : ImageUtils.compose(fragments, base, options));
+        String stored = fileStorageService.storeFile(result.getImage(), format, resultName, key, downloadUri);
+        if (settings.isRecomposable()) {
+            fragmentCache.putAssignment(stored, mapperFile, scaling, result.getAssignment());
+        }
+        return stored;
+    }
+
+    /**
+     * Compose at the model's real size in bands. Each input is decoded once into a temporary file, and bands are
+     * read back from there turned the right way up, with the same EXIF orientation the in-memory path applies,
+     * so neither image is ever on the heap whole. The result is too big to hold as a BufferedImage, so it's
+     * streamed out of its temporary file into a PNG.
+     */
+    private String composeTiled(File baseImage, String mapperFile, String resultName, String key,
+                                ComposeSettings settings, ComposeMonitor monitor,
+                                Function<String, String> downloadUri) throws IOException {
+        File mapperImage = fileStorageService.loadFileAsResource(mapperFile).getFile();
+        log.info("composing " + baseImage.getName() + " tiled with " + settings);
+        ComposeOptions options = options(settings, monitor);
+        TiledComposer composer = new TiledComposer(settings.getFragSize(), settings.getFragSize(),
+                composeProperties.getTileHeapBudgetMegabytes() * 1024 * 1024);
+        //decoding happens band by band inside the compose, so it all counts as matching
+        try (RasterFile result = metrics.time("match", () -> composer.compose(baseImage, mapperImage,
+                fileStorageService.getTempLocation(), options))) {
+            return fileStorageService.storeFile(result, "png", resultName, key, downloadUri);
+        }
+    }
+
+    private ComposeOptions options(ComposeSettings settings, ComposeMonitor monitor) {
+        return new ComposeOptions()
+                .setParallelism(composeProperties.getParallelism())
+                .setSeed(composeProperties.getSeed())
+                .setMatchMode(settings.getMatchMode())
+                .setPyramidDepth(settings.getPyramidDepth())
+                .setAssignmentBudgetMillis(settings.getBudgetMillis())
+                .setMonitor(monitor);
+    }
+
+    private static String withExtension(String name, String extension) {
+        int dot = name.lastIndexOf('.');
+        return (dot > 0 ? name.substring(0, dot) : name) + "." + extension;
+    }
+
+    /**
+     * Helper method that's gonna make sure we load something that's oriented properly.
+     * Only decodes as much of the file as scaling it to targetWidth x targetHeight needs, see {@link ImageDecoder}.
+     * Served from the decoded image cache when this version of the file has been loaded before at that size or
+     * bigger.
+     * @param displayed the file's displayed size if we've already read it, to remember with the decoded image
+     */
+    private BufferedImage loadOrientedFile(String filename, int targetWidth, int targetHeight, Dimension displayed)
+            throws IOException {
+        File file = fileStorageService.loadFileAsResource(filename).getFile();
+        return imageCache.get(filename, file.lastModified(), targetWidth, targetHeight, displayed,
+                () -> metrics.time("decode", () -> ImageDecoder.decode(file, targetWidth, targetHeight)));
+    }
+}
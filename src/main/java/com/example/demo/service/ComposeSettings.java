@@ -0,0 +1,109 @@
+package com.example.demo.service;
+
+import com.example.demo.util.ComposeOptions;
+
+/**
+ * The per-request side of a compose: how big the fragments are and how they get matched.
+ * Built by {@link ComposeService#settings}, which fills in the configured defaults and validates.
+ */
+public class ComposeSettings {
+
+    private final int fragSize;
+    private final ComposeOptions.MatchMode matchMode;
+    private final int pyramidDepth;
+    private final long budgetMillis;
+    private final boolean fullResolution;
+    private final boolean recomposable;
+    private final String previous;
+
+    public ComposeSettings(int fragSize, ComposeOptions.MatchMode matchMode, int pyramidDepth, long budgetMillis,
+                           boolean fullResolution, boolean recomposable, String previous) {
+        this.fragSize = fragSize;
+        this.matchMode = matchMode;
+        this.pyramidDepth = pyramidDepth;
+        this.budgetMillis = budgetMillis;
+        this.fullResolution = fullResolution;
+        this.recomposable = recomposable;
+        this.previous = previous;
+    }
+
+    /**
+     * These settings composing from scratch instead of recomposing {@link #getPrevious()}
+     */
+    public ComposeSettings fromScratch() {
+        return new ComposeSettings(fragSize, matchMode, pyramidDepth, budgetMillis, fullResolution, recomposable,
+                null);
+    }
+
+    /**
+     * Width and height of the square fragments, in pixels of the normalized model
+     */
+    public int getFragSize() {
+        return fragSize;
+    }
+
+    public ComposeOptions.MatchMode getMatchMode() {
+        return matchMode;
+    }
+
+    public int getPyramidDepth() {
+        return pyramidDepth;
+    }
+
+    /**
+     * How long {@link ComposeOptions.MatchMode#ASSIGNMENT} may spend improving on the greedy match
+     */
+    public long getBudgetMillis() {
+        return budgetMillis;
+    }
+
+    /**
+     * Whether models too big for the in-memory compose are composed at their real size rather than scaled down
+     */
+    public boolean isFullResolution() {
+        return fullResolution;
+    }
+
+    /**
+     * Whether the result keeps what a later recompose of it needs. Only composes held in memory can be recomposed.
+     */
+    public boolean isRecomposable() {
+        return recomposable;
+    }
+
+    /**
+     * An earlier result of the same mapper to recompose incrementally, keeping the fragments of every part of
+     * the model that hasn't changed since; null for a compose from scratch
+     */
+    public String getPrevious() {
+        return previous;
+    }
+
+    /**
+     * Everything here that changes what a compose produces, for telling identical composes apart
+     */
+    public String key() {
+        //a recomposable result comes with its assignment, so one stored without can't stand in for it
+        String key = fragSize + "/" + matchMode + "/" + fullResolution + (recomposable ? "/recomposable" : "");
+        if (matchMode == ComposeOptions.MatchMode.PYRAMID) {
+            return key + "/" + pyramidDepth;
+        }
+        if (matchMode == ComposeOptions.MatchMode.ASSIGNMENT) {
+            return key + "/" + budgetMillis;
+        }
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        String resolution = (fullResolution ? ", full resolution" : "")
+                + (recomposable ? ", recomposable" : "") + (previous != null ? ", recomposing " + previous : "");
+        if (matchMode == ComposeOptions.MatchMode.PYRAMID) {
+            return fragSize + "px fragments, " + matchMode + " depth " + pyramidDepth + resolution;
+        }
+        if (matchMode == ComposeOptions.MatchMode.ASSIGNMENT) {
+            return fragSize + "px fragments, " + matchMode + " within " + budgetMillis + "ms" + resolution;
+        }
+        return fragSize + "px fragments, " + matchMode + resolution;
+    }
+}
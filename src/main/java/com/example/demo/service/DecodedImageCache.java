@@ -0,0 +1,184 @@
+package com.example.demo.service;
+
+import com.example.demo.property.ComposeProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache of decoded, correctly oriented images, bounded by the bytes their pixels take up rather than by
+ * entry count. Entries are keyed by file name and remember the file's modification time, so a file that changed
+ * on disk is never served stale; FileStorageService also drops entries when it overwrites or deletes a file.
+ * Images are usually decoded at a reduced size for the size they're about to be scaled to, so entries also
+ * remember that target and only serve requests for the same size or smaller. They also remember the file's
+ * displayed size, which callers need before they can pick a target, so a hit doesn't read the file's header either.
+ *
+ * Cached images are shared between composes and must be treated as read only.
+ */
+@Component
+public class DecodedImageCache {
+
+    public interface Loader {
+        BufferedImage load() throws IOException;
+    }
+
+    public interface SizeLoader {
+        Dimension load() throws IOException;
+    }
+
+    Logger log = LoggerFactory.getLogger(DecodedImageCache.class);
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long currentBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    @Autowired
+    public DecodedImageCache(ComposeProperties composeProperties, PipelineMetrics metrics) {
+        this.maxBytes = composeProperties.getImageCacheMaxMegabytes() * 1024L * 1024L;
+        metrics.monitorCache("decodedImages", this, DecodedImageCache::getHits, DecodedImageCache::getMisses);
+    }
+
+    /**
+     * Return the cached full-size image for this version of the file, or load and cache it
+     * @param lastModified the file's modification time; a different value than the cached one counts as a miss
+     */
+    public BufferedImage get(String fileName, long lastModified, Loader loader) throws IOException {
+        return get(fileName, lastModified, 0, 0, null, loader);
+    }
+
+    /**
+     * Return a cached image of this version of the file that's good enough to scale to targetWidth x targetHeight,
+     * or load and cache one
+     * @param targetWidth what the loader decodes for, 0 (with targetHeight) for full size
+     * @param displayed the file's full size as displayed, remembered for {@link #getDisplayedSize}; may be null for
+     *                  a full size decode, whose image is that size
+     */
+    public BufferedImage get(String fileName, long lastModified, int targetWidth, int targetHeight,
+                             Dimension displayed, Loader loader) throws IOException {
+        //a full-size decode is good enough for any target
+        int width = targetWidth > 0 && targetHeight > 0 ? targetWidth : Integer.MAX_VALUE;
+        int height = targetWidth > 0 && targetHeight > 0 ? targetHeight : Integer.MAX_VALUE;
+        synchronized (this) {
+            Entry entry = entries.get(fileName);
+            if (entry != null && entry.lastModified == lastModified
+                    && entry.targetWidth >= width && entry.targetHeight >= height) {
+                hits.incrementAndGet();
+                return entry.image;
+            }
+        }
+        misses.incrementAndGet();
+        //decode outside the lock so one slow file doesn't hold up every other lookup
+        BufferedImage image = loader.load();
+        if (displayed == null && width == Integer.MAX_VALUE) {
+            displayed = new Dimension(image.getWidth(), image.getHeight());
+        }
+        put(fileName, new Entry(image, lastModified, width, height, displayed, weigh(image)));
+        return image;
+    }
+
+    /**
+     * The full size this version of the file is displayed at, from its cached entry if it has one, otherwise from
+     * the loader. Doesn't count as a hit or a miss, the decode that follows it does.
+     */
+    public Dimension getDisplayedSize(String fileName, long lastModified, SizeLoader loader) throws IOException {
+        synchronized (this) {
+            Entry entry = entries.get(fileName);
+            if (entry != null && entry.lastModified == lastModified && entry.displayed != null) {
+                return new Dimension(entry.displayed);
+            }
+        }
+        return loader.load();
+    }
+
+    public synchronized void invalidate(String fileName) {
+        Entry entry = entries.remove(fileName);
+        if (entry != null) {
+            currentBytes -= entry.bytes;
+        }
+    }
+
+    private synchronized void put(String fileName, Entry entry) {
+        if (entry.bytes > maxBytes) {
+            log.info("not caching " + fileName + ", it's bigger than the whole cache");
+            return;
+        }
+        Entry previous = entries.put(fileName, entry);
+        if (previous != null) {
+            currentBytes -= previous.bytes;
+        }
+        currentBytes += entry.bytes;
+
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Entry> evicted = eldest.next();
+            if (evicted.getKey().equals(fileName)) {
+                continue;
+            }
+            currentBytes -= evicted.getValue().bytes;
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static long weigh(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    private static class Entry {
+        final BufferedImage image;
+        final long lastModified;
+        final int targetWidth;
+        final int targetHeight;
+        final Dimension displayed;
+        final long bytes;
+
+        Entry(BufferedImage image, long lastModified, int targetWidth, int targetHeight, Dimension displayed,
+              long bytes) {
+            this.image = image;
+            this.lastModified = lastModified;
+            this.targetWidth = targetWidth;
+            this.targetHeight = targetHeight;
+            this.displayed = displayed;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -2,7 +2,13 @@ package com.example.demo.service;
 
 import com.example.demo.exception.FileStorageException;
 import com.example.demo.exception.MyFileNotFoundException;
+import com.example.demo.exception.ReservedFileNameException;
+import com.example.demo.model.ImageFile;
+import com.example.demo.model.ImageFileRepository;
+import com.example.demo.property.EncodeProperties;
 import com.example.demo.property.FileStorageProperties;
+import com.example.demo.util.FragmentAssignment;
+import com.example.demo.util.ImageEncoder;
 import com.example.demo.util.ImageUtils;
 import org.apache.tomcat.util.http.fileupload.IOUtils;
 import org.slf4j.Logger;
@@ -14,53 +20,130 @@ import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 import org.springframework.web.multipart.MultipartFile;
 
-import javax.imageio.ImageIO;
+import javax.annotation.PreDestroy;
 import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.stream.Stream;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
+/**
+ * Uploads and generated images are kept in a content-addressed blob store: each distinct file is stored once
+ * under its SHA-256 (sharded as ab/cd/abcd...), and the {@link ImageFile} table maps user-visible names to
+ * hashes. Uploading the same bytes under another name just adds a mapping; a blob is deleted once no name
+ * refers to it any more. Every name also gets a hard link in the upload directory when the file system allows,
+ * so the directory still reads as it always has without costing extra disk.
+ * Compose results that were asked to be recomposable keep their fragment assignments beside their blob, and
+ * those go when the blob does.
+ */
 @Service
 public class FileStorageService {
 
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
+    private static final String PREVIEW_FORMAT = "jpg";
+    //what previewName ends with, kept out of every other name so an upload can't take a preview's row
+    private static final Pattern PREVIEW_SUFFIX = Pattern.compile("\\.preview-\\d+\\." + PREVIEW_FORMAT + "$",
+            Pattern.CASE_INSENSITIVE);
+    private static final String ASSIGNMENT_SUFFIX = ".asgn";
+
     Logger log = LoggerFactory.getLogger(FileStorageService.class);
     private final Path fileStorageLocation;
+    private final Path blobLocation;
+    private final long maxStreamUploadBytes;
+    private final DecodedImageCache imageCache;
+    private final ImageFileRepository repository;
+    private final PipelineMetrics metrics;
+    private final ImageEncoder encoder;
+    private final String resultFormat;
+    //name -> [last modified, SHA-256] for files that predate the blob store, so we only hash each version once
+    private final Map<String, String[]> contentHashes = new ConcurrentHashMap<>();
+    //guards name -> hash changes together with the blob deletes they can trigger
+    private final Object mappingLock = new Object();
+    //writes the files of batch uploads to disk side by side
+    private final ExecutorService uploadExecutor;
 
     @Autowired
-    public FileStorageService(FileStorageProperties fileStorageProperties) {
+    public FileStorageService(FileStorageProperties fileStorageProperties, EncodeProperties encodeProperties,
+                              DecodedImageCache imageCache, ImageFileRepository repository,
+                              PipelineMetrics metrics) {
+        this.imageCache = imageCache;
+        this.repository = repository;
+        this.metrics = metrics;
+        this.encoder = new ImageEncoder()
+                .setJpegQuality(encodeProperties.getJpegQuality())
+                .setProgressive(encodeProperties.isProgressive())
+                .setFullChroma(encodeProperties.isFullChroma())
+                .setPngCompression(encodeProperties.getPngCompression())
+                .setPoolSize(encodeProperties.getWriterPoolSize());
+        this.resultFormat = ImageEncoder.formatName(encodeProperties.getFormat());
+        if (!ImageEncoder.supports(resultFormat)) {
+            throw new FileStorageException("No encoder for encode.format " + resultFormat);
+        }
+        this.maxStreamUploadBytes = fileStorageProperties.getStreamUploadMaxMegabytes() * 1024L * 1024L;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.uploadExecutor = Executors.newFixedThreadPool(fileStorageProperties.getUploadThreads(), runnable -> {
+            Thread thread = new Thread(runnable, "upload-io-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        metrics.monitor(uploadExecutor, "uploads");
         this.fileStorageLocation = Paths.get(fileStorageProperties.getUploadDir())
                 .toAbsolutePath().normalize();
+        this.blobLocation = Paths.get(fileStorageProperties.getBlobDir())
+                .toAbsolutePath().normalize();
 
         try {
             Files.createDirectories(this.fileStorageLocation);
+            Files.createDirectories(this.blobLocation);
         } catch (Exception ex) {
             throw new FileStorageException("Could not create the directory where the uploaded files will live.", ex);
         }
     }
 
-    public String storeFile(MultipartFile file) {
+    /**
+     * @param downloadUri maps the stored name to the URI it'll be served from
+     */
+    public String storeFile(MultipartFile file, Function<String, String> downloadUri) {
         //Normalize file name
         String fileName = StringUtils.cleanPath(file.getOriginalFilename());
         InputStream in = null;
         log.info("input; filename is " + fileName);
         try {
-            if (fileName.contains("..")) {
-                throw new FileStorageException("Invalid path sequence in filename " + fileName);
-            }
             in = file.getInputStream();
-
-            //Copy file to the target location, overridding if necessary
-            Path targetLocation = this.fileStorageLocation.resolve(fileName);
-            Files.copy(in, targetLocation, StandardCopyOption.REPLACE_EXISTING);
-
-            return fileName;
+            return storeStream(in, fileName, Long.MAX_VALUE, downloadUri).getFileName();
         } catch (IOException iox) {
             throw new FileStorageException("Could not store file " + fileName, iox);
         } finally {
@@ -68,25 +151,486 @@ public class FileStorageService {
         }
     }
 
-    public String storeFile(BufferedImage image, String filename) {
-        log.info("input filename is " + filename);
-        String fileName = StringUtils.cleanPath(filename);
+    /**
+     * Write a stream into the blob store, hashing and counting it on the way through.
+     * The bytes land in a temporary file and are only moved into place once complete, so nobody ever reads a
+     * half-written upload and the data is only written to disk once. If we already hold the same bytes the
+     * temporary file is simply dropped.
+     * @param maxBytes give up once the stream is longer than this
+     * @param downloadUri maps the stored name to the URI it'll be served from
+     */
+    public StoredFile storeStream(InputStream in, String name, long maxBytes, Function<String, String> downloadUri) {
+        try (Upload upload = beginUpload(name, maxBytes)) {
+            upload.writeAll(in);
+            return upload.finish(downloadUri);
+        } catch (IOException iox) {
+            throw new FileStorageException("Could not store file " + name, iox);
+        }
+    }
+
+    /**
+     * Start an upload whose bytes are handed over a piece at a time, for callers that get them as they arrive
+     * rather than as a stream. Works like {@link #storeStream}; close it whether it's finished or not.
+     * @param maxBytes give up once more than this has been written
+     */
+    public Upload beginUpload(String name, long maxBytes) throws IOException {
+        return new Upload(validName(name), maxBytes);
+    }
 
+    /**
+     * Store a batch of uploads. The bytes are written to the blob store concurrently on the upload pool, then
+     * every name is registered with one saveAll. A file that fails doesn't stop the others, and if the saveAll
+     * fails nothing from the batch is kept. A name that comes up more than once is only stored the first time.
+     * @param downloadUri maps the stored name to the URI it'll be served from
+     * @return how each file went, in the same order as files
+     */
+    public List<StoreResult> storeFiles(List<MultipartFile> files, Function<String, String> downloadUri) {
+        StoreResult[] results = new StoreResult[files.size()];
+        List<Future<Incoming>> writes = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < files.size(); i++) {
+            MultipartFile file = files.get(i);
+            if (!names.add(StringUtils.cleanPath(String.valueOf(file.getOriginalFilename())))) {
+                //the row would only keep one of them, so don't tell the client both were stored
+                results[i] = StoreResult.failed(file.getOriginalFilename(),
+                        "Another file in this upload has the same name");
+                writes.add(null);
+                continue;
+            }
+            writes.add(uploadExecutor.submit(() -> receive(file)));
+        }
 
-        Path targetLocation = this.fileStorageLocation.resolve(fileName);
+        List<Incoming> received = new ArrayList<>();
+        List<Integer> receivedIndexes = new ArrayList<>();
         try {
-            ImageIO.write(image, "jpg", targetLocation.toFile());
-            return fileName;
+            for (int i = 0; i < writes.size(); i++) {
+                if (writes.get(i) == null) {
+                    continue;
+                }
+                try {
+                    received.add(writes.get(i).get());
+                    receivedIndexes.add(i);
+                } catch (ExecutionException ex) {
+                    String fileName = files.get(i).getOriginalFilename();
+                    log.info("Could not store " + fileName + " " + ex.getCause().getMessage());
+                    results[i] = StoreResult.failed(fileName, ex.getCause().getMessage());
+                }
+            }
+            try {
+                List<StoredFile> stored;
+                synchronized (mappingLock) {
+                    stored = ingest(received, downloadUri);
+                }
+                for (int k = 0; k < stored.size(); k++) {
+                    results[receivedIndexes.get(k)] = StoreResult.succeeded(stored.get(k));
+                }
+            } catch (IOException | RuntimeException ex) {
+                //ingest has taken back whatever it moved, so none of these were stored
+                log.info("Could not register a batch of " + received.size() + " uploads " + ex.getMessage());
+                for (int k = 0; k < received.size(); k++) {
+                    results[receivedIndexes.get(k)] = StoreResult.failed(received.get(k).fileName,
+                            "Could not store file " + ex.getMessage());
+                }
+            }
+            return Arrays.asList(results);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            writes.stream().filter(Objects::nonNull).forEach(write -> write.cancel(true));
+            throw new FileStorageException("Interrupted while storing uploads", ex);
+        } finally {
+            received.forEach(file -> deleteQuietly(file.tempLocation));
+        }
+    }
+
+    /**
+     * Write one multipart upload to a temporary file in the blob directory, hashing it on the way
+     */
+    private Incoming receive(MultipartFile file) throws IOException {
+        Upload upload = beginUpload(file.getOriginalFilename(), Long.MAX_VALUE);
+        try (InputStream in = file.getInputStream()) {
+            upload.writeAll(in);
+            //the batch ingests it, and deletes the temporary file once it's done
+            return upload.received();
+        } catch (IOException | RuntimeException ex) {
+            upload.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Largest body accepted by the raw streaming upload, which isn't covered by the multipart size limits
+     */
+    public long getMaxStreamUploadBytes() {
+        return maxStreamUploadBytes;
+    }
+
+    /**
+     * Somewhere for large scratch files, on the same disk as the blobs they usually end up as
+     */
+    public Path getTempLocation() {
+        return blobLocation;
+    }
+
+    public String storeFile(BufferedImage image, String filename, Function<String, String> downloadUri) {
+        return storeFile(image, "jpg", filename, downloadUri);
+    }
+
+    /**
+     * The format composes that fit in memory are stored as, from encode.format
+     */
+    public String getResultFormat() {
+        return resultFormat;
+    }
+
+    /**
+     * The encoder settings that shape an image stored as format, so results encoded differently aren't mixed up
+     */
+    public String describeEncoding(String format) {
+        return encoder.describe(format);
+    }
+
+    /**
+     * Encode an image with the store's settings without storing it, for pieces of an image sent straight to a
+     * client
+     * @throws FileStorageException if the image can't be encoded
+     */
+    public byte[] encodeToBytes(RenderedImage image, String format) {
+        try {
+            return encoder.encode(image, format);
         } catch (IOException iox) {
+            throw new FileStorageException("Could not encode a " + image.getWidth() + "x" + image.getHeight()
+                    + " " + format, iox);
+        }
+    }
+
+    /**
+     * Encode an image into the store. Encoders that work row by row (PNG) only pull the rows they're writing,
+     * so a {@link com.example.demo.util.RasterFile} never has to be loaded whole.
+     * @param format the ImageIO format name to encode as
+     */
+    public String storeFile(RenderedImage image, String format, String filename,
+                            Function<String, String> downloadUri) {
+        return storeFile(image, format, filename, null, downloadUri);
+    }
+
+    /**
+     * Same as {@link #storeFile(RenderedImage, String, String, Function)} for the result of a compose, remembering
+     * which compose made it so {@link #storeComposed} can give later identical composes the same bytes
+     * @param composeKey identifies the compose's inputs and settings
+     */
+    public String storeFile(RenderedImage image, String format, String filename, String composeKey,
+                            Function<String, String> downloadUri) {
+        log.info("input filename is " + filename);
+        String fileName = validName(filename);
+
+        Path tempLocation = this.blobLocation.resolve("." + UUID.randomUUID() + ".part");
+        try {
+            metrics.time("encode", () -> encode(image, format, tempLocation));
+            return metrics.time("store", () -> ingest(tempLocation, fileName, hashFile(tempLocation),
+                    Files.size(tempLocation), composeKey, downloadUri)).getFileName();
+        } catch (IOException | UncheckedIOException iox) {
             log.info("IOException in storeFile " + iox.getMessage());
             throw new FileStorageException("FSE " + iox);
+        } finally {
+            deleteQuietly(tempLocation);
+        }
+
+    }
+
+    /**
+     * Encode the previews of a stored file and register them all in one batch, replacing any it already had.
+     * Nothing is stored if the original has changed since the previews were made from it.
+     * @param previews preview size (longest side) to image
+     * @param sourceHash the content hash of the original the previews were made from
+     * @return the names the previews were stored under
+     */
+    public List<String> storePreviews(String fileName, String sourceHash,
+                                      Map<Integer, ? extends RenderedImage> previews,
+                                      Function<String, String> downloadUri) {
+        List<Incoming> incoming = new ArrayList<>();
+        try {
+            for (Map.Entry<Integer, ? extends RenderedImage> preview : previews.entrySet()) {
+                String previewName = previewName(fileName, preview.getKey());
+                Path tempLocation = this.blobLocation.resolve("." + UUID.randomUUID() + ".part");
+                Incoming file = new Incoming(tempLocation, previewName, fileName, preview.getKey());
+                incoming.add(file);
+                encode(preview.getValue(), PREVIEW_FORMAT, tempLocation);
+                file.hashed(hashFile(tempLocation), Files.size(tempLocation));
+            }
+            synchronized (mappingLock) {
+                ImageFile original = repository.findByName(fileName);
+                if (original == null || !sourceHash.equals(original.getContentHash())) {
+                    log.info(fileName + " changed while its previews were being made, dropping them");
+                    return Collections.emptyList();
+                }
+                return ingest(incoming, downloadUri).stream()
+                        .map(StoredFile::getFileName)
+                        .collect(Collectors.toList());
+            }
+        } catch (IOException | UncheckedIOException iox) {
+            throw new FileStorageException("Could not store the previews of " + fileName, iox);
+        } finally {
+            incoming.forEach(file -> deleteQuietly(file.tempLocation));
+        }
+    }
+
+    private long encode(RenderedImage image, String format, Path target) throws IOException {
+        long start = System.nanoTime();
+        long size = encoder.encode(image, format, target);
+        metrics.encoded(format, size);
+        log.info("encoded " + image.getWidth() + "x" + image.getHeight() + " as " + encoder.describe(format) + " in "
+                + (System.nanoTime() - start) / 1_000_000 + "ms, " + size + " bytes");
+        return size;
+    }
+
+    /**
+     * Point a name at the bytes an earlier compose with the same key produced, if they're still stored
+     * @return the name stored, or null if there's nothing to reuse and the compose has to run
+     */
+    public String storeComposed(String composeKey, String filename, Function<String, String> downloadUri) {
+        String fileName = validName(filename);
+        try {
+            synchronized (mappingLock) {
+                ImageFile earlier = repository.findFirstByComposeKey(composeKey);
+                if (earlier == null || earlier.getContentHash() == null) {
+                    return null;
+                }
+                Path blob = blobPath(earlier.getContentHash());
+                if (!Files.exists(blob)) {
+                    return null;
+                }
+                Incoming file = new Incoming(null, fileName, null, null)
+                        .hashed(earlier.getContentHash(), Files.size(blob))
+                        .composed(composeKey);
+                return ingest(Collections.singletonList(file), downloadUri).get(0).getFileName();
+            }
+        } catch (IOException iox) {
+            throw new FileStorageException("Could not store " + fileName, iox);
+        }
+    }
+
+    /**
+     * Keep the fragment assignment a stored compose result was made with, next to its bytes, so it lasts exactly
+     * as long as they do. Results sharing those bytes share it too.
+     * @param fragmentKey identifies the fragments the result was composed from, see {@link FragmentCache}
+     */
+    public void storeAssignment(String resultFile, String fragmentKey, FragmentAssignment assignment)
+            throws IOException {
+        synchronized (mappingLock) {
+            ImageFile result = repository.findByName(resultFile);
+            if (result == null || result.getContentHash() == null) {
+                //deleted since it was stored, nothing to keep it for
+                return;
+            }
+            assignment.write(assignmentPath(result.getContentHash(), fragmentKey));
+        }
+    }
+
+    /**
+     * The assignment {@link #storeAssignment} kept for resultFile's bytes and these fragments, or null if
+     * there isn't one
+     */
+    public FragmentAssignment loadAssignment(String resultFile, String fragmentKey) throws IOException {
+        ImageFile result = repository.findByName(resultFile);
+        if (result == null || result.getContentHash() == null) {
+            return null;
+        }
+        Path stored = assignmentPath(result.getContentHash(), fragmentKey);
+        return Files.exists(stored) ? FragmentAssignment.read(stored) : null;
+    }
+
+    private Path assignmentPath(String hash, String fragmentKey) {
+        Path blob = blobPath(hash);
+        return blob.resolveSibling(blob.getFileName() + "-from-" + fragmentKey + ASSIGNMENT_SUFFIX);
+    }
+
+    /**
+     * Name a preview of fileName, no more than size pixels on its longest side, is stored under. Names like these
+     * are reserved for previews, see {@link #validName}.
+     */
+    public static String previewName(String fileName, int size) {
+        return fileName + ".preview-" + size + "." + PREVIEW_FORMAT;
+    }
+
+    /**
+     * Move a finished temporary file into the blob store (unless we already have those bytes) and point the
+     * name at it, releasing whatever the name pointed at before
+     */
+    private StoredFile ingest(Path tempLocation, String fileName, String hash, long size, String composeKey,
+                              Function<String, String> downloadUri) throws IOException {
+        Incoming file = new Incoming(tempLocation, fileName, null, null).hashed(hash, size).composed(composeKey);
+        synchronized (mappingLock) {
+            return ingest(Collections.singletonList(file), downloadUri).get(0);
+        }
+    }
+
+    /**
+     * Move a batch of finished temporary files into the blob store and save all their rows at once. If that
+     * fails, the blobs this batch brought in are deleted again and nothing else has changed. Once it has
+     * succeeded this doesn't throw, and cleaning up after the names that were replaced is only logged if it fails.
+     * Callers hold mappingLock and pass each name once.
+     */
+    private List<StoredFile> ingest(List<Incoming> files, Function<String, String> downloadUri) throws IOException {
+        Map<String, ImageFile> rows = new LinkedHashMap<>();
+        List<String> replacedHashes = new ArrayList<>();
+        List<String> stalePreviews = new ArrayList<>();
+        List<Path> moved = new ArrayList<>();
+        try {
+            for (Incoming file : files) {
+                if (rows.containsKey(file.fileName)) {
+                    throw new IllegalArgumentException(file.fileName + " comes up twice in one batch");
+                }
+                Path blob = blobPath(file.hash);
+                if (Files.exists(blob)) {
+                    log.info(file.fileName + " is a duplicate of blob " + file.hash + ", not storing it again");
+                } else {
+                    Files.createDirectories(blob.getParent());
+                    Files.move(file.tempLocation, blob, StandardCopyOption.ATOMIC_MOVE);
+                    moved.add(blob);
+                }
+
+                ImageFile imageFile = repository.findByName(file.fileName);
+                if (imageFile == null) {
+                    imageFile = new ImageFile(file.fileName, downloadUri.apply(file.fileName));
+                } else {
+                    String previousHash = imageFile.getContentHash();
+                    if (previousHash != null && !previousHash.equals(file.hash)) {
+                        replacedHashes.add(previousHash);
+                        //previews of the old bytes are no good any more
+                        stalePreviews.add(file.fileName);
+                    }
+                    imageFile.setDownloadUri(downloadUri.apply(file.fileName));
+                }
+                imageFile.setContentHash(file.hash);
+                imageFile.setFileSize(file.size);
+                imageFile.setContentType(URLConnection.guessContentTypeFromName(file.fileName));
+                imageFile.setPreviewOf(file.previewOf);
+                imageFile.setPreviewSize(file.previewSize);
+                imageFile.setComposeKey(file.composeKey);
+                rows.put(file.fileName, imageFile);
+            }
+            repository.saveAll(rows.values());
+        } catch (IOException | RuntimeException ex) {
+            //no row points at them, and another batch can't have picked them up while we hold the lock
+            moved.forEach(this::deleteQuietly);
+            throw ex;
+        }
+
+        //the rows are committed, so the files are stored whatever happens from here on. What's left is tidying
+        //up, and a step that fails only leaves something behind rather than losing an upload.
+        for (String fileName : stalePreviews) {
+            try {
+                dropPreviews(fileName);
+            } catch (IOException | RuntimeException ex) {
+                log.info("Stored " + fileName + " but could not drop its old previews " + ex.getMessage());
+            }
+        }
+        List<StoredFile> stored = new ArrayList<>();
+        for (Incoming file : files) {
+            linkName(file.fileName, blobPath(file.hash));
+            imageCache.invalidate(file.fileName);
+            contentHashes.remove(file.fileName);
+            stored.add(new StoredFile(file.fileName, file.size, file.hash));
+        }
+        for (String hash : replacedHashes) {
+            try {
+                releaseBlob(hash);
+            } catch (IOException | RuntimeException ex) {
+                log.info("Could not release replaced blob " + hash + " " + ex.getMessage());
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Forget the previews of a file and release their blobs. Callers hold mappingLock.
+     */
+    private void dropPreviews(String fileName) throws IOException {
+        List<ImageFile> previews = repository.findByPreviewOf(fileName);
+        if (previews.isEmpty()) {
+            return;
+        }
+        repository.deleteInBatch(previews);
+        for (ImageFile preview : previews) {
+            Files.deleteIfExists(this.fileStorageLocation.resolve(preview.getName()).normalize());
+            if (preview.getContentHash() != null) {
+                releaseBlob(preview.getContentHash());
+            }
+        }
+    }
+
+    /**
+     * Hard link the name into the upload directory. Purely a convenience, so if the file system won't do
+     * hard links we skip it and rely on the name mapping alone.
+     */
+    private void linkName(String fileName, Path blob) {
+        Path namePath = this.fileStorageLocation.resolve(fileName);
+        try {
+            Files.deleteIfExists(namePath);
+            Files.createLink(namePath, blob);
+        } catch (IOException | UnsupportedOperationException ex) {
+            log.info("Not linking " + fileName + " into the upload directory " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Delete a blob if no name refers to it any more. Callers hold mappingLock.
+     */
+    private void releaseBlob(String hash) throws IOException {
+        if (repository.countByContentHash(hash) == 0) {
+            log.info("last reference to blob " + hash + " is gone, deleting it");
+            Path blob = blobPath(hash);
+            Files.deleteIfExists(blob);
+            if (!Files.isDirectory(blob.getParent())) {
+                return;
+            }
+            //and the assignments kept with it
+            try (DirectoryStream<Path> assignments = Files.newDirectoryStream(blob.getParent(),
+                    hash + "-from-*" + ASSIGNMENT_SUFFIX)) {
+                for (Path assignment : assignments) {
+                    Files.deleteIfExists(assignment);
+                }
+            }
         }
+    }
 
+    private Path blobPath(String hash) {
+        return this.blobLocation.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+    }
+
+    /**
+     * Clean up a name something's about to be stored under
+     * @throws ReservedFileNameException if it's a name only {@link #storePreviews} may use
+     */
+    private static String validName(String name) {
+        String fileName = StringUtils.cleanPath(name);
+        if (fileName.contains("..")) {
+            throw new FileStorageException("Invalid path sequence in filename " + fileName);
+        }
+        if (PREVIEW_SUFFIX.matcher(fileName).find()) {
+            throw new ReservedFileNameException("Filename " + fileName + " ends like a preview's");
+        }
+        return fileName;
+    }
+
+    private void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException iox) {
+            log.info("Could not clean up " + path);
+        }
     }
 
     public Resource loadFileAsResource(String fileName) {
         try {
+            //the linked name keeps the file name for downloads; fall back to the blob if there's no link
             Path filePath = this.fileStorageLocation.resolve(fileName).normalize();
+            if (!Files.exists(filePath)) {
+                ImageFile imageFile = repository.findByName(fileName);
+                if (imageFile != null && imageFile.getContentHash() != null) {
+                    filePath = blobPath(imageFile.getContentHash());
+                }
+            }
             Resource resource = new UrlResource(filePath.toUri());
             if (resource.exists()) {
                 return resource;
@@ -99,6 +643,57 @@ public class FileStorageService {
         }
     }
 
+    /**
+     * SHA-256 of a stored file's bytes, as hex. Comes straight from the name mapping for anything in the blob
+     * store; older files are hashed once per version and remembered.
+     */
+    public String getContentHash(String fileName) {
+        ImageFile imageFile = repository.findByName(fileName);
+        if (imageFile != null && imageFile.getContentHash() != null) {
+            return imageFile.getContentHash();
+        }
+        Path filePath = this.fileStorageLocation.resolve(fileName).normalize();
+        try {
+            String lastModified = Long.toString(Files.getLastModifiedTime(filePath).toMillis());
+            String[] known = contentHashes.get(fileName);
+            if (known != null && known[0].equals(lastModified)) {
+                return known[1];
+            }
+            String hash = hashFile(filePath);
+            contentHashes.put(fileName, new String[]{lastModified, hash});
+            return hash;
+        } catch (IOException iox) {
+            throw new MyFileNotFoundException("File not found " + fileName, iox);
+        }
+    }
+
+    private static String hashFile(Path path) throws IOException {
+        MessageDigest digest = sha256();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(path), digest)) {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            while (in.read(buffer) != -1) {
+                //just reading is enough, the stream feeds the digest
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new FileStorageException("SHA-256 isn't available", ex);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
     public boolean deleteFile(String fileName) {
         try {
             if (fileName.contains("..")) {
@@ -106,31 +701,181 @@ public class FileStorageService {
             }
             Path filePath = this.fileStorageLocation.resolve(fileName).normalize();
 
-            Files.delete(filePath);
-            return true;
+            boolean deleted;
+            synchronized (mappingLock) {
+                deleted = Files.deleteIfExists(filePath);
+                ImageFile imageFile = repository.findByName(fileName);
+                if (imageFile != null) {
+                    repository.delete(imageFile);
+                    if (imageFile.getContentHash() != null) {
+                        releaseBlob(imageFile.getContentHash());
+                    }
+                    dropPreviews(fileName);
+                    deleted = true;
+                }
+            }
+            imageCache.invalidate(fileName);
+            contentHashes.remove(fileName);
+            return deleted;
         } catch (IOException iox) {
             log.info("Trouble deleting file " +fileName);
         }
         return false;
     }
 
-    public List<Resource> loadResources() {
-        ArrayList<Resource> resources = new ArrayList<>();
-        try (Stream<Path> paths = Files.walk(Paths.get(this.fileStorageLocation.toString()))){
-            paths.filter(Files::isRegularFile)
-                    .forEach( path -> {
-                        try {
-                            Resource resource = new UrlResource(path.toUri());
-                            if (resource.exists()) {
-                                resources.add(resource);
-                            }
-                        } catch (MalformedURLException ex) {
-                            throw new MyFileNotFoundException("File not found", ex);
-                        }
-                    });
-        } catch (IOException iox) {
-            throw new MyFileNotFoundException("File not found ", iox);
+    public Path getFileStorageLocation() {
+        return fileStorageLocation;
+    }
+
+    /**
+     * Give a file that's sitting in the upload directory without a row (e.g. copied in by hand) a row of its own
+     * @return false if someone registered it in the meantime
+     */
+    public boolean adoptUntracked(String fileName, Function<String, String> downloadUri) throws IOException {
+        Path filePath = this.fileStorageLocation.resolve(fileName).normalize();
+        synchronized (mappingLock) {
+            if (repository.findByName(fileName) != null || !Files.isRegularFile(filePath)) {
+                return false;
+            }
+            ImageFile imageFile = new ImageFile(fileName, downloadUri.apply(fileName));
+            imageFile.setFileSize(Files.size(filePath));
+            imageFile.setContentType(URLConnection.guessContentTypeFromName(fileName));
+            imageFile.setCreatedAt(Files.getLastModifiedTime(filePath).toMillis());
+            repository.save(imageFile);
+            return true;
+        }
+    }
+
+    /**
+     * Drop a row whose bytes are gone from both the upload directory and the blob store
+     * @return true if the row was removed
+     */
+    public boolean forgetIfMissing(ImageFile imageFile) {
+        synchronized (mappingLock) {
+            boolean linked = Files.exists(this.fileStorageLocation.resolve(imageFile.getName()).normalize());
+            boolean blobbed = imageFile.getContentHash() != null && Files.exists(blobPath(imageFile.getContentHash()));
+            if (linked || blobbed || !repository.existsById(imageFile.getId())) {
+                return false;
+            }
+            repository.delete(imageFile);
+        }
+        imageCache.invalidate(imageFile.getName());
+        return true;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        uploadExecutor.shutdownNow();
+    }
+
+    /**
+     * An upload on its way into the blob store, see {@link #beginUpload}. Not thread safe.
+     */
+    public class Upload implements Closeable {
+
+        private final String fileName;
+        private final long maxBytes;
+        private final Path tempLocation;
+        private final FileChannel channel;
+        private final MessageDigest digest = sha256();
+        private long size;
+        //set once the bytes are all in, and taken by the ingest that stores them
+        private Incoming received;
+
+        private Upload(String fileName, long maxBytes) throws IOException {
+            this.fileName = fileName;
+            this.maxBytes = maxBytes;
+            this.tempLocation = blobLocation.resolve("." + UUID.randomUUID() + ".part");
+            this.channel = FileChannel.open(tempLocation, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+
+        /**
+         * @throws FileStorageException once there's more than maxBytes
+         */
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            size += length;
+            if (size > maxBytes) {
+                throw new FileStorageException("Upload of " + fileName + " is larger than " + maxBytes + " bytes");
+            }
+            digest.update(bytes, offset, length);
+            ByteBuffer chunk = ByteBuffer.wrap(bytes, offset, length);
+            while (chunk.hasRemaining()) {
+                channel.write(chunk);
+            }
+        }
+
+        void writeAll(InputStream in) throws IOException {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                write(buffer, 0, read);
+            }
+        }
+
+        /**
+         * Everything's been written: move the bytes into place and point the name at them
+         * @param downloadUri maps the stored name to the URI it'll be served from
+         */
+        public StoredFile finish(Function<String, String> downloadUri) throws IOException {
+            Incoming file = received();
+            synchronized (mappingLock) {
+                return ingest(Collections.singletonList(file), downloadUri).get(0);
+            }
+        }
+
+        private Incoming received() throws IOException {
+            if (received == null) {
+                channel.close();
+                metrics.uploaded(size);
+                received = new Incoming(tempLocation, fileName, null, null).hashed(toHex(digest.digest()), size);
+            }
+            return received;
+        }
+
+        /**
+         * Drop whatever's left of the temporary file; a no-op once the upload has been stored
+         */
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException iox) {
+                log.info("Could not close upload of " + fileName + " " + iox.getMessage());
+            }
+            deleteQuietly(tempLocation);
+        }
+    }
+
+    /**
+     * A finished temporary file on its way into the blob store
+     */
+    private static class Incoming {
+        final Path tempLocation;
+        final String fileName;
+        //set for previews: the file this is a preview of, and its size
+        final String previewOf;
+        final Integer previewSize;
+        //set for compose results, see storeComposed
+        String composeKey;
+        String hash;
+        long size;
+
+        Incoming(Path tempLocation, String fileName, String previewOf, Integer previewSize) {
+            this.tempLocation = tempLocation;
+            this.fileName = fileName;
+            this.previewOf = previewOf;
+            this.previewSize = previewSize;
+        }
+
+        Incoming hashed(String hash, long size) {
+            this.hash = hash;
+            this.size = size;
+            return this;
+        }
+
+        Incoming composed(String composeKey) {
+            this.composeKey = composeKey;
+            return this;
         }
-        return resources;
     }
 }
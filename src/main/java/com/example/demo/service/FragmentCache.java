@@ -0,0 +1,204 @@
+package com.example.demo.service;
+
+import com.example.demo.exception.FileStorageException;
+import com.example.demo.property.FileStorageProperties;
+import com.example.demo.util.FragmentAssignment;
+import com.example.demo.util.Resampler;
+import com.example.demo.util.SourceFragments;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On-disk cache of broken-down compose sources.
+ *
+ * Files are keyed by the SHA-256 of the source image's bytes plus the size it was scaled to, how it was scaled
+ * and the fragment size, so they never go stale: a changed upload simply hashes to a different file. A hit maps
+ * the file back in and skips decoding, scaling and breakdown of the source altogether.
+ * The directory is kept under file.fragment-cache-max-megabytes by deleting the least recently used files after
+ * each write, as hits refresh a file's modified time.
+ * The source's pixels stay in that mapping rather than on the heap, so every compose of a source shares one copy of
+ * them in the page cache.
+ *
+ * The fragment assignments of recomposable results are looked up here by the key of the fragments they were
+ * composed from, so a recompose only finds one made from the same source on the same grid. They're stored with
+ * the result itself rather than in this directory, see {@link FileStorageService#storeAssignment}.
+ */
+@Service
+public class FragmentCache {
+
+    public interface Loader {
+        SourceFragments load() throws IOException;
+    }
+
+    Logger log = LoggerFactory.getLogger(FragmentCache.class);
+
+    private final Path cacheLocation;
+    private final long maxBytes;
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final FileStorageService fileStorageService;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    @Autowired
+    public FragmentCache(FileStorageProperties fileStorageProperties, FileStorageService fileStorageService,
+                         PipelineMetrics metrics) {
+        this.fileStorageService = fileStorageService;
+        metrics.monitorCache("fragments", this, cache -> cache.hits.get(), cache -> cache.misses.get());
+        this.cacheLocation = Paths.get(fileStorageProperties.getFragmentCacheDir())
+                .toAbsolutePath().normalize();
+        this.maxBytes = fileStorageProperties.getFragmentCacheMaxMegabytes() * 1024 * 1024;
+
+        try {
+            Files.createDirectories(this.cacheLocation);
+        } catch (Exception ex) {
+            throw new FileStorageException("Could not create the directory where fragment caches will live.", ex);
+        }
+    }
+
+    /**
+     * Fragments of sourceFile scaled to width x height, read from disk if we've built them before
+     * @param scaling how the loader scales the source; differently scaled sources are cached separately
+     * @param loader builds the fragments on a miss; the result is written out for next time
+     */
+    public SourceFragments get(String sourceFile, int width, int height, int fragWidth, int fragHeight,
+                               Resampler.Method scaling, Loader loader) throws IOException {
+        String key = key(sourceFile, width, height, fragWidth, fragHeight, scaling) + ".frag";
+        Path cached = cacheLocation.resolve(key);
+        if (Files.exists(cached)) {
+            try {
+                SourceFragments fragments = SourceFragments.read(cached);
+                hits.incrementAndGet();
+                touch(cached);
+                return fragments;
+            } catch (IOException iox) {
+                log.info("Ignoring unreadable fragment cache " + key + " " + iox.getMessage());
+            }
+        }
+
+        misses.incrementAndGet();
+        SourceFragments fragments = loader.load();
+        try {
+            fragments.write(cached);
+            evict();
+            //compose from the file's mapping too, so the pixels just built can go before the compose starts
+            return SourceFragments.read(cached);
+        } catch (IOException iox) {
+            //not worth failing the compose over, we'll just rebuild next time
+            log.info("Could not write fragment cache " + key + " " + iox.getMessage());
+        }
+        return fragments;
+    }
+
+    private void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException iox) {
+            //it only loses its place in the eviction order
+            log.debug("Could not touch fragment cache " + file.getFileName() + " " + iox.getMessage());
+        }
+    }
+
+    /**
+     * Delete the least recently used files until the cache fits in its budget again. One write evicts at a time;
+     * the others skip it, as whoever is evicting will see their files too.
+     */
+    void evict() {
+        if (maxBytes <= 0 || !evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            List<Path> files = new ArrayList<>();
+            Map<Path, BasicFileAttributes> attributes = new HashMap<>();
+            long total = 0;
+            try (DirectoryStream<Path> dir = Files.newDirectoryStream(cacheLocation)) {
+                for (Path file : dir) {
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                    } catch (IOException iox) {
+                        //another writer's temporary file, moved into place since we listed it
+                        continue;
+                    }
+                    if (attrs.isRegularFile()) {
+                        files.add(file);
+                        attributes.put(file, attrs);
+                        total += attrs.size();
+                    }
+                }
+            }
+            files.sort(Comparator.comparing(file -> attributes.get(file).lastModifiedTime()));
+            for (Path file : files) {
+                if (total <= maxBytes) {
+                    break;
+                }
+                try {
+                    //a compose still reading it keeps its mapping, the file is only gone for the next one
+                    Files.deleteIfExists(file);
+                    total -= attributes.get(file).size();
+                    log.info("Evicted fragment cache " + file.getFileName());
+                } catch (IOException iox) {
+                    //Windows won't delete a file that's mapped, it'll go on a later pass
+                    log.debug("Could not evict fragment cache " + file.getFileName() + " " + iox.getMessage());
+                }
+            }
+        } catch (IOException iox) {
+            log.info("Could not evict from the fragment cache " + iox.getMessage());
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * The assignment that resultFile was composed with, if it was composed from sourceFile scaled and broken down
+     * this way and we still have it
+     */
+    public FragmentAssignment getAssignment(String resultFile, String sourceFile, int width, int height,
+                                            int fragWidth, int fragHeight, Resampler.Method scaling) {
+        String key = key(sourceFile, width, height, fragWidth, fragHeight, scaling);
+        try {
+            return fileStorageService.loadAssignment(resultFile, key);
+        } catch (IOException iox) {
+            log.info("Ignoring unreadable assignment of " + resultFile + " " + iox.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Remember the assignment resultFile was just composed with, for as long as resultFile's bytes are stored
+     */
+    public void putAssignment(String resultFile, String sourceFile, Resampler.Method scaling,
+                              FragmentAssignment assignment) {
+        String key = key(sourceFile, assignment.getWidth(), assignment.getHeight(), assignment.getFragWidth(),
+                assignment.getFragHeight(), scaling);
+        try {
+            fileStorageService.storeAssignment(resultFile, key, assignment);
+        } catch (IOException iox) {
+            //the next recompose of this result will just be a full one
+            log.info("Could not keep the assignment of " + resultFile + " " + iox.getMessage());
+        }
+    }
+
+    private String key(String sourceFile, int width, int height, int fragWidth, int fragHeight,
+                       Resampler.Method scaling) {
+        return fileStorageService.getContentHash(sourceFile)
+                + "-" + width + "x" + height + "-" + scaling.name().toLowerCase()
+                + "-" + fragWidth + "x" + fragHeight;
+    }
+}
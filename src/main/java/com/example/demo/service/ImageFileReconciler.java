@@ -0,0 +1,83 @@
+package com.example.demo.service;
+
+import com.example.demo.model.ImageFile;
+import com.example.demo.model.ImageFileRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * /list is served from the imageFiles table, so this keeps the table honest about what's on disk:
+ * files that show up in the upload directory without a row get one, and rows whose file is gone are dropped.
+ * Runs in the background every file.reconcile-interval-ms, walking the table in id order one page at a time.
+ */
+@Component
+public class ImageFileReconciler {
+
+    private static final int PAGE_SIZE = 500;
+
+    Logger log = LoggerFactory.getLogger(ImageFileReconciler.class);
+
+    private final FileStorageService fileStorageService;
+    private final ImageFileRepository repository;
+    private final String host;
+
+    @Autowired
+    public ImageFileReconciler(FileStorageService fileStorageService, ImageFileRepository repository,
+                               @Value("${host}") String host) {
+        this.fileStorageService = fileStorageService;
+        this.repository = repository;
+        this.host = host;
+    }
+
+    @Scheduled(initialDelayString = "${file.reconcile-initial-delay-ms:10000}",
+            fixedDelayString = "${file.reconcile-interval-ms:300000}")
+    public void reconcile() {
+        int forgotten = 0;
+        long lastId = Long.MIN_VALUE;
+        List<ImageFile> page;
+        do {
+            page = repository.findByIdGreaterThanOrderByIdAsc(lastId, PageRequest.of(0, PAGE_SIZE));
+            for (ImageFile imageFile : page) {
+                if (fileStorageService.forgetIfMissing(imageFile)) {
+                    forgotten++;
+                }
+                lastId = imageFile.getId();
+            }
+        } while (page.size() == PAGE_SIZE);
+
+        int adopted = 0;
+        //one query for every name rather than one per file on disk; adoptUntracked checks again under the lock
+        Set<String> known = new HashSet<>(repository.findAllNames());
+        Path location = fileStorageService.getFileStorageLocation();
+        try (Stream<Path> paths = Files.walk(location)) {
+            for (Path path : (Iterable<Path>) paths.filter(Files::isRegularFile)::iterator) {
+                String fileName = location.relativize(path).toString().replace('\\', '/');
+                //skip anything hidden, like uploads still in flight
+                if (path.getFileName().toString().startsWith(".") || known.contains(fileName)) {
+                    continue;
+                }
+                if (fileStorageService.adoptUntracked(fileName, name -> host + "/downloadFile/" + name)) {
+                    adopted++;
+                }
+            }
+        } catch (IOException iox) {
+            log.info("Trouble walking the upload directory " + iox.getMessage());
+        }
+        if (forgotten > 0 || adopted > 0) {
+            log.info("reconciled file table: dropped " + forgotten + ", added " + adopted);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.demo.service;
+
+import com.example.demo.util.ComposeMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes each compose at most once: a compose whose result is already stored reuses it, and one that's identical
+ * to a compose running right now waits for that one's result instead of making its own.
+ * If the compose being waited for fails, so do the ones waiting for it, as they'd fail the same way. If it's
+ * cancelled, one of them runs it instead.
+ */
+class InFlightComposes {
+
+    interface Lookup {
+        /**
+         * The stored result of an earlier identical compose, or null if there isn't one
+         */
+        String find();
+    }
+
+    interface Work {
+        /**
+         * Make and store the result, returning the name it was stored under
+         */
+        String compose() throws IOException;
+    }
+
+    Logger log = LoggerFactory.getLogger(InFlightComposes.class);
+
+    //composes running right now by key
+    private final ConcurrentHashMap<String, CompletableFuture<String>> running = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param key identifies the compose's inputs and everything that changes its output
+     * @param monitor our own compose's, checked while waiting for someone else's
+     * @param stored finds the result of an identical compose that has finished
+     * @param work runs the compose when nobody has made or is making it
+     */
+    String compose(String key, ComposeMonitor monitor, Lookup stored, Work work) throws IOException {
+        while (true) {
+            String reused = stored.find();
+            if (reused != null) {
+                hits.incrementAndGet();
+                log.info("{} is the same compose as an earlier result, reusing its bytes", reused);
+                return reused;
+            }
+            CompletableFuture<String> ours = new CompletableFuture<>();
+            CompletableFuture<String> other = running.putIfAbsent(key, ours);
+            if (other != null) {
+                await(other, monitor);
+                continue;
+            }
+            try {
+                //the identical compose we'd have waited for may have finished just before we registered
+                String finished = stored.find();
+                if (finished != null) {
+                    hits.incrementAndGet();
+                    ours.complete(finished);
+                    return finished;
+                }
+                misses.incrementAndGet();
+                String result = work.compose();
+                ours.complete(result);
+                return result;
+            } catch (CancellationException ex) {
+                ours.cancel(false);
+                throw ex;
+            } catch (IOException | RuntimeException ex) {
+                ours.completeExceptionally(ex);
+                throw ex;
+            } finally {
+                running.remove(key, ours);
+                if (!ours.isDone()) {
+                    ours.cancel(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait for someone else's identical compose to finish. Returns once it has stored its result, or once it's
+     * been cancelled, in which case the caller runs the compose itself.
+     * @throws CancellationException if our own compose is cancelled while waiting
+     */
+    private void await(CompletableFuture<String> other, ComposeMonitor monitor) throws IOException {
+        log.info("an identical compose is already running, waiting for its result");
+        while (true) {
+            if (monitor.isCancelled()) {
+                throw new CancellationException("Compose cancelled");
+            }
+            try {
+                other.get(1, TimeUnit.SECONDS);
+                return;
+            } catch (TimeoutException ex) {
+                //still running, check whether we've been cancelled and keep waiting
+            } catch (CancellationException ex) {
+                return;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted waiting for an identical compose");
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                if (ex.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ex.getCause();
+                }
+                throw new IllegalStateException("Identical compose failed", ex.getCause());
+            }
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+}
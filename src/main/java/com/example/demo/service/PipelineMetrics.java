@@ -0,0 +1,123 @@
+package com.example.demo.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Micrometer meters for the upload, compose and download pipeline, published by Actuator under
+ * /actuator/metrics.
+ *
+ * Every compose phase (decode, normalize, breakdown, match, encode, store) is recorded by the compose.phase
+ * timer, tagged with the phase. Bytes received by uploads and sent by downloads go to upload.bytes and
+ * download.bytes, and the size of every encoded image to encode.bytes tagged with its format. The background
+ * pools report their queue depth and activity as executor.* meters tagged with the pool's name, and the caches
+ * report hits and misses as cache.gets.
+ *
+ * Spring Boot 2.3 has no tracer built in. With metrics.phase-spans on, each phase is also logged as a span
+ * line, so a single slow compose can be followed phase by phase.
+ */
+@Component
+public class PipelineMetrics {
+
+    /**
+     * One phase of the pipeline
+     */
+    public interface Phase<T> {
+        T run() throws IOException;
+    }
+
+    Logger log = LoggerFactory.getLogger(PipelineMetrics.class);
+
+    private final MeterRegistry registry;
+    private final boolean phaseSpans;
+    private final ConcurrentHashMap<String, Timer> phaseTimers = new ConcurrentHashMap<>();
+    private final DistributionSummary uploadBytes;
+    private final DistributionSummary downloadBytes;
+    private final ConcurrentHashMap<String, DistributionSummary> encodeBytes = new ConcurrentHashMap<>();
+
+    @Autowired
+    public PipelineMetrics(MeterRegistry registry, @Value("${metrics.phase-spans:false}") boolean phaseSpans) {
+        this.registry = registry;
+        this.phaseSpans = phaseSpans;
+        this.uploadBytes = DistributionSummary.builder("upload.bytes")
+                .description("Bytes received per uploaded file")
+                .baseUnit("bytes")
+                .register(registry);
+        this.downloadBytes = DistributionSummary.builder("download.bytes")
+                .description("Bytes sent per download")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    /**
+     * Run one phase of a compose, timing it under compose.phase
+     */
+    public <T> T time(String phase, Phase<T> work) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return work.run();
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            phaseTimers.computeIfAbsent(phase, name -> Timer.builder("compose.phase")
+                    .description("Time spent in each phase of a compose")
+                    .tag("phase", name)
+                    .register(registry))
+                    .record(elapsed, TimeUnit.NANOSECONDS);
+            if (phaseSpans) {
+                log.info("span phase={} thread={} ms={}", phase, Thread.currentThread().getName(),
+                        TimeUnit.NANOSECONDS.toMillis(elapsed));
+            }
+        }
+    }
+
+    public void uploaded(long bytes) {
+        uploadBytes.record(bytes);
+    }
+
+    public void downloaded(long bytes) {
+        downloadBytes.record(bytes);
+    }
+
+    public void encoded(String format, long bytes) {
+        encodeBytes.computeIfAbsent(format, name -> DistributionSummary.builder("encode.bytes")
+                .description("Size of each encoded image")
+                .baseUnit("bytes")
+                .tag("format", name)
+                .register(registry))
+                .record(bytes);
+    }
+
+    /**
+     * Publish a pool's queue depth, active threads and completed tasks as executor.* tagged name=name
+     */
+    public void monitor(ExecutorService executor, String name) {
+        new ExecutorServiceMetrics(executor, name, Collections.emptyList()).bindTo(registry);
+    }
+
+    /**
+     * Publish a cache's hit and miss counts as cache.gets tagged cache=name and result=hit or miss
+     */
+    public <T> void monitorCache(String name, T cache, ToDoubleFunction<T> hits, ToDoubleFunction<T> misses) {
+        FunctionCounter.builder("cache.gets", cache, hits)
+                .tags("cache", name, "result", "hit")
+                .register(registry);
+        FunctionCounter.builder("cache.gets", cache, misses)
+                .tags("cache", name, "result", "miss")
+                .register(registry);
+    }
+}
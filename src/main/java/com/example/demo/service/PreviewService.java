@@ -0,0 +1,147 @@
+package com.example.demo.service;
+
+import com.example.demo.model.ImageFile;
+import com.example.demo.model.ImageFileRepository;
+import com.example.demo.property.FileStorageProperties;
+import com.example.demo.util.ImageDecoder;
+import net.coobird.thumbnailator.Thumbnails;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Makes smaller copies of uploads in the background so the gallery doesn't have to download originals.
+ *
+ * Each upload is decoded once (subsampled, see {@link ImageDecoder}) for the largest preview, and every smaller
+ * preview is scaled from the one above it with Thumbnailator. An upload's previews are stored and registered
+ * together in one batch. Previews are never bigger than the original, and are dropped by
+ * {@link FileStorageService} whenever the original changes or goes away.
+ */
+@Service
+public class PreviewService {
+
+    Logger log = LoggerFactory.getLogger(PreviewService.class);
+
+    private final FileStorageService fileStorageService;
+    private final ImageFileRepository repository;
+    //longest sides, smallest first
+    private final int[] sizes;
+    private final ThreadPoolExecutor executor;
+
+    @Autowired
+    public PreviewService(FileStorageService fileStorageService, ImageFileRepository repository,
+                          FileStorageProperties fileStorageProperties, PipelineMetrics metrics) {
+        this.fileStorageService = fileStorageService;
+        this.repository = repository;
+        this.sizes = Arrays.stream(fileStorageProperties.getPreviewSizes()).filter(size -> size > 0)
+                .sorted().distinct().toArray();
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "preview-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        };
+        this.executor = new ThreadPoolExecutor(fileStorageProperties.getPreviewWorkerThreads(),
+                fileStorageProperties.getPreviewWorkerThreads(), 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(fileStorageProperties.getPreviewQueueCapacity()), threadFactory,
+                new ThreadPoolExecutor.AbortPolicy());
+        metrics.monitor(executor, "previews");
+    }
+
+    /**
+     * Queue up the previews of a file that's just been stored. If the queue is full the file simply goes without
+     * previews and downloads of it fall back to the original.
+     * @param downloadUri maps a preview's name to its download URI; called off the request thread
+     */
+    public void generate(String fileName, Function<String, String> downloadUri) {
+        if (sizes.length == 0) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    makePreviews(fileName, downloadUri);
+                } catch (IOException | RuntimeException ex) {
+                    log.info("No previews for " + fileName + " " + ex.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            log.info("Preview queue is full, not making previews of " + fileName);
+        }
+    }
+
+    /**
+     * The name to serve when someone asks for fileName at size pixels: the smallest preview at least that big,
+     * or the original if there isn't one
+     */
+    public String previewFor(String fileName, int size) {
+        for (int previewSize : sizes) {
+            if (previewSize < size) {
+                continue;
+            }
+            ImageFile preview = repository.findByName(FileStorageService.previewName(fileName, previewSize));
+            if (preview != null && fileName.equals(preview.getPreviewOf())) {
+                return preview.getName();
+            }
+        }
+        return fileName;
+    }
+
+    private void makePreviews(String fileName, Function<String, String> downloadUri) throws IOException {
+        //previews go whenever the original changes, so any that are left are up to date
+        if (!repository.findByPreviewOf(fileName).isEmpty()) {
+            return;
+        }
+        String hash = fileStorageService.getContentHash(fileName);
+        File file = fileStorageService.loadFileAsResource(fileName).getFile();
+        Dimension size = ImageDecoder.displayedSize(file);
+        int longest = Math.max(size.width, size.height);
+        int largest = sizes[sizes.length - 1];
+        double fit = Math.min(1.0, (double) largest / longest);
+        BufferedImage image = ImageDecoder.decode(file, Math.max(1, (int) (size.width * fit)),
+                Math.max(1, (int) (size.height * fit)));
+
+        //largest first, each scaled from the one before
+        Map<Integer, BufferedImage> previews = new TreeMap<>();
+        for (int i = sizes.length - 1; i >= 0; i--) {
+            if (sizes[i] >= longest) {
+                //the original is already small enough
+                continue;
+            }
+            image = Thumbnails.of(image)
+                    .size(sizes[i], sizes[i])
+                    .imageType(BufferedImage.TYPE_INT_RGB)
+                    .asBufferedImage();
+            previews.put(sizes[i], image);
+        }
+        if (previews.isEmpty()) {
+            return;
+        }
+        List<String> stored = fileStorageService.storePreviews(fileName, hash, previews, downloadUri);
+        log.info("stored " + stored.size() + " previews of " + fileName);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.demo.service;
+
+/**
+ * How one file of a batch upload went: what was stored, or why it wasn't
+ */
+public class StoreResult {
+
+    private final String fileName;
+    private final StoredFile stored;
+    private final String error;
+
+    private StoreResult(String fileName, StoredFile stored, String error) {
+        this.fileName = fileName;
+        this.stored = stored;
+        this.error = error;
+    }
+
+    public static StoreResult succeeded(StoredFile stored) {
+        return new StoreResult(stored.getFileName(), stored, null);
+    }
+
+    public static StoreResult failed(String fileName, String error) {
+        return new StoreResult(fileName, null, error);
+    }
+
+    public boolean isSucceeded() {
+        return stored != null;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * @return null if the file wasn't stored
+     */
+    public StoredFile getStored() {
+        return stored;
+    }
+
+    public String getError() {
+        return error;
+    }
+}
@@ -0,0 +1,29 @@
+package com.example.demo.service;
+
+/**
+ * What we learned about a file while writing it: where it ended up, how big it is and its SHA-256
+ */
+public class StoredFile {
+
+    private final String fileName;
+    private final long size;
+    private final String contentHash;
+
+    public StoredFile(String fileName, long size, String contentHash) {
+        this.fileName = fileName;
+        this.size = size;
+        this.contentHash = contentHash;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+}
@@ -0,0 +1,273 @@
+package com.example.demo.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Treats the compose as one assignment problem: give every model fragment its own source fragment so that the
+ * total feature distance over the whole image is as small as possible.
+ *
+ * The greedy composers hand each model fragment the nearest fragment that's left, so fragments late in the scan
+ * only get what the early ones didn't want. Here every model fragment first collects its {@link #CANDIDATES}
+ * nearest source fragments from the full pool in a single search, in parallel, and a greedy pass over those lists
+ * gives the starting assignment. Swap refinement then improves on it: in each round every model fragment looks,
+ * in parallel, for the candidate whose owner it should trade with to lower the total distance, and the trades
+ * that still pay off are applied one by one. Rounds repeat until nothing improves or the time budget runs out,
+ * so the budget bounds how much longer than a greedy compose this takes.
+ */
+public class AssignmentComposer {
+
+    /** how many nearest source fragments each model fragment considers trading for */
+    private static final int CANDIDATES = 8;
+    /** model fragments per parallel task */
+    private static final int CHUNK = 1024;
+
+    static Logger log = LoggerFactory.getLogger(AssignmentComposer.class);
+
+    private final int[] modelPixels;
+    private final int[] resultPixels;
+    private final int width;
+    private final int fragWidth;
+    private final int fragHeight;
+    private final int columns;
+    private final int rows;
+    private final SourceFragments fragments;
+    private final int parallelism;
+    private final long budgetMillis;
+
+    public AssignmentComposer(int[] modelPixels, int[] resultPixels, int width, int height,
+                              SourceFragments fragments, int parallelism, long budgetMillis) {
+        this.modelPixels = modelPixels;
+        this.resultPixels = resultPixels;
+        this.width = width;
+        this.fragWidth = fragments.getFragWidth();
+        this.fragHeight = fragments.getFragHeight();
+        this.columns = width / fragWidth;
+        this.rows = height / fragHeight;
+        this.fragments = fragments;
+        this.parallelism = Math.max(1, parallelism);
+        this.budgetMillis = budgetMillis;
+    }
+
+    /**
+     * @return the source fragment placed at every model fragment, by column-major id
+     */
+    public int[] compose(ComposeMonitor monitor) {
+        return compose(monitor, null);
+    }
+
+    /**
+     * Same as {@link #compose(ComposeMonitor)} on shared workers, left running afterwards; null for a pool of
+     * its own
+     */
+    int[] compose(ComposeMonitor monitor, ForkJoinPool shared) {
+        byte[] modelFeatures = FragmentIndex.computeFeatures(modelPixels, width, rows * fragHeight,
+                fragWidth, fragHeight);
+        byte[] sourceFeatures = fragments.getFeatures();
+        int count = columns * rows;
+        ForkJoinPool pool = shared != null ? shared : new ForkJoinPool(parallelism);
+        try {
+            int[] candidates = candidates(pool, modelFeatures, monitor);
+            //assignment[model fragment] = source fragment, owner is the inverse
+            int[] assignment = initial(modelFeatures, sourceFeatures, candidates, monitor);
+            int[] owner = new int[count];
+            long total = 0;
+            for (int id = 0; id < count; id++) {
+                owner[assignment[id]] = id;
+                total += distance(modelFeatures, id, sourceFeatures, assignment[id]);
+            }
+            log.info("Starting assignment costs " + total + ", refining for up to " + budgetMillis + "ms");
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+            int rounds = 0;
+            long swapped;
+            do {
+                monitor.checkCancelled();
+                swapped = refine(pool, modelFeatures, sourceFeatures, candidates, assignment, owner);
+                total -= swapped;
+                rounds++;
+            } while (swapped > 0 && System.nanoTime() < deadline);
+            log.info("Refined assignment costs " + total + " after " + rounds + " rounds");
+
+            for (int id = 0; id < count; id++) {
+                fragments.copyFragment(assignment[id], resultPixels,
+                        (id % rows) * fragHeight * width + (id / rows) * fragWidth);
+            }
+            return assignment;
+        } finally {
+            if (pool != shared) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * candidates[id * CANDIDATES + c] is the c-th nearest source fragment to model fragment id over the whole
+     * pool, nearest first, -1 past the end of a short list
+     */
+    private int[] candidates(ForkJoinPool pool, byte[] modelFeatures, ComposeMonitor monitor) {
+        int count = columns * rows;
+        //nearest() only reads the index, so every task can share it
+        FragmentIndex index = fragments.index();
+        int[] candidates = new int[count * CANDIDATES];
+        Arrays.fill(candidates, -1);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int start = 0; start < count; start += CHUNK) {
+            final int from = start;
+            final int to = Math.min(count, start + CHUNK);
+            tasks.add(() -> {
+                for (int id = from; id < to; id++) {
+                    if ((id - from) % rows == 0) {
+                        monitor.checkCancelled();
+                    }
+                    index.nearest(modelFeatures, id * FragmentIndex.FEATURE_LENGTH, candidates, id * CANDIDATES,
+                            CANDIDATES);
+                }
+                return null;
+            });
+        }
+        ParallelComposer.runAll(pool, tasks);
+        return candidates;
+    }
+
+    /**
+     * The starting assignment. Column by column, every model fragment takes its nearest unused candidate, like
+     * the greedy composers would. The ones whose candidates have all gone are paired up with the unused source
+     * fragments in order of brightness, rather than paying for an exact search each; refinement sorts them out.
+     */
+    private int[] initial(byte[] modelFeatures, byte[] sourceFeatures, int[] candidates, ComposeMonitor monitor) {
+        int count = columns * rows;
+        boolean[] used = new boolean[count];
+        int[] assignment = new int[count];
+        long[] leftovers = new long[count];
+        int unmatched = 0;
+        for (int i = 0; i < columns; i++) {
+            monitor.checkCancelled();
+            for (int j = 0; j < rows; j++) {
+                int id = i * rows + j;
+                int match = -1;
+                for (int c = 0; c < CANDIDATES; c++) {
+                    int candidate = candidates[id * CANDIDATES + c];
+                    if (candidate < 0) {
+                        break;
+                    }
+                    if (!used[candidate]) {
+                        match = candidate;
+                        break;
+                    }
+                }
+                if (match < 0) {
+                    leftovers[unmatched++] = brightness(modelFeatures, id) << 32 | id;
+                    continue;
+                }
+                used[match] = true;
+                assignment[id] = match;
+            }
+            monitor.advance(rows);
+        }
+
+        long[] unused = new long[unmatched];
+        int n = 0;
+        for (int id = 0; id < count; id++) {
+            if (!used[id]) {
+                unused[n++] = brightness(sourceFeatures, id) << 32 | id;
+            }
+        }
+        Arrays.sort(leftovers, 0, unmatched);
+        Arrays.sort(unused);
+        for (int k = 0; k < unmatched; k++) {
+            assignment[(int) leftovers[k]] = (int) unused[k];
+        }
+        log.info(unmatched + " of " + count + " fragments ran out of candidates");
+        return assignment;
+    }
+
+    private static long brightness(byte[] features, int id) {
+        int offset = id * FragmentIndex.FEATURE_LENGTH;
+        return (features[offset] & 0xFF) + (features[offset + 1] & 0xFF) + (features[offset + 2] & 0xFF);
+    }
+
+    /**
+     * One round of swap refinement. Every model fragment proposes its best trade against the current assignment
+     * in parallel; the proposals are then re-checked and applied in fragment order, since earlier trades in the
+     * round may have changed who owns what.
+     * @return how much the total distance went down
+     */
+    private long refine(ForkJoinPool pool, byte[] modelFeatures, byte[] sourceFeatures, int[] candidates,
+                        int[] assignment, int[] owner) {
+        int count = columns * rows;
+        int[] proposals = new int[count];
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int start = 0; start < count; start += CHUNK) {
+            final int from = start;
+            final int to = Math.min(count, start + CHUNK);
+            tasks.add(() -> {
+                for (int a = from; a < to; a++) {
+                    int best = -1;
+                    int bestGain = 0;
+                    for (int c = 0; c < CANDIDATES; c++) {
+                        int s = candidates[a * CANDIDATES + c];
+                        if (s < 0) {
+                            break;
+                        }
+                        int gain = gain(modelFeatures, sourceFeatures, assignment, owner, a, s);
+                        if (gain > bestGain) {
+                            bestGain = gain;
+                            best = s;
+                        }
+                    }
+                    proposals[a] = best;
+                }
+                return null;
+            });
+        }
+        ParallelComposer.runAll(pool, tasks);
+
+        long improvement = 0;
+        for (int a = 0; a < count; a++) {
+            int s = proposals[a];
+            if (s < 0) {
+                continue;
+            }
+            int gain = gain(modelFeatures, sourceFeatures, assignment, owner, a, s);
+            if (gain <= 0) {
+                continue;
+            }
+            int b = owner[s];
+            int mine = assignment[a];
+            assignment[a] = s;
+            owner[s] = a;
+            assignment[b] = mine;
+            owner[mine] = b;
+            improvement += gain;
+        }
+        return improvement;
+    }
+
+    /**
+     * How much the total distance drops if model fragment a takes source fragment s and gives its own to the
+     * fragment that has s now
+     */
+    private static int gain(byte[] modelFeatures, byte[] sourceFeatures, int[] assignment, int[] owner,
+                            int a, int s) {
+        int mine = assignment[a];
+        if (mine == s) {
+            return 0;
+        }
+        int b = owner[s];
+        return distance(modelFeatures, a, sourceFeatures, mine) + distance(modelFeatures, b, sourceFeatures, s)
+                - distance(modelFeatures, a, sourceFeatures, s) - distance(modelFeatures, b, sourceFeatures, mine);
+    }
+
+    private static int distance(byte[] modelFeatures, int model, byte[] sourceFeatures, int source) {
+        return FragmentIndex.distance(modelFeatures, model * FragmentIndex.FEATURE_LENGTH,
+                sourceFeatures, source * FragmentIndex.FEATURE_LENGTH);
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.demo.util;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An ImageOutputStream onto a FileChannel through one reusable buffer.
+ *
+ * ImageIO's FileImageOutputStream hands every write straight to a RandomAccessFile, and the encoders write in
+ * pieces of a few bytes to a few KB, so most of an encode's system calls go on that. Here writes collect in the
+ * buffer and go out in one positional write per buffer. Seeking back (the PNG writer does it for each chunk's
+ * length) flushes first, as does reading. The channel belongs to the caller and stays open on {@link #close()}.
+ */
+public class ChannelImageOutputStream extends ImageOutputStreamImpl {
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    //file position the start of the buffer is headed for
+    private long bufferStart;
+
+    public ChannelImageOutputStream(FileChannel channel, int bufferSize) throws IOException {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        this.bufferStart = channel.position();
+        this.streamPos = bufferStart;
+        this.flushedPos = bufferStart;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkClosed();
+        flushBits();
+        prepareBuffer(1);
+        buffer.put((byte) b);
+        streamPos++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        flushBits();
+        if (len > buffer.capacity()) {
+            flushBuffer();
+            ByteBuffer direct = ByteBuffer.wrap(b, off, len);
+            while (direct.hasRemaining()) {
+                channel.write(direct, streamPos + direct.position() - off);
+            }
+            streamPos += len;
+            bufferStart = streamPos;
+            return;
+        }
+        prepareBuffer(len);
+        buffer.put(b, off, len);
+        streamPos += len;
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        flushBuffer();
+        ByteBuffer one = ByteBuffer.allocate(1);
+        if (channel.read(one, streamPos) <= 0) {
+            return -1;
+        }
+        streamPos++;
+        return one.get(0) & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        flushBuffer();
+        int read = channel.read(ByteBuffer.wrap(b, off, len), streamPos);
+        if (read > 0) {
+            streamPos += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long length() {
+        try {
+            return Math.max(channel.size(), bufferStart + buffer.position());
+        } catch (IOException iox) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        checkClosed();
+        if (pos < flushedPos) {
+            throw new IndexOutOfBoundsException("pos < flushedPos");
+        }
+        bitOffset = 0;
+        streamPos = pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushBuffer();
+        super.close();
+    }
+
+    /**
+     * Make sure the next len bytes at streamPos can go on the end of the buffer
+     */
+    private void prepareBuffer(int len) throws IOException {
+        if (streamPos != bufferStart + buffer.position() || buffer.remaining() < len) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, bufferStart + buffer.position());
+        }
+        buffer.clear();
+        bufferStart = streamPos;
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.demo.util;
+
+import java.awt.image.BufferedImage;
+import java.util.BitSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lets whoever started a compose watch its progress and ask it to stop.
+ * The compose loops report finished fragments here and check for cancellation once per column (or per fragment
+ * in the parallel composer), so a cancelled compose stops burning CPU almost immediately.
+ *
+ * Composes that build their result in memory also say which fragment columns of it are final, so a watcher can
+ * show the finished parts of the image before the whole compose is done.
+ */
+public class ComposeMonitor {
+
+    private final ComposeMonitor parent;
+    private final AtomicInteger completed = new AtomicInteger();
+    private volatile int total;
+    private volatile boolean cancelled;
+    private volatile BufferedImage result;
+    private volatile int fragWidth;
+    //guarded by this, like the result's pixels in those columns
+    private final BitSet finishedColumns = new BitSet();
+
+    public ComposeMonitor() {
+        this(null);
+    }
+
+    /**
+     * A monitor for one piece of a larger compose; progress is passed on to the parent and cancelling the parent
+     * cancels this too
+     */
+    ComposeMonitor(ComposeMonitor parent) {
+        this.parent = parent;
+    }
+
+    void start(int total) {
+        this.total = total;
+        completed.set(0);
+    }
+
+    /**
+     * The compose is about to fill result, a fragWidth wide column of fragments at a time
+     */
+    synchronized void startResult(BufferedImage result, int fragWidth) {
+        finishedColumns.clear();
+        this.fragWidth = fragWidth;
+        this.result = result;
+    }
+
+    /**
+     * Fragment columns from (inclusive) to to (exclusive) of the result won't change any more
+     */
+    synchronized void finishColumns(int from, int to) {
+        finishedColumns.set(from, to);
+    }
+
+    void advance(int fragments) {
+        completed.addAndGet(fragments);
+        if (parent != null) {
+            parent.advance(fragments);
+        }
+    }
+
+    /**
+     * @throws CancellationException if {@link #cancel()} has been called
+     */
+    void checkCancelled() {
+        if (isCancelled()) {
+            throw new CancellationException("Compose cancelled");
+        }
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled || (parent != null && parent.isCancelled());
+    }
+
+    public int getCompleted() {
+        return completed.get();
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * The image being composed, or null before the compose starts and for composes that don't hold their result
+     * in memory. Only the pixels under {@link #getFinishedColumns()} are final.
+     */
+    public BufferedImage getResult() {
+        return result;
+    }
+
+    /**
+     * Width in pixels of a fragment column of the result
+     */
+    public int getFragWidth() {
+        return fragWidth;
+    }
+
+    /**
+     * A copy of which fragment columns of the result are final. Reading it makes everything the compose wrote
+     * into those columns visible to the caller.
+     */
+    public synchronized BitSet getFinishedColumns() {
+        return (BitSet) finishedColumns.clone();
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.demo.util;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Knobs for {@link ImageUtils#remakeImage}. The defaults reproduce the original single-threaded behaviour.
+ */
+public class ComposeOptions {
+
+    /**
+     * How model fragments are matched to source fragments
+     */
+    public enum MatchMode {
+        /** exact nearest unused fragment for every model fragment */
+        NEAREST,
+        /** coarse-to-fine over image pyramids, see {@link PyramidComposer} */
+        PYRAMID,
+        /** lowest total difference over the whole image within a time budget, see {@link AssignmentComposer} */
+        ASSIGNMENT
+    }
+
+    private int parallelism = 1;
+    private MatchMode matchMode = MatchMode.NEAREST;
+    private int pyramidDepth = 2;
+    private long assignmentBudgetMillis = 2000;
+    private Long seed;
+    private ComposeMonitor monitor = new ComposeMonitor();
+    //workers shared by several composes, e.g. the bands of a tiled one; composers make their own when unset
+    private ForkJoinPool pool;
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Number of worker threads; anything above 1 switches to the banded parallel composer
+     */
+    public ComposeOptions setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    public Long getSeed() {
+        return seed;
+    }
+
+    /**
+     * When set, parallel composes resolve fragment conflicts in an order derived from this seed, so the same
+     * inputs always give the same output regardless of thread scheduling
+     */
+    public ComposeOptions setSeed(Long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public MatchMode getMatchMode() {
+        return matchMode;
+    }
+
+    public ComposeOptions setMatchMode(MatchMode matchMode) {
+        this.matchMode = matchMode;
+        return this;
+    }
+
+    public int getPyramidDepth() {
+        return pyramidDepth;
+    }
+
+    /**
+     * Levels above the fragments in {@link MatchMode#PYRAMID} mode; each level halves the resolution.
+     * Deeper pyramids are faster but more likely to miss the best fragment.
+     */
+    public ComposeOptions setPyramidDepth(int pyramidDepth) {
+        this.pyramidDepth = pyramidDepth;
+        return this;
+    }
+
+    public long getAssignmentBudgetMillis() {
+        return assignmentBudgetMillis;
+    }
+
+    /**
+     * How long {@link MatchMode#ASSIGNMENT} may spend improving on the greedy result before it settles for what
+     * it has. 0 stops after a single round of trades.
+     */
+    public ComposeOptions setAssignmentBudgetMillis(long assignmentBudgetMillis) {
+        this.assignmentBudgetMillis = assignmentBudgetMillis;
+        return this;
+    }
+
+    public ComposeMonitor getMonitor() {
+        return monitor;
+    }
+
+    /**
+     * Hook for progress reporting and cancellation
+     */
+    public ComposeOptions setMonitor(ComposeMonitor monitor) {
+        this.monitor = monitor;
+        return this;
+    }
+
+    /**
+     * These same options reporting to a different monitor
+     */
+    ComposeOptions withMonitor(ComposeMonitor monitor) {
+        ComposeOptions options = new ComposeOptions()
+                .setParallelism(parallelism)
+                .setSeed(seed)
+                .setMatchMode(matchMode)
+                .setPyramidDepth(pyramidDepth)
+                .setAssignmentBudgetMillis(assignmentBudgetMillis)
+                .setMonitor(monitor);
+        options.pool = pool;
+        return options;
+    }
+
+    ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * These same options running their workers on pool, which the caller shuts down, instead of a pool per compose
+     */
+    ComposeOptions withPool(ForkJoinPool pool) {
+        ComposeOptions options = withMonitor(monitor);
+        options.pool = pool;
+        return options;
+    }
+
+    public boolean isDeterministic() {
+        return seed != null;
+    }
+}
@@ -0,0 +1,25 @@
+package com.example.demo.util;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A composed image and the assignment that made it, see {@link ImageUtils#compose}
+ */
+public class ComposeResult {
+
+    private final BufferedImage image;
+    private final FragmentAssignment assignment;
+
+    public ComposeResult(BufferedImage image, FragmentAssignment assignment) {
+        this.image = image;
+        this.assignment = assignment;
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public FragmentAssignment getAssignment() {
+        return assignment;
+    }
+}
@@ -0,0 +1,263 @@
+package com.example.demo.util;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+/**
+ * An image decoded once, top to bottom, into a temporary file, and read back a band at a time the right way up.
+ *
+ * Readers like ImageIO's JPEG one can't start in the middle of an image, so decoding band by band with source
+ * regions decodes everything above each band again and the total cost grows with the square of the band count.
+ * Here the reader makes one pass into a raster whose samples live in the file, with only a page of them on the
+ * heap at a time, and bands are then cut out of the file. Bands are in displayed coordinates: the file's EXIF
+ * orientation is applied to each band as it's read, the same way {@link ImageDecoder} applies it to whole images.
+ * The file is deleted on {@link #close()}.
+ */
+public class DiskImage implements Closeable {
+
+    private final BufferedImage stored;
+    private final PagedDataBuffer buffer;
+    private final int orientation;
+    private final Dimension displayed;
+
+    private DiskImage(BufferedImage stored, PagedDataBuffer buffer, int orientation) {
+        this.stored = stored;
+        this.buffer = buffer;
+        this.orientation = orientation;
+        this.displayed = ImageDecoder.oriented(stored.getWidth(), stored.getHeight(), orientation);
+    }
+
+    /**
+     * Decode file into a new temporary file under dir
+     */
+    public static DiskImage decode(File file, Path dir) throws IOException {
+        int orientation = ImageDecoder.orientation(file);
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = ImageDecoder.reader(in, file);
+            try {
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+                if (!types.hasNext()) {
+                    throw new IOException("No image type to decode " + file + " as");
+                }
+                ImageTypeSpecifier type = types.next();
+                SampleModel sampleModel = type.getSampleModel(width, height);
+                long elements = elements(sampleModel);
+                if (elements > Integer.MAX_VALUE) {
+                    throw new IOException(file + " is too big to decode, " + width + "x" + height);
+                }
+                PagedDataBuffer buffer = PagedDataBuffer.create(dir, sampleModel.getDataType(), (int) elements);
+                try {
+                    //the raster factories insist on heap arrays for the common layouts, a plain raster takes any buffer
+                    WritableRaster raster = new WritableRaster(sampleModel, buffer, new Point(0, 0)) {
+                    };
+                    BufferedImage image = new BufferedImage(type.getColorModel(), raster,
+                            type.getColorModel().isAlphaPremultiplied(), null);
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setDestination(image);
+                    reader.read(0, param);
+                    return new DiskImage(image, buffer, orientation);
+                } catch (IOException | RuntimeException ex) {
+                    buffer.close();
+                    throw ex;
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Samples a raster of this model needs, past the last pixel's
+     */
+    private static long elements(SampleModel sampleModel) {
+        //the data buffer a sample model would make for itself is sized for exactly this
+        SampleModel oneRow = sampleModel.createCompatibleSampleModel(sampleModel.getWidth(), 1);
+        long perRow = oneRow.createDataBuffer().getSize();
+        return perRow * sampleModel.getHeight();
+    }
+
+    /**
+     * Width as displayed
+     */
+    public int getWidth() {
+        return displayed.width;
+    }
+
+    /**
+     * Height as displayed
+     */
+    public int getHeight() {
+        return displayed.height;
+    }
+
+    /**
+     * Displayed rows [y, y + rows), full width, as packed RGB
+     */
+    public BufferedImage band(int y, int rows) {
+        Rectangle region = ImageDecoder.storedRegion(new Rectangle(0, y, displayed.width, rows),
+                stored.getWidth(), stored.getHeight(), orientation);
+        BufferedImage packed = new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = RasterSimilarity.data(packed);
+        if (isRgb8(stored)) {
+            //what JPEGs decode to: the samples are already R, G and B, so skip the colour model per pixel
+            WritableRaster raster = stored.getRaster();
+            int[] samples = new int[region.width * 3];
+            for (int row = 0; row < region.height; row++) {
+                raster.getPixels(region.x, region.y + row, region.width, 1, samples);
+                int start = row * region.width;
+                for (int x = 0; x < region.width; x++) {
+                    pixels[start + x] = samples[x * 3] << 16 | samples[x * 3 + 1] << 8 | samples[x * 3 + 2];
+                }
+            }
+        } else {
+            stored.getRGB(region.x, region.y, region.width, region.height, pixels, 0, region.width);
+        }
+        return ImageDecoder.orient(packed, orientation);
+    }
+
+    private static boolean isRgb8(BufferedImage image) {
+        ColorModel colorModel = image.getColorModel();
+        return colorModel instanceof ComponentColorModel && !colorModel.hasAlpha()
+                && colorModel.getNumComponents() == 3 && colorModel.getColorSpace().isCS_sRGB()
+                && image.getSampleModel().getDataType() == DataBuffer.TYPE_BYTE;
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer.close();
+    }
+
+    /**
+     * Samples kept in a file, with the page being read or written held on the heap. Rows are decoded and bands
+     * are read in order, so each page is usually loaded once. Not thread safe.
+     */
+    static class PagedDataBuffer extends DataBuffer implements Closeable {
+
+        private static final int PAGE_SHIFT = 18;
+        private static final int PAGE_BYTES = 1 << PAGE_SHIFT;
+
+        private final FileChannel channel;
+        private final int elementShift;
+        //elements per page, as a shift and a mask, since this runs for every sample
+        private final int pageElementShift;
+        private final int pageElementMask;
+        private final ByteBuffer page = ByteBuffer.allocate(PAGE_BYTES);
+        private int pageIndex = -1;
+        private boolean dirty;
+
+        private PagedDataBuffer(FileChannel channel, int dataType, int size) {
+            super(dataType, size);
+            this.channel = channel;
+            this.elementShift = Integer.numberOfTrailingZeros(DataBuffer.getDataTypeSize(dataType) / 8);
+            this.pageElementShift = PAGE_SHIFT - elementShift;
+            this.pageElementMask = (1 << pageElementShift) - 1;
+        }
+
+        static PagedDataBuffer create(Path dir, int dataType, int size) throws IOException {
+            if (dataType != TYPE_BYTE && dataType != TYPE_USHORT && dataType != TYPE_SHORT && dataType != TYPE_INT) {
+                throw new IOException("Can't keep samples of type " + dataType + " on disk");
+            }
+            Path path = Files.createTempFile(dir, ".decode-", ".raw");
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+            return new PagedDataBuffer(channel, dataType, size);
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            int offset = offset(i);
+            switch (dataType) {
+                case TYPE_BYTE: return page.get(offset) & 0xFF;
+                case TYPE_USHORT: return page.getShort(offset) & 0xFFFF;
+                case TYPE_SHORT: return page.getShort(offset);
+                default: return page.getInt(offset);
+            }
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            int offset = offset(i);
+            switch (dataType) {
+                case TYPE_BYTE: page.put(offset, (byte) val); break;
+                case TYPE_USHORT:
+                case TYPE_SHORT: page.putShort(offset, (short) val); break;
+                default: page.putInt(offset, val); break;
+            }
+            dirty = true;
+        }
+
+        /**
+         * Byte offset of element i in the page, loading its page first if it isn't the current one
+         */
+        private int offset(int i) {
+            int index = i >>> pageElementShift;
+            if (index != pageIndex) {
+                load(index);
+            }
+            return (i & pageElementMask) << elementShift;
+        }
+
+        private void load(int index) {
+            try {
+                flush();
+                page.clear();
+                long position = (long) index << PAGE_SHIFT;
+                while (page.hasRemaining()) {
+                    //past the end of what's been written reads as zero
+                    if (channel.read(page, position + page.position()) < 0) {
+                        break;
+                    }
+                }
+                while (page.hasRemaining()) {
+                    page.put((byte) 0);
+                }
+                pageIndex = index;
+            } catch (IOException iox) {
+                throw new UncheckedIOException(iox);
+            }
+        }
+
+        private void flush() throws IOException {
+            if (!dirty) {
+                return;
+            }
+            long end = Math.min(PAGE_BYTES, ((long) size << elementShift) - ((long) pageIndex << PAGE_SHIFT));
+            ByteBuffer written = page.duplicate();
+            written.position(0).limit((int) end);
+            long position = (long) pageIndex << PAGE_SHIFT;
+            while (written.hasRemaining()) {
+                position += channel.write(written, position);
+            }
+            dirty = false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.demo.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Which source fragment went where in a compose, plus the features of the model fragments they were matched to,
+ * so a later compose of an edited model can tell which fragments changed and keep the rest.
+ *
+ * Fragment ids are column-major, the same as {@link FragmentIndex}. File layout, all big-endian:
+ * magic, version, width, height, fragWidth, fragHeight (ints), then the source of every model fragment (ints),
+ * then the model fragment features (bytes).
+ */
+public class FragmentAssignment {
+
+    private static final int MAGIC = 0x4153474E; // "ASGN"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 6 * Integer.BYTES;
+
+    private final int[] sources;
+    private final byte[] modelFeatures;
+    private final int width;
+    private final int height;
+    private final int fragWidth;
+    private final int fragHeight;
+
+    public FragmentAssignment(int[] sources, byte[] modelFeatures, int width, int height, int fragWidth,
+                              int fragHeight) {
+        this.sources = sources;
+        this.modelFeatures = modelFeatures;
+        this.width = width;
+        this.height = height;
+        this.fragWidth = fragWidth;
+        this.fragHeight = fragHeight;
+    }
+
+    /**
+     * Whether this came from a compose over the same grid as fragments
+     */
+    public boolean fits(SourceFragments fragments) {
+        return fragments.getWidth() == width && fragments.getHeight() == height
+                && fragments.getFragWidth() == fragWidth && fragments.getFragHeight() == fragHeight;
+    }
+
+    /**
+     * Write to a temporary file next to the target and move it into place, so readers never see half a file
+     */
+    public void write(Path target) throws IOException {
+        //a name of its own, so writers of the same assignment don't write into each other's file
+        Path temp = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + sources.length * Integer.BYTES
+                    + modelFeatures.length);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(fragWidth).putInt(fragHeight);
+            buffer.asIntBuffer().put(sources);
+            buffer.position(buffer.position() + sources.length * Integer.BYTES);
+            buffer.put(modelFeatures);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.close();
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Read back a file written by {@link #write}
+     * @throws IOException if the file is missing, truncated or isn't one of ours
+     */
+    public static FragmentAssignment read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mapped.remaining() < HEADER_BYTES || mapped.getInt() != MAGIC || mapped.getInt() != VERSION) {
+                throw new IOException("Not an assignment file " + file);
+            }
+            int width = mapped.getInt();
+            int height = mapped.getInt();
+            int fragWidth = mapped.getInt();
+            int fragHeight = mapped.getInt();
+            int count = (width / fragWidth) * (height / fragHeight);
+            if (mapped.remaining() != (long) count * (Integer.BYTES + FragmentIndex.FEATURE_LENGTH)) {
+                throw new IOException("Truncated assignment file " + file);
+            }
+            int[] sources = new int[count];
+            IntBuffer sourceView = mapped.asIntBuffer();
+            sourceView.get(sources);
+            mapped.position(mapped.position() + count * Integer.BYTES);
+            byte[] modelFeatures = new byte[count * FragmentIndex.FEATURE_LENGTH];
+            mapped.get(modelFeatures);
+            return new FragmentAssignment(sources, modelFeatures, width, height, fragWidth, fragHeight);
+        }
+    }
+
+    /**
+     * sources[id] is the source fragment placed at model fragment id
+     */
+    public int[] getSources() {
+        return sources;
+    }
+
+    public byte[] getModelFeatures() {
+        return modelFeatures;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getFragWidth() {
+        return fragWidth;
+    }
+
+    public int getFragHeight() {
+        return fragHeight;
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.demo.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe "used at most once" bitset over fragment ids.
+ * Claiming is a single compare-and-set, so concurrent composers can race for a fragment and exactly one wins.
+ */
+public class FragmentClaims {
+
+    private final AtomicLongArray words;
+
+    public FragmentClaims(int size) {
+        this.words = new AtomicLongArray((size + 63) >>> 6);
+    }
+
+    /**
+     * @return true if the caller now owns the fragment, false if someone else already claimed it
+     */
+    public boolean tryClaim(int id) {
+        int word = id >>> 6;
+        long mask = 1L << id;
+        while (true) {
+            long current = words.get(word);
+            if ((current & mask) != 0) {
+                return false;
+            }
+            if (words.compareAndSet(word, current, current | mask)) {
+                return true;
+            }
+        }
+    }
+
+    public boolean isClaimed(int id) {
+        return (words.get(id >>> 6) & (1L << id)) != 0;
+    }
+}
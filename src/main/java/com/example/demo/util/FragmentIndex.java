@@ -0,0 +1,339 @@
+package com.example.demo.util;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Nearest-neighbour index over the fragments of a source image.
+ *
+ * Every fragment is reduced once to a small packed feature vector (mean RGB plus the mean RGB of its four
+ * quadrants) and bucketed on a coarse grid over mean color. Lookups walk outward from the query's cell in
+ * rings and stop as soon as no unvisited cell could beat the best candidate, so the answer is the exact
+ * nearest available fragment by L1 feature distance. Removal is O(1), which keeps the
+ * "use each fragment at most once" rule cheap.
+ *
+ * Fragment ids are column-major, matching the order {@link ImageUtils#breakdownImage} produces them in.
+ */
+public class FragmentIndex {
+
+    /** mean RGB + 4 quadrant means, one byte per channel */
+    public static final int FEATURE_LENGTH = 15;
+
+    private static final int CELL_SIZE = 16;
+    private static final int CELLS_PER_CHANNEL = 256 / CELL_SIZE;
+    private static final int CELL_COUNT = CELLS_PER_CHANNEL * CELLS_PER_CHANNEL * CELLS_PER_CHANNEL;
+
+    private final int fragWidth;
+    private final int fragHeight;
+    private final int rows;
+    private final int size;
+    private final byte[] features;
+
+    //fragments sorted by cell; each cell owns members[cellStart[c], cellStart[c] + cellCount[c]) of live ids
+    private final int[] cellStart;
+    private final int[] cellCount;
+    private final int[] members;
+    private final int[] position;
+    private final boolean[] removed;
+    private int available;
+
+    /**
+     * @param pixels packed RGB pixels of the source image, row-major
+     * @param width the width of the source image
+     * @param height the height of the source image
+     */
+    public FragmentIndex(int[] pixels, int width, int height, int fragWidth, int fragHeight) {
+        this(computeFeatures(pixels, width, height, fragWidth, fragHeight), width, height, fragWidth, fragHeight);
+    }
+
+    /**
+     * Build the index from feature vectors computed earlier by {@link #computeFeatures}
+     */
+    public FragmentIndex(byte[] features, int width, int height, int fragWidth, int fragHeight) {
+        this.fragWidth = fragWidth;
+        this.fragHeight = fragHeight;
+        this.rows = height / fragHeight;
+        this.size = (width / fragWidth) * rows;
+        this.features = features;
+
+        //counting sort of the fragment ids into their grid cells
+        int[] cellOf = new int[size];
+        this.cellStart = new int[CELL_COUNT + 1];
+        this.cellCount = new int[CELL_COUNT];
+        for (int id = 0; id < size; id++) {
+            int offset = id * FEATURE_LENGTH;
+            cellOf[id] = cell(features[offset] & 0xFF, features[offset + 1] & 0xFF, features[offset + 2] & 0xFF);
+            cellCount[cellOf[id]]++;
+        }
+        for (int c = 0; c < CELL_COUNT; c++) {
+            cellStart[c + 1] = cellStart[c] + cellCount[c];
+        }
+        this.members = new int[size];
+        this.position = new int[size];
+        int[] fill = Arrays.copyOf(cellStart, CELL_COUNT);
+        for (int id = 0; id < size; id++) {
+            int slot = fill[cellOf[id]]++;
+            members[slot] = id;
+            position[id] = slot;
+        }
+        this.removed = new boolean[size];
+        this.available = size;
+    }
+
+    private FragmentIndex(FragmentIndex other) {
+        this.fragWidth = other.fragWidth;
+        this.fragHeight = other.fragHeight;
+        this.rows = other.rows;
+        this.size = other.size;
+        this.features = other.features;
+        this.cellStart = other.cellStart;
+        this.cellCount = other.cellCount.clone();
+        this.members = other.members.clone();
+        this.position = other.position.clone();
+        this.removed = other.removed.clone();
+        this.available = other.available;
+    }
+
+    /**
+     * A copy with its own pool of available fragments, sharing the feature vectors and the grid with this one.
+     * Lets each of several concurrent composers take fragments out of its own copy without locking.
+     */
+    public FragmentIndex copy() {
+        return new FragmentIndex(this);
+    }
+
+    /**
+     * Feature vectors for every fragment of an image, column-major, {@link #FEATURE_LENGTH} bytes each
+     */
+    public static byte[] computeFeatures(int[] pixels, int width, int height, int fragWidth, int fragHeight) {
+        int columns = width / fragWidth;
+        int rows = height / fragHeight;
+        byte[] features = new byte[columns * rows * FEATURE_LENGTH];
+        for (int i = 0; i < columns; i++) {
+            for (int j = 0; j < rows; j++) {
+                extract(pixels, width, i * fragWidth, j * fragHeight, fragWidth, fragHeight,
+                        features, (i * rows + j) * FEATURE_LENGTH);
+            }
+        }
+        return features;
+    }
+
+    /**
+     * Reduce a fragment of a packed RGB pixel array to its feature vector.
+     * Quadrants overlap on the middle row/column for odd fragment sizes so none of them are ever empty.
+     */
+    public static void extract(int[] pixels, int scan, int x, int y, int w, int h, byte[] out, int outOffset) {
+        int halfW = (w + 1) / 2;
+        int halfH = (h + 1) / 2;
+        int[] sums = new int[FEATURE_LENGTH];
+        int[] counts = new int[5];
+        for (int dy = 0; dy < h; dy++) {
+            int row = (y + dy) * scan + x;
+            boolean top = dy < halfH;
+            boolean bottom = dy >= h / 2;
+            for (int dx = 0; dx < w; dx++) {
+                int rgb = pixels[row + dx];
+                int r = (rgb >> 16) & 0xFF;
+                int g = (rgb >> 8) & 0xFF;
+                int b = rgb & 0xFF;
+                accumulate(sums, counts, 0, r, g, b);
+                boolean left = dx < halfW;
+                boolean right = dx >= w / 2;
+                if (top && left) {
+                    accumulate(sums, counts, 1, r, g, b);
+                }
+                if (top && right) {
+                    accumulate(sums, counts, 2, r, g, b);
+                }
+                if (bottom && left) {
+                    accumulate(sums, counts, 3, r, g, b);
+                }
+                if (bottom && right) {
+                    accumulate(sums, counts, 4, r, g, b);
+                }
+            }
+        }
+        for (int k = 0; k < FEATURE_LENGTH; k++) {
+            out[outOffset + k] = (byte) (sums[k] / counts[k / 3]);
+        }
+    }
+
+    private static void accumulate(int[] sums, int[] counts, int block, int r, int g, int b) {
+        sums[block * 3] += r;
+        sums[block * 3 + 1] += g;
+        sums[block * 3 + 2] += b;
+        counts[block]++;
+    }
+
+    /**
+     * Find the id of the available fragment whose features are closest to the query, or -1 if the pool is empty.
+     */
+    public int nearest(byte[] query, int queryOffset) {
+        return nearest(query, queryOffset, null);
+    }
+
+    /**
+     * Same as {@link #nearest(byte[], int)}, but also passes over any fragment the filter rejects.
+     * Lets concurrent composers share one index without mutating it, tracking usage in {@link FragmentClaims}
+     * instead; returns -1 if every remaining fragment is skipped.
+     */
+    public int nearest(byte[] query, int queryOffset, IntPredicate skip) {
+        return search(query, queryOffset, null, skip);
+    }
+
+    /**
+     * Same as {@link #nearest(byte[], int, IntPredicate)}, but every fragment gone rejects is also removed from
+     * the pool as the search passes over it, so later lookups don't look at it again. For fragments another
+     * composer has used for good; anything only skipped for now belongs in skip, which may be null.
+     */
+    public int nearestPruning(byte[] query, int queryOffset, IntPredicate gone, IntPredicate skip) {
+        return search(query, queryOffset, gone, skip);
+    }
+
+    private int search(byte[] query, int queryOffset, IntPredicate gone, IntPredicate skip) {
+        if (available == 0) {
+            return -1;
+        }
+        int qr = (query[queryOffset] & 0xFF) / CELL_SIZE;
+        int qg = (query[queryOffset + 1] & 0xFF) / CELL_SIZE;
+        int qb = (query[queryOffset + 2] & 0xFF) / CELL_SIZE;
+        int best = -1;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int ring = 0; ring < CELLS_PER_CHANNEL; ring++) {
+            //anything in this ring differs by at least this much on one mean channel
+            int lowerBound = Math.max(0, ring * CELL_SIZE - (CELL_SIZE - 1));
+            if (best >= 0 && bestDistance <= lowerBound) {
+                break;
+            }
+            for (int r = Math.max(0, qr - ring); r <= Math.min(CELLS_PER_CHANNEL - 1, qr + ring); r++) {
+                for (int g = Math.max(0, qg - ring); g <= Math.min(CELLS_PER_CHANNEL - 1, qg + ring); g++) {
+                    boolean onShell = Math.abs(r - qr) == ring || Math.abs(g - qg) == ring;
+                    for (int b = Math.max(0, qb - ring); b <= Math.min(CELLS_PER_CHANNEL - 1, qb + ring); b++) {
+                        if (!onShell && Math.abs(b - qb) != ring) {
+                            //interior cells were covered by an earlier ring, jump straight to the far face
+                            b = qb + ring - 1;
+                            continue;
+                        }
+                        int c = (r * CELLS_PER_CHANNEL + g) * CELLS_PER_CHANNEL + b;
+                        for (int slot = cellStart[c]; slot < cellStart[c] + cellCount[c]; slot++) {
+                            int id = members[slot];
+                            if (gone != null && gone.test(id)) {
+                                //the cell's last live fragment takes its slot, so look at that slot again
+                                remove(id);
+                                slot--;
+                                continue;
+                            }
+                            if (skip != null && skip.test(id)) {
+                                continue;
+                            }
+                            int d = distance(query, queryOffset, features, id * FEATURE_LENGTH);
+                            if (d < bestDistance) {
+                                bestDistance = d;
+                                best = id;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The k available fragments closest to the query in one search, nearest first, written to found from
+     * foundOffset.
+     * @return how many were found, fewer than k only if the pool is smaller than that
+     */
+    public int nearest(byte[] query, int queryOffset, int[] found, int foundOffset, int k) {
+        int qr = (query[queryOffset] & 0xFF) / CELL_SIZE;
+        int qg = (query[queryOffset + 1] & 0xFF) / CELL_SIZE;
+        int qb = (query[queryOffset + 2] & 0xFF) / CELL_SIZE;
+        int[] distances = new int[k];
+        int count = 0;
+        for (int ring = 0; ring < CELLS_PER_CHANNEL; ring++) {
+            int lowerBound = Math.max(0, ring * CELL_SIZE - (CELL_SIZE - 1));
+            if (count == k && distances[k - 1] <= lowerBound) {
+                break;
+            }
+            for (int r = Math.max(0, qr - ring); r <= Math.min(CELLS_PER_CHANNEL - 1, qr + ring); r++) {
+                for (int g = Math.max(0, qg - ring); g <= Math.min(CELLS_PER_CHANNEL - 1, qg + ring); g++) {
+                    boolean onShell = Math.abs(r - qr) == ring || Math.abs(g - qg) == ring;
+                    for (int b = Math.max(0, qb - ring); b <= Math.min(CELLS_PER_CHANNEL - 1, qb + ring); b++) {
+                        if (!onShell && Math.abs(b - qb) != ring) {
+                            b = qb + ring - 1;
+                            continue;
+                        }
+                        int c = (r * CELLS_PER_CHANNEL + g) * CELLS_PER_CHANNEL + b;
+                        int end = cellStart[c] + cellCount[c];
+                        for (int slot = cellStart[c]; slot < end; slot++) {
+                            int id = members[slot];
+                            int d = distance(query, queryOffset, features, id * FEATURE_LENGTH);
+                            if (count == k && d >= distances[k - 1]) {
+                                continue;
+                            }
+                            //insertion into the sorted top k
+                            int at = count < k ? count++ : k - 1;
+                            while (at > 0 && distances[at - 1] > d) {
+                                distances[at] = distances[at - 1];
+                                found[foundOffset + at] = found[foundOffset + at - 1];
+                                at--;
+                            }
+                            distances[at] = d;
+                            found[foundOffset + at] = id;
+                        }
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Take a fragment out of the pool so it won't be handed out again.
+     */
+    public void remove(int id) {
+        if (removed[id]) {
+            return;
+        }
+        int offset = id * FEATURE_LENGTH;
+        int c = cell(features[offset] & 0xFF, features[offset + 1] & 0xFF, features[offset + 2] & 0xFF);
+        int last = cellStart[c] + cellCount[c] - 1;
+        int slot = position[id];
+        int moved = members[last];
+        members[slot] = moved;
+        position[moved] = slot;
+        members[last] = id;
+        position[id] = last;
+        cellCount[c]--;
+        removed[id] = true;
+        available--;
+    }
+
+    public static int distance(byte[] a, int aOffset, byte[] b, int bOffset) {
+        int d = 0;
+        for (int k = 0; k < FEATURE_LENGTH; k++) {
+            d += Math.abs((a[aOffset + k] & 0xFF) - (b[bOffset + k] & 0xFF));
+        }
+        return d;
+    }
+
+    private static int cell(int r, int g, int b) {
+        return ((r / CELL_SIZE) * CELLS_PER_CHANNEL + g / CELL_SIZE) * CELLS_PER_CHANNEL + b / CELL_SIZE;
+    }
+
+    public int available() {
+        return available;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int fragmentX(int id) {
+        return (id / rows) * fragWidth;
+    }
+
+    public int fragmentY(int id) {
+        return (id % rows) * fragHeight;
+    }
+}
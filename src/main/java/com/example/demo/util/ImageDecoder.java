@@ -0,0 +1,192 @@
+package com.example.demo.util;
+
+import com.drew.imaging.ImageMetadataReader;
+import com.drew.imaging.ImageProcessingException;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.MetadataException;
+import com.drew.metadata.exif.ExifIFD0Directory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Decodes compose inputs at no more resolution than the compose will use.
+ *
+ * Images are read with ImageIO source subsampling, picking the coarsest factor that still leaves
+ * {@link #OVERSAMPLING} times the target size in both directions, so the {@link Resampler} has real pixels to
+ * average when it scales the rest of the way. Only the subsampled raster is ever allocated. The EXIF orientation
+ * is read separately with metadata-extractor and applied to the reduced image.
+ */
+public class ImageDecoder {
+
+    /** how much bigger than the target the decoded image is kept, for antialiasing */
+    public static final int OVERSAMPLING = 2;
+
+    static Logger log = LoggerFactory.getLogger(ImageDecoder.class);
+
+    private ImageDecoder() {
+    }
+
+    /**
+     * Size of the image once it's been turned the right way up, from the headers alone
+     */
+    public static Dimension displayedSize(File file) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = reader(in, file);
+            try {
+                return oriented(reader.getWidth(0), reader.getHeight(0), orientation(file));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Decode and orient an image that's going to be scaled to targetWidth x targetHeight (as displayed).
+     * Pass 0 for either to decode at full size.
+     */
+    public static BufferedImage decode(File file, int targetWidth, int targetHeight) throws IOException {
+        int orientation = orientation(file);
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = reader(in, file);
+            try {
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                //targets are given as displayed, the subsampling applies to the image as stored
+                Dimension target = oriented(targetWidth, targetHeight, orientation);
+                int subsampling = subsampling(width, height, target.width, target.height);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                BufferedImage image = reader.read(0, param);
+                if (subsampling > 1) {
+                    log.info("decoded " + file.getName() + " at 1/" + subsampling + ", " + image.getWidth() + "x"
+                            + image.getHeight() + " instead of " + width + "x" + height);
+                }
+                return orient(image, orientation);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Largest whole subsampling factor that keeps the image at least OVERSAMPLING times the target in both
+     * directions
+     */
+    static int subsampling(int width, int height, int targetWidth, int targetHeight) {
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            return 1;
+        }
+        int factor = Math.min(width / (targetWidth * OVERSAMPLING), height / (targetHeight * OVERSAMPLING));
+        return Math.max(1, factor);
+    }
+
+    /**
+     * The EXIF orientation of the file, 1 (already upright) if it doesn't have one or we can't read it
+     */
+    static int orientation(File file) {
+        try {
+            Metadata metadata = ImageMetadataReader.readMetadata(file);
+            ExifIFD0Directory directory = metadata.getFirstDirectoryOfType(ExifIFD0Directory.class);
+            if (directory != null && directory.containsTag(ExifIFD0Directory.TAG_ORIENTATION)) {
+                return directory.getInt(ExifIFD0Directory.TAG_ORIENTATION);
+            }
+        } catch (ImageProcessingException | MetadataException | IOException ex) {
+            log.info("Couldn't read the orientation of " + file.getName() + " " + ex.getMessage());
+        }
+        return 1;
+    }
+
+    /**
+     * Orientations 5 to 8 turn the image on its side
+     */
+    static Dimension oriented(int width, int height, int orientation) {
+        return orientation >= 5 && orientation <= 8 ? new Dimension(height, width) : new Dimension(width, height);
+    }
+
+    /**
+     * The part of a width x height image, as stored, that {@link #orient} turns into the displayed region
+     */
+    static Rectangle storedRegion(Rectangle displayed, int width, int height, int orientation) {
+        int[] from = stored(displayed.x, displayed.y, width, height, orientation);
+        int[] to = stored(displayed.x + displayed.width - 1, displayed.y + displayed.height - 1, width, height,
+                orientation);
+        int x = Math.min(from[0], to[0]);
+        int y = Math.min(from[1], to[1]);
+        return new Rectangle(x, y, Math.max(from[0], to[0]) - x + 1, Math.max(from[1], to[1]) - y + 1);
+    }
+
+    /**
+     * Where displayed pixel (x, y) is stored, as {@link #orient} maps it
+     */
+    private static int[] stored(int x, int y, int width, int height, int orientation) {
+        switch (orientation) {
+            case 2: return new int[]{width - 1 - x, y};
+            case 3: return new int[]{width - 1 - x, height - 1 - y};
+            case 4: return new int[]{x, height - 1 - y};
+            case 5: return new int[]{y, x};
+            case 6: return new int[]{y, height - 1 - x};
+            case 7: return new int[]{width - 1 - y, height - 1 - x};
+            case 8: return new int[]{width - 1 - y, x};
+            default: return new int[]{x, y};
+        }
+    }
+
+    /**
+     * Apply an EXIF orientation, returning the image as is when it's already upright
+     */
+    static BufferedImage orient(BufferedImage image, int orientation) {
+        if (orientation < 2 || orientation > 8) {
+            return image;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = RasterSimilarity.data(RasterSimilarity.toPackedRgb(image));
+        Dimension size = oriented(width, height, orientation);
+        BufferedImage result = new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_RGB);
+        int[] out = RasterSimilarity.data(result);
+        for (int y = 0; y < size.height; y++) {
+            for (int x = 0; x < size.width; x++) {
+                int sx;
+                int sy;
+                switch (orientation) {
+                    case 2: sx = width - 1 - x; sy = y; break;
+                    case 3: sx = width - 1 - x; sy = height - 1 - y; break;
+                    case 4: sx = x; sy = height - 1 - y; break;
+                    case 5: sx = y; sy = x; break;
+                    case 6: sx = y; sy = height - 1 - x; break;
+                    case 7: sx = width - 1 - y; sy = height - 1 - x; break;
+                    default: sx = width - 1 - y; sy = x; break;
+                }
+                out[y * size.width + x] = pixels[sy * width + sx];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The first reader that understands the stream, with its input set
+     */
+    static ImageReader reader(ImageInputStream in, File file) throws IOException {
+        if (in == null) {
+            throw new IOException("Could not open " + file);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            throw new IOException("No image reader for " + file);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(in, true, true);
+        return reader;
+    }
+}
@@ -0,0 +1,254 @@
+package com.example.demo.util;
+
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encodes images to files with explicit settings instead of ImageIO.write's defaults.
+ *
+ * Looking up an ImageWriter goes through the plugin registry and builds a fresh writer (and for JPEG its native
+ * state) every time, so writers are kept in a small pool per format and reset between images. JPEG quality,
+ * progressive mode and chroma subsampling are configurable, as is the PNG deflate effort. WebP is written
+ * lossless when a WebP ImageIO plugin is on the classpath; the JDK doesn't ship one. Output goes through a
+ * {@link ChannelImageOutputStream}.
+ */
+public class ImageEncoder {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final String JPEG_METADATA = "javax_imageio_jpeg_image_1.0";
+
+    private float jpegQuality = 0.75f;
+    private boolean progressive = false;
+    private boolean fullChroma = false;
+    private float pngCompression = -1;
+    private int poolSize = 4;
+    private final ConcurrentHashMap<String, BlockingQueue<ImageWriter>> writers = new ConcurrentHashMap<>();
+
+    /**
+     * 0 to 1, higher is bigger and better looking; ImageIO's default is 0.75
+     */
+    public ImageEncoder setJpegQuality(float jpegQuality) {
+        this.jpegQuality = jpegQuality;
+        return this;
+    }
+
+    /**
+     * Progressive JPEGs show a rough version of the whole image while they're still downloading
+     */
+    public ImageEncoder setProgressive(boolean progressive) {
+        this.progressive = progressive;
+        return this;
+    }
+
+    /**
+     * Keep colour at full resolution (4:4:4) rather than halving it both ways (4:2:0). Sharper colour edges,
+     * which mosaics have a lot of, for a bigger file.
+     */
+    public ImageEncoder setFullChroma(boolean fullChroma) {
+        this.fullChroma = fullChroma;
+        return this;
+    }
+
+    /**
+     * 0 (smallest, slowest) to 1 (fastest, biggest) for PNG, negative for the writer's default
+     */
+    public ImageEncoder setPngCompression(float pngCompression) {
+        this.pngCompression = pngCompression;
+        return this;
+    }
+
+    /**
+     * How many idle writers to keep per format
+     */
+    public ImageEncoder setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+        return this;
+    }
+
+    /**
+     * Whether there's a writer for this format
+     */
+    public static boolean supports(String format) {
+        return ImageIO.getImageWritersByFormatName(formatName(format)).hasNext();
+    }
+
+    /**
+     * The settings that change how an image comes out in this format, for telling encodes apart
+     */
+    public String describe(String format) {
+        String name = formatName(format);
+        switch (name) {
+            case "jpg":
+                return "jpg q" + jpegQuality + (progressive ? " progressive" : "") + (fullChroma ? " 444" : " 420");
+            case "png":
+                return pngCompression < 0 ? "png" : "png c" + pngCompression;
+            default:
+                return name;
+        }
+    }
+
+    /**
+     * Encode image into target, replacing anything already there
+     * @param format an ImageIO format name, e.g. jpg, png or webp
+     * @return the size of the encoded file
+     * @throws IOException if there's no writer for the format or the image can't be written
+     */
+    public long encode(RenderedImage image, String format, Path target) throws IOException {
+        String name = formatName(format);
+        ImageWriter writer = borrow(name);
+        boolean reusable = false;
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             ChannelImageOutputStream out = new ChannelImageOutputStream(channel, BUFFER_SIZE)) {
+            write(name, writer, image, out);
+            reusable = true;
+            return out.length();
+        } finally {
+            giveBack(name, writer, reusable);
+        }
+    }
+
+    /**
+     * Encode image in memory, for small images that go straight to a client instead of into a file
+     * @throws IOException if there's no writer for the format or the image can't be written
+     */
+    public byte[] encode(RenderedImage image, String format) throws IOException {
+        String name = formatName(format);
+        ImageWriter writer = borrow(name);
+        boolean reusable = false;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (MemoryCacheImageOutputStream out = new MemoryCacheImageOutputStream(bytes)) {
+            write(name, writer, image, out);
+            reusable = true;
+        } finally {
+            giveBack(name, writer, reusable);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void write(String format, ImageWriter writer, RenderedImage image, ImageOutputStream out)
+            throws IOException {
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        IIOMetadata metadata = configure(format, writer, param, image);
+        writer.setOutput(out);
+        writer.write(null, new IIOImage(image, null, metadata), param);
+    }
+
+    /**
+     * Apply our settings to the write param, returning any metadata the format needs for the rest
+     */
+    private IIOMetadata configure(String format, ImageWriter writer, ImageWriteParam param, RenderedImage image)
+            throws IOException {
+        switch (format) {
+            case "jpg":
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(jpegQuality);
+                if (progressive) {
+                    param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+                }
+                if (fullChroma) {
+                    return fullChroma(writer.getDefaultImageMetadata(
+                            ImageTypeSpecifier.createFromRenderedImage(image), param));
+                }
+                return null;
+            case "png":
+                if (pngCompression >= 0 && param.canWriteCompressed()) {
+                    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                    param.setCompressionQuality(Math.min(1f, pngCompression));
+                }
+                return null;
+            case "webp":
+                if (param.canWriteCompressed() && param.getCompressionTypes() != null) {
+                    for (String type : param.getCompressionTypes()) {
+                        if (type.toLowerCase(Locale.ROOT).contains("lossless")) {
+                            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                            param.setCompressionType(type);
+                            break;
+                        }
+                    }
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Set every component's sampling factors in the frame header to 1, i.e. no chroma subsampling
+     */
+    private static IIOMetadata fullChroma(IIOMetadata metadata) throws IOException {
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(JPEG_METADATA);
+        NodeList frames = root.getElementsByTagName("sof");
+        if (frames.getLength() == 0) {
+            return metadata;
+        }
+        NodeList components = frames.item(0).getChildNodes();
+        for (int i = 0; i < components.getLength(); i++) {
+            Node component = components.item(i);
+            if (component instanceof IIOMetadataNode) {
+                ((IIOMetadataNode) component).setAttribute("HsamplingFactor", "1");
+                ((IIOMetadataNode) component).setAttribute("VsamplingFactor", "1");
+            }
+        }
+        metadata.setFromTree(JPEG_METADATA, root);
+        return metadata;
+    }
+
+    private ImageWriter borrow(String format) throws IOException {
+        ImageWriter writer = pool(format).poll();
+        if (writer != null) {
+            return writer;
+        }
+        Iterator<ImageWriter> found = ImageIO.getImageWritersByFormatName(format);
+        if (!found.hasNext()) {
+            throw new IOException("No " + format + " encoder");
+        }
+        return found.next();
+    }
+
+    /**
+     * Put a writer back in its pool, or get rid of it if the pool is full or the writer failed part way
+     */
+    private void giveBack(String format, ImageWriter writer, boolean reusable) {
+        if (reusable) {
+            writer.reset();
+            if (pool(format).offer(writer)) {
+                return;
+            }
+        }
+        writer.dispose();
+    }
+
+    private BlockingQueue<ImageWriter> pool(String format) {
+        return writers.computeIfAbsent(format, name -> new ArrayBlockingQueue<>(Math.max(1, poolSize)));
+    }
+
+    /**
+     * The name this encoder knows a format by, e.g. jpg for JPEG or jpeg
+     */
+    public static String formatName(String format) {
+        String name = format.toLowerCase(Locale.ROOT);
+        return name.equals("jpeg") ? "jpg" : name;
+    }
+}
@@ -3,14 +3,13 @@ package com.example.demo.util;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.awt.*;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 
 
 public class ImageUtils {
 
-    private static final int SIMILARITY_SCORE_THRESHOLD = 50;
     private static final int MAX_WIDTH = 720;
     private static final int MAX_HEIGHT = 720;
 
@@ -24,17 +23,23 @@ public class ImageUtils {
                     "\twidth " + src.getWidth()+ " " + tar.getWidth() +
                     "\n\theight " + src.getHeight() + " " + tar.getHeight());
         }
+        if (RasterSimilarity.isPacked(src) && RasterSimilarity.isPacked(tar)) {
+            return RasterSimilarity.score(
+                    RasterSimilarity.data(src), RasterSimilarity.offset(src), RasterSimilarity.stride(src),
+                    RasterSimilarity.data(tar), RasterSimilarity.offset(tar), RasterSimilarity.stride(tar),
+                    src.getWidth(), src.getHeight());
+        }
         int similarityScore = 0;
 
         //As a minor optimization, we're only sampling each fragment in our comparisons.
         //Early results still seem like decent matches, but keep an eye on this
         for(int i = src.getWidth() - 1; i >= 0; i -= 2) {
             for (int j = src.getHeight() - 1 ; j >=0; j -=2) {
-                Color srcColor = new Color(src.getRGB(i, j));
-                Color tarColor = new Color(tar.getRGB(i, j));
-                similarityScore += Math.abs(srcColor.getRed() - tarColor.getRed());
-                similarityScore += Math.abs(srcColor.getGreen() - tarColor.getGreen());
-                similarityScore += Math.abs(srcColor.getBlue() - tarColor.getBlue());
+                int srcRgb = src.getRGB(i, j);
+                int tarRgb = tar.getRGB(i, j);
+                similarityScore += Math.abs(((srcRgb >> 16) & 0xFF) - ((tarRgb >> 16) & 0xFF));
+                similarityScore += Math.abs(((srcRgb >> 8) & 0xFF) - ((tarRgb >> 8) & 0xFF));
+                similarityScore += Math.abs((srcRgb & 0xFF) - (tarRgb & 0xFF));
 
             }
         }
@@ -51,65 +56,127 @@ public class ImageUtils {
      * @return
      */
     public static BufferedImage remakeImage(BufferedImage source, BufferedImage model, int fragWidth, int fragHeight) {
+        return remakeImage(source, model, fragWidth, fragHeight, new ComposeOptions());
+    }
+
+    /**
+     * Same as {@link #remakeImage(BufferedImage, BufferedImage, int, int)}, with control over how the work is done
+     * @param options parallelism and seeding for the compose
+     */
+    public static BufferedImage remakeImage(BufferedImage source, BufferedImage model, int fragWidth, int fragHeight,
+                                            ComposeOptions options) {
         //If the model is too big for us to process quickly, scale it down
         BufferedImage normalizedModel = normalizeImage(model);
         //If the two images are different sizes, scale the source to the model
         BufferedImage transformedSource = transformSource(source, normalizedModel);
+        //Reduce every source fragment to a feature vector once, rather than comparing whole fragments per lookup
+        SourceFragments fragments = SourceFragments.breakdown(transformedSource, fragWidth, fragHeight);
+        return remakeImage(fragments, normalizedModel, options);
+    }
 
-        log.info("creating result with width " + normalizedModel.getWidth() + " and height "+ normalizedModel.getHeight());
-        BufferedImage result = new BufferedImage(normalizedModel.getWidth(), normalizedModel.getHeight(), BufferedImage.TYPE_INT_RGB);
-        Graphics2D graphics = result.createGraphics();
-        ArrayList<ArrayList<BufferedImage>> sourceFrags = breakdownImage(transformedSource, fragWidth, fragHeight);
-        int columns = normalizedModel.getWidth()/fragWidth;
-        int rows = normalizedModel.getHeight()/fragHeight;
-        //The outer two loops fill one fragment each of the result image
-        for(int i = 0; i < columns; i++) {
-            if(i % 10 == 0) {
-                log.info("Update: " + i+"/"+columns);
-            }
-            for(int j = 0; j< rows; j++) {
-                //find a source fragment that looks close to our model fragment
-                BufferedImage modelFrag = normalizedModel.getSubimage(i*fragWidth, j*fragHeight, fragWidth, fragHeight);
-                BufferedImage goodMatch = null;
-                int similarity = Integer.MAX_VALUE;
-                int matchX = -1;
-                int matchY = -1;
-                //these two more loops (ugh jesus christ) find the best match fragment from our source
-                boolean breakout = false;
-                for (int k = 0; k <sourceFrags.size(); k++) {
-                    if(breakout) {
-                        break;
-                    }
-                    ArrayList<BufferedImage> inner = sourceFrags.get(k);
-                    for (int l = 0; l < inner.size(); l++) {
-                        BufferedImage temp = inner.get(l);
-                        int tempSim = getSimilarityScore(temp, modelFrag);
-                        if (tempSim > 0 && tempSim < similarity) {
-                            goodMatch = temp;
-                            matchX = k;
-                            matchY = l;
-                            similarity = tempSim;
-                            if(similarity < SIMILARITY_SCORE_THRESHOLD) {
-                                //preemptively declare victory instead of trying for a better match
-                                breakout = true;
-                                break;
-                            }
-                        }
-
-                    }
+    /**
+     * Compose from a source that's already been scaled and broken down, e.g. one loaded back from disk
+     * @param fragments the source, at exactly the model's dimensions
+     * @param normalizedModel a model that's already been through {@link #normalizeImage}
+     */
+    public static BufferedImage remakeImage(SourceFragments fragments, BufferedImage normalizedModel,
+                                            ComposeOptions options) {
+        return compose(fragments, normalizedModel, options).getImage();
+    }
+
+    /**
+     * Same as {@link #remakeImage(SourceFragments, BufferedImage, ComposeOptions)}, also handing back which
+     * source fragment went where so the result can later be recomposed incrementally
+     */
+    public static ComposeResult compose(SourceFragments fragments, BufferedImage normalizedModel,
+                                        ComposeOptions options) {
+        return compose(fragments, normalizedModel, null, options);
+    }
+
+    /**
+     * Compose a model that's been edited since the compose that produced previous, re-matching only the
+     * fragments that changed, see {@link IncrementalComposer}
+     * @param previous the assignment of the earlier compose, over the same source and grid
+     */
+    public static ComposeResult recompose(SourceFragments fragments, BufferedImage normalizedModel,
+                                          FragmentAssignment previous, ComposeOptions options) {
+        return compose(fragments, normalizedModel, previous, options);
+    }
+
+    private static ComposeResult compose(SourceFragments fragments, BufferedImage normalizedModel,
+                                         FragmentAssignment previous, ComposeOptions options) {
+        int width = normalizedModel.getWidth();
+        int height = normalizedModel.getHeight();
+        if (fragments.getWidth() != width || fragments.getHeight() != height) {
+            throw new IllegalArgumentException("Source fragments are " + fragments.getWidth() + "x"
+                    + fragments.getHeight() + " but the model is " + width + "x" + height);
+        }
+        int fragWidth = fragments.getFragWidth();
+        int fragHeight = fragments.getFragHeight();
+        log.info("creating result with width " + width + " and height "+ height);
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] resultPixels = RasterSimilarity.data(result);
+        //Work on the backing int[] rasters directly rather than going through getRGB per pixel
+        int[] modelPixels = RasterSimilarity.data(RasterSimilarity.toPackedRgb(normalizedModel));
+        int columns = width/fragWidth;
+        int rows = height/fragHeight;
+        //kept with the assignment, so the next recompose can tell which fragments changed
+        byte[] features = FragmentIndex.computeFeatures(modelPixels, width, rows * fragHeight, fragWidth, fragHeight);
+        ComposeMonitor monitor = options.getMonitor();
+        monitor.start(columns * rows);
+        monitor.startResult(result, fragWidth);
+        monitor.checkCancelled();
+        int[] sources;
+        if (previous != null) {
+            sources = new IncrementalComposer(modelPixels, resultPixels, width, height, fragments, previous)
+                    .compose(features, monitor);
+        } else if (options.getMatchMode() == ComposeOptions.MatchMode.PYRAMID) {
+            sources = new PyramidComposer(modelPixels, resultPixels, width, height, fragments,
+                    options.getPyramidDepth()).compose(monitor);
+        } else if (options.getMatchMode() == ComposeOptions.MatchMode.ASSIGNMENT) {
+            sources = new AssignmentComposer(modelPixels, resultPixels, width, height, fragments,
+                    options.getParallelism(), options.getAssignmentBudgetMillis())
+                    .compose(monitor, options.getPool());
+        } else if (options.getParallelism() > 1) {
+            sources = new ParallelComposer(modelPixels, fragments, resultPixels, width, height, fragWidth,
+                    fragHeight, fragments.index(), options.getParallelism()).compose(options);
+        } else {
+            sources = new int[columns * rows];
+            FragmentIndex index = fragments.index();
+            //The outer two loops fill one fragment each of the result image
+            for(int i = 0; i < columns; i++) {
+                if(i % 10 == 0) {
+                    log.info("Update: " + i+"/"+columns);
                 }
-                graphics.drawImage(goodMatch, null, i * fragWidth, j * fragHeight);
-                //Remove the fragment we found so we don't use it again
-                sourceFrags.get(matchX).remove(matchY);
-                if (sourceFrags.get(matchX).size() == 0) {
-                    sourceFrags.remove(matchX);
+                monitor.checkCancelled();
+                for(int j = 0; j< rows; j++) {
+                    //find the closest source fragment we haven't used yet
+                    int id = i * rows + j;
+                    int match = index.nearest(features, id * FragmentIndex.FEATURE_LENGTH);
+                    fragments.copyFragment(match, resultPixels, j * fragHeight * width + i * fragWidth);
+                    sources[id] = match;
+                    //Remove the fragment we found so we don't use it again
+                    index.remove(match);
                 }
+                monitor.finishColumns(i, i + 1);
+                monitor.advance(rows);
             }
         }
+        //composers that only fill the result at the end haven't said so yet
+        monitor.finishColumns(0, columns);
         log.info("finished up creating image");
-        return result;
+        return new ComposeResult(result,
+                new FragmentAssignment(sources, features, width, height, fragWidth, fragHeight));
     }
 
+    /**
+     * Copy a fragment between two packed pixel arrays that share the same scanline length
+     */
+    static void copyFragment(int[] src, int srcOffset, int[] dst, int dstOffset, int scan, int fragWidth, int fragHeight) {
+        for (int y = 0; y < fragHeight; y++) {
+            System.arraycopy(src, srcOffset + y * scan, dst, dstOffset + y * scan, fragWidth);
+        }
+    }
 
     /**
      * Break down a source image into fragments.
@@ -138,47 +205,65 @@ public class ImageUtils {
      * Helper to scale the source image to the model's dimensions
      */
     public static BufferedImage transformSource(BufferedImage source, BufferedImage model) {
+        return transformSource(source, model, Resampler.Method.DRAW_IMAGE);
+    }
+
+    /**
+     * Same as {@link #transformSource(BufferedImage, BufferedImage)} with a choice of how to scale
+     */
+    public static BufferedImage transformSource(BufferedImage source, BufferedImage model, Resampler.Method method) {
         //just give em the basics if we're already the same size
         if (source.getWidth() == model.getWidth() && source.getHeight() == model.getHeight()) {
             return source;
         }
-        BufferedImage result = new BufferedImage(model.getWidth(), model.getHeight(), BufferedImage.TYPE_INT_RGB);
-        Graphics2D graphics = result.createGraphics();
-        graphics.drawImage(source, 0, 0, model.getWidth(), model.getHeight(), null);
-        return result;
+        return Resampler.scale(source, model.getWidth(), model.getHeight(), method);
+    }
 
+    /**
+     * Whether a model this size goes through the in-memory compose without being scaled down
+     */
+    public static boolean fitsInMemory(int width, int height) {
+        return width <= MAX_WIDTH && height <= MAX_HEIGHT;
     }
 
     /**
      * Helper to ensure that the model image isn't too big for us. Should try to make outdated at some point.
      */
     public static BufferedImage normalizeImage(BufferedImage model) {
-        BufferedImage result;
-        if(model.getWidth() > MAX_WIDTH || model.getHeight() > MAX_HEIGHT) {
+        return normalizeImage(model, Resampler.Method.DRAW_IMAGE);
+    }
+
+    /**
+     * Same as {@link #normalizeImage(BufferedImage)} with a choice of how to scale
+     */
+    public static BufferedImage normalizeImage(BufferedImage model, Resampler.Method method) {
+        if(!fitsInMemory(model.getWidth(), model.getHeight())) {
             log.info("Gonna have to scale the image down " + model.getWidth()+ " " + model.getHeight());
-            float ratio;
-            Graphics2D graphics;
-            if((float) model.getWidth()/MAX_WIDTH > (float) model.getHeight()/MAX_HEIGHT) {
-                //We're wider than we are tall, scale based on width
-                ratio = (float)MAX_WIDTH/model.getWidth();
-                int scaledHeight = (int) (ratio*model.getHeight());
-                log.info("New Width = " + MAX_WIDTH + " New Height = " +scaledHeight);
-                result = new BufferedImage(MAX_WIDTH, scaledHeight, BufferedImage.TYPE_INT_RGB);
-                graphics = result.createGraphics();
-                graphics.drawImage(model, 0, 0, MAX_WIDTH, scaledHeight, null);
-            } else {
-                //We're taller than we are wide, scale based on height
-                ratio = (float)MAX_HEIGHT/model.getHeight();
-                int scaledWidth = (int) (ratio * model.getWidth());
-                log.info("New Width = " + scaledWidth + " New Height = " + MAX_HEIGHT);
-                result = new BufferedImage(scaledWidth, MAX_HEIGHT, BufferedImage.TYPE_INT_RGB);
-                graphics = result.createGraphics();
-                graphics.drawImage(model,0, 0, scaledWidth, MAX_HEIGHT, null);
-            }
-            return result;
+            Dimension size = normalizedSize(model.getWidth(), model.getHeight());
+            log.info("New Width = " + size.width + " New Height = " + size.height);
+            return Resampler.scale(model, size.width, size.height, method);
         } else {
             return model;
         }
     }
+
+    /**
+     * The size {@link #normalizeImage} will turn a width x height model into
+     */
+    public static Dimension normalizedSize(int width, int height) {
+        if (fitsInMemory(width, height)) {
+            return new Dimension(width, height);
+        }
+        float ratio;
+        if((float) width/MAX_WIDTH > (float) height/MAX_HEIGHT) {
+            //We're wider than we are tall, scale based on width
+            ratio = (float)MAX_WIDTH/width;
+            return new Dimension(MAX_WIDTH, (int) (ratio*height));
+        } else {
+            //We're taller than we are wide, scale based on height
+            ratio = (float)MAX_HEIGHT/height;
+            return new Dimension((int) (ratio * width), MAX_HEIGHT);
+        }
+    }
 }
 
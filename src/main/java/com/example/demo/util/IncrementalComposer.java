@@ -0,0 +1,90 @@
+package com.example.demo.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Recomposes a model that's been edited since an earlier compose, matching only the fragments that changed.
+ *
+ * Every model fragment whose features are within {@link #UNCHANGED_DISTANCE} of what they were last time keeps
+ * the source fragment it had. Those are taken out of the pool up front; the source fragments of the changed ones
+ * are what's left, and each changed fragment takes the nearest of them, column by column like the greedy
+ * compose. Apart from the feature pass and the copy into the result, the work grows with the edited area rather
+ * than the whole image.
+ */
+public class IncrementalComposer {
+
+    /**
+     * Feature distance under which a model fragment counts as unchanged. Big enough that re-encoding an edited
+     * model as JPEG doesn't mark everything as changed.
+     */
+    static final int UNCHANGED_DISTANCE = 24;
+
+    static Logger log = LoggerFactory.getLogger(IncrementalComposer.class);
+
+    private final int[] modelPixels;
+    private final int[] resultPixels;
+    private final int width;
+    private final int fragWidth;
+    private final int fragHeight;
+    private final int columns;
+    private final int rows;
+    private final SourceFragments fragments;
+    private final FragmentAssignment previous;
+
+    public IncrementalComposer(int[] modelPixels, int[] resultPixels, int width, int height,
+                               SourceFragments fragments, FragmentAssignment previous) {
+        if (!previous.fits(fragments)) {
+            throw new IllegalArgumentException("The previous assignment is for a different grid");
+        }
+        this.modelPixels = modelPixels;
+        this.resultPixels = resultPixels;
+        this.width = width;
+        this.fragWidth = fragments.getFragWidth();
+        this.fragHeight = fragments.getFragHeight();
+        this.columns = width / fragWidth;
+        this.rows = height / fragHeight;
+        this.fragments = fragments;
+        this.previous = previous;
+    }
+
+    /**
+     * @return the source fragment placed at every model fragment, by column-major id
+     */
+    public int[] compose(byte[] modelFeatures, ComposeMonitor monitor) {
+        int count = columns * rows;
+        byte[] previousFeatures = previous.getModelFeatures();
+        int[] previousSources = previous.getSources();
+        int[] sources = new int[count];
+        boolean[] changed = new boolean[count];
+        FragmentIndex index = fragments.index();
+        int changes = 0;
+        for (int id = 0; id < count; id++) {
+            int offset = id * FragmentIndex.FEATURE_LENGTH;
+            if (FragmentIndex.distance(modelFeatures, offset, previousFeatures, offset) <= UNCHANGED_DISTANCE) {
+                sources[id] = previousSources[id];
+                index.remove(previousSources[id]);
+            } else {
+                changed[id] = true;
+                changes++;
+            }
+        }
+        log.info(changes + " of " + count + " fragments changed since the previous compose");
+
+        for (int i = 0; i < columns; i++) {
+            monitor.checkCancelled();
+            for (int j = 0; j < rows; j++) {
+                int id = i * rows + j;
+                if (changed[id]) {
+                    sources[id] = index.nearest(modelFeatures, id * FragmentIndex.FEATURE_LENGTH);
+                    index.remove(sources[id]);
+                }
+                int match = sources[id];
+                fragments.copyFragment(match, resultPixels, j * fragHeight * width + i * fragWidth);
+            }
+            monitor.finishColumns(i, i + 1);
+            monitor.advance(rows);
+        }
+        return sources;
+    }
+}
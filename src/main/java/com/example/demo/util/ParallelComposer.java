@@ -0,0 +1,218 @@
+package com.example.demo.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Fills the result image in vertical bands of fragment columns, one band per worker on a ForkJoinPool.
+ *
+ * Which fragments are used lives in a {@link FragmentClaims} bitset shared by all bands. Each band searches its
+ * own copy of the {@link FragmentIndex}, dropping fragments from it as it finds them claimed, so no band keeps
+ * passing over the fragments every other band has used. In the default mode every band just looks up its
+ * nearest unclaimed fragment and retries if another band claims it first. In seeded mode the bands propose
+ * matches for a batch of fragments in parallel, then the proposals are accepted one band at a time in a seeded
+ * order, so the result doesn't depend on thread timing.
+ */
+public class ParallelComposer {
+
+    private static final int BATCH_SIZE = 64;
+
+    static Logger log = LoggerFactory.getLogger(ParallelComposer.class);
+
+    private final int[] modelPixels;
+    private final SourceFragments fragments;
+    private final int[] resultPixels;
+    private final int width;
+    private final int fragWidth;
+    private final int fragHeight;
+    private final int rows;
+    private final FragmentIndex index;
+    private final FragmentClaims claims;
+    private final int[] bandStart;
+    //source fragment placed at every model fragment, by column-major id
+    private final int[] sources;
+    private ComposeMonitor monitor;
+
+    public ParallelComposer(int[] modelPixels, SourceFragments fragments, int[] resultPixels, int width,
+                            int height, int fragWidth, int fragHeight, FragmentIndex index, int bands) {
+        this.modelPixels = modelPixels;
+        this.fragments = fragments;
+        this.resultPixels = resultPixels;
+        this.width = width;
+        this.fragWidth = fragWidth;
+        this.fragHeight = fragHeight;
+        this.rows = height / fragHeight;
+        this.index = index;
+        this.claims = new FragmentClaims(index.size());
+        this.sources = new int[index.size()];
+
+        int columns = width / fragWidth;
+        bands = Math.max(1, Math.min(bands, columns));
+        this.bandStart = new int[bands + 1];
+        for (int b = 0; b <= bands; b++) {
+            bandStart[b] = (int) ((long) columns * b / bands);
+        }
+    }
+
+    /**
+     * @return the source fragment placed at every model fragment, by column-major id
+     */
+    public int[] compose(ComposeOptions options) {
+        this.monitor = options.getMonitor();
+        ForkJoinPool shared = options.getPool();
+        ForkJoinPool pool = shared != null ? shared : new ForkJoinPool(options.getParallelism());
+        try {
+            if (options.isDeterministic()) {
+                composeSeeded(pool, options.getSeed());
+            } else {
+                composeRacing(pool);
+            }
+        } finally {
+            if (pool != shared) {
+                pool.shutdownNow();
+            }
+        }
+        return sources;
+    }
+
+    private int bands() {
+        return bandStart.length - 1;
+    }
+
+    private int bandSize(int band) {
+        return (bandStart[band + 1] - bandStart[band]) * rows;
+    }
+
+    private void composeRacing(ForkJoinPool pool) {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int b = 0; b < bands(); b++) {
+            final int band = b;
+            tasks.add(() -> {
+                byte[] features = new byte[FragmentIndex.FEATURE_LENGTH];
+                FragmentIndex view = index.copy();
+                for (int k = 0; k < bandSize(band); k++) {
+                    monitor.checkCancelled();
+                    extractModel(band, k, features);
+                    int match;
+                    do {
+                        match = view.nearestPruning(features, 0, claims::isClaimed, null);
+                        if (match < 0) {
+                            throw new IllegalStateException("Ran out of source fragments");
+                        }
+                    } while (!claims.tryClaim(match));
+                    view.remove(match);
+                    place(band, k, match);
+                    if ((k + 1) % rows == 0) {
+                        int column = bandStart[band] + k / rows;
+                        monitor.finishColumns(column, column + 1);
+                        monitor.advance(rows);
+                    }
+                }
+                log.info("Finished band " + band + "/" + bands());
+                return null;
+            });
+        }
+        runAll(pool, tasks);
+    }
+
+    private void composeSeeded(ForkJoinPool pool, long seed) {
+        Random random = new Random(seed);
+        int[] done = new int[bands()];
+        int[][] proposals = new int[bands()][BATCH_SIZE];
+        int[] proposed = new int[bands()];
+        FragmentIndex[] views = new FragmentIndex[bands()];
+        List<Integer> order = new ArrayList<>();
+        for (int b = 0; b < bands(); b++) {
+            order.add(b);
+            views[b] = index.copy();
+        }
+
+        while (true) {
+            monitor.checkCancelled();
+            //Phase 1: every unfinished band proposes matches for its next batch against the current claims
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int b = 0; b < bands(); b++) {
+                final int band = b;
+                proposed[band] = Math.min(BATCH_SIZE, bandSize(band) - done[band]);
+                if (proposed[band] == 0) {
+                    continue;
+                }
+                tasks.add(() -> {
+                    byte[] features = new byte[FragmentIndex.FEATURE_LENGTH];
+                    //don't let a band propose the same fragment twice within its own batch
+                    BitSet tentative = new BitSet();
+                    for (int k = 0; k < proposed[band]; k++) {
+                        extractModel(band, done[band] + k, features);
+                        //claims don't change during this phase, so what's pruned doesn't depend on thread timing
+                        int match = views[band].nearestPruning(features, 0, claims::isClaimed, tentative::get);
+                        if (match < 0) {
+                            throw new IllegalStateException("Ran out of source fragments");
+                        }
+                        tentative.set(match);
+                        proposals[band][k] = match;
+                    }
+                    return null;
+                });
+            }
+            if (tasks.isEmpty()) {
+                break;
+            }
+            runAll(pool, tasks);
+
+            //Phase 2: accept proposals band by band in a seeded order; a band stops at its first conflict and
+            //re-proposes from there next round. The first band in the order always gets its whole batch.
+            Collections.shuffle(order, random);
+            for (int band : order) {
+                int k = 0;
+                while (k < proposed[band] && claims.tryClaim(proposals[band][k])) {
+                    place(band, done[band] + k, proposals[band][k]);
+                    k++;
+                }
+                monitor.finishColumns(bandStart[band] + done[band] / rows,
+                        bandStart[band] + (done[band] + k) / rows);
+                done[band] += k;
+                monitor.advance(k);
+            }
+        }
+    }
+
+    private void extractModel(int band, int k, byte[] features) {
+        int x = (bandStart[band] + k / rows) * fragWidth;
+        int y = (k % rows) * fragHeight;
+        FragmentIndex.extract(modelPixels, width, x, y, fragWidth, fragHeight, features, 0);
+    }
+
+    private void place(int band, int k, int match) {
+        sources[bandStart[band] * rows + k] = match;
+        int x = (bandStart[band] + k / rows) * fragWidth;
+        int y = (k % rows) * fragHeight;
+        fragments.copyFragment(match, resultPixels, y * width + x);
+    }
+
+    static void runAll(ForkJoinPool pool, List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while composing", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof CancellationException) {
+                throw (CancellationException) ex.getCause();
+            }
+            throw new IllegalStateException("Compose worker failed", ex.getCause());
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.example.demo.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+/**
+ * Coarse-to-fine matching over feature pyramids of the model and the source.
+ *
+ * Level 0 holds the per-fragment feature vectors; each level above describes 2x2 blocks of the one below, the
+ * same as building the features from an image downscaled by two. At the top level every model block picks its
+ * {@link #CANDIDATES} nearest source blocks from the whole source. Each level down, a block only considers the
+ * children of the candidates its parent picked, and at level 0 a fragment takes the nearest unused source
+ * fragment among those. Fragments the pyramid doesn't cover (leftover edge rows/columns) or whose candidates
+ * have all been used fall back to the exact global search.
+ *
+ * Lookups cost a fixed handful of distance checks per fragment instead of a search over the whole pool, at the
+ * price of occasionally missing the globally nearest fragment.
+ */
+public class PyramidComposer {
+
+    /** how many source blocks each model block keeps as candidates at every level */
+    private static final int CANDIDATES = 4;
+
+    static Logger log = LoggerFactory.getLogger(PyramidComposer.class);
+
+    private final int[] modelPixels;
+    private final int[] resultPixels;
+    private final int width;
+    private final int fragWidth;
+    private final int fragHeight;
+    private final int columns;
+    private final int rows;
+    private final SourceFragments fragments;
+    private final int depth;
+
+    public PyramidComposer(int[] modelPixels, int[] resultPixels, int width, int height,
+                           SourceFragments fragments, int depth) {
+        this.modelPixels = modelPixels;
+        this.resultPixels = resultPixels;
+        this.width = width;
+        this.fragWidth = fragments.getFragWidth();
+        this.fragHeight = fragments.getFragHeight();
+        this.columns = width / fragWidth;
+        this.rows = height / fragHeight;
+        this.fragments = fragments;
+        //don't go past the point where the top level would be empty
+        int levels = 0;
+        while (levels < depth && (columns >> (levels + 1)) > 0 && (rows >> (levels + 1)) > 0) {
+            levels++;
+        }
+        this.depth = levels;
+    }
+
+    /**
+     * @return the source fragment placed at every model fragment, by column-major id
+     */
+    public int[] compose(ComposeMonitor monitor) {
+        byte[][] modelLevels = new byte[depth + 1][];
+        byte[][] sourceLevels = new byte[depth + 1][];
+        modelLevels[0] = FragmentIndex.computeFeatures(modelPixels, width, rows * fragHeight, fragWidth, fragHeight);
+        sourceLevels[0] = fragments.getFeatures();
+        for (int level = 1; level <= depth; level++) {
+            modelLevels[level] = reduce(modelLevels[level - 1], columns >> (level - 1), rows >> (level - 1));
+            sourceLevels[level] = reduce(sourceLevels[level - 1], columns >> (level - 1), rows >> (level - 1));
+        }
+        monitor.checkCancelled();
+
+        //candidates[k * CANDIDATES + c] is the c-th source block picked for model block k, -1 if there isn't one
+        int[] candidates = depth > 0 ? topCandidates(modelLevels[depth], sourceLevels[depth]) : null;
+        for (int level = depth - 1; level >= 1; level--) {
+            monitor.checkCancelled();
+            candidates = refineCandidates(level, modelLevels[level], sourceLevels[level], candidates);
+        }
+        log.info("Matched " + depth + " pyramid levels, refining fragments");
+
+        FragmentIndex index = fragments.index();
+        boolean[] used = new boolean[columns * rows];
+        int[] sources = new int[columns * rows];
+        byte[] modelFeatures = modelLevels[0];
+        byte[] sourceFeatures = sourceLevels[0];
+        int parentColumns = columns >> 1;
+        int parentRows = rows >> 1;
+        int fallbacks = 0;
+        for (int i = 0; i < columns; i++) {
+            if (i % 10 == 0) {
+                log.info("Update: " + i + "/" + columns);
+            }
+            monitor.checkCancelled();
+            for (int j = 0; j < rows; j++) {
+                int id = i * rows + j;
+                int match = -1;
+                if (candidates != null && (i >> 1) < parentColumns && (j >> 1) < parentRows) {
+                    match = nearestChild(modelFeatures, id * FragmentIndex.FEATURE_LENGTH, sourceFeatures,
+                            candidates, (i >> 1) * parentRows + (j >> 1), parentRows, rows, used);
+                }
+                if (match < 0) {
+                    match = index.nearest(modelFeatures, id * FragmentIndex.FEATURE_LENGTH);
+                    fallbacks++;
+                }
+                used[match] = true;
+                sources[id] = match;
+                index.remove(match);
+                fragments.copyFragment(match, resultPixels, j * fragHeight * width + i * fragWidth);
+            }
+            monitor.finishColumns(i, i + 1);
+            monitor.advance(rows);
+        }
+        log.info(fallbacks + " of " + (columns * rows) + " fragments fell back to the global search");
+        return sources;
+    }
+
+    /**
+     * Features for the level above: block (x, y) covers blocks (2x..2x+1, 2y..2y+1) below it. Its quadrant
+     * means are its children's means and its own mean is their average.
+     */
+    static byte[] reduce(byte[] features, int childColumns, int childRows) {
+        int parentColumns = childColumns / 2;
+        int parentRows = childRows / 2;
+        byte[] reduced = new byte[parentColumns * parentRows * FragmentIndex.FEATURE_LENGTH];
+        for (int x = 0; x < parentColumns; x++) {
+            for (int y = 0; y < parentRows; y++) {
+                int out = (x * parentRows + y) * FragmentIndex.FEATURE_LENGTH;
+                //quadrant order matches FragmentIndex.extract: top-left, top-right, bottom-left, bottom-right
+                int[] children = {
+                        (2 * x) * childRows + 2 * y,
+                        (2 * x + 1) * childRows + 2 * y,
+                        (2 * x) * childRows + 2 * y + 1,
+                        (2 * x + 1) * childRows + 2 * y + 1
+                };
+                for (int channel = 0; channel < 3; channel++) {
+                    int sum = 0;
+                    for (int q = 0; q < 4; q++) {
+                        int mean = features[children[q] * FragmentIndex.FEATURE_LENGTH + channel] & 0xFF;
+                        reduced[out + 3 * (q + 1) + channel] = (byte) mean;
+                        sum += mean;
+                    }
+                    reduced[out + channel] = (byte) (sum / 4);
+                }
+            }
+        }
+        return reduced;
+    }
+
+    /**
+     * At the top level every model block searches the whole source, through an index over the block features
+     */
+    private int[] topCandidates(byte[] modelFeatures, byte[] sourceFeatures) {
+        int blockColumns = columns >> depth;
+        int blockRows = rows >> depth;
+        int blocks = blockColumns * blockRows;
+        FragmentIndex index = new FragmentIndex(sourceFeatures, blockColumns, blockRows, 1, 1);
+        int[] candidates = new int[blocks * CANDIDATES];
+        Arrays.fill(candidates, -1);
+        for (int k = 0; k < blocks; k++) {
+            int base = k * CANDIDATES;
+            for (int c = 0; c < CANDIDATES; c++) {
+                final int found = c;
+                int match = index.nearest(modelFeatures, k * FragmentIndex.FEATURE_LENGTH,
+                        id -> contains(candidates, base, found, id));
+                if (match < 0) {
+                    break;
+                }
+                candidates[base + c] = match;
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Narrow the parent level's candidates down to the nearest children for every block on this level
+     */
+    private int[] refineCandidates(int level, byte[] modelFeatures, byte[] sourceFeatures, int[] parentCandidates) {
+        int blockColumns = columns >> level;
+        int blockRows = rows >> level;
+        int parentColumns = blockColumns / 2;
+        int parentRows = blockRows / 2;
+        int[] candidates = new int[blockColumns * blockRows * CANDIDATES];
+        Arrays.fill(candidates, -1);
+        int[] bestDistance = new int[CANDIDATES];
+        for (int x = 0; x < blockColumns; x++) {
+            for (int y = 0; y < blockRows; y++) {
+                if ((x >> 1) >= parentColumns || (y >> 1) >= parentRows) {
+                    continue;
+                }
+                int base = (x * blockRows + y) * CANDIDATES;
+                int queryOffset = (x * blockRows + y) * FragmentIndex.FEATURE_LENGTH;
+                int parentBase = ((x >> 1) * parentRows + (y >> 1)) * CANDIDATES;
+                Arrays.fill(bestDistance, Integer.MAX_VALUE);
+                for (int p = 0; p < CANDIDATES; p++) {
+                    int parent = parentCandidates[parentBase + p];
+                    if (parent < 0) {
+                        continue;
+                    }
+                    for (int q = 0; q < 4; q++) {
+                        int child = child(parent, parentRows, blockRows, q);
+                        int d = FragmentIndex.distance(modelFeatures, queryOffset,
+                                sourceFeatures, child * FragmentIndex.FEATURE_LENGTH);
+                        insert(candidates, base, bestDistance, child, d);
+                    }
+                }
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * The nearest unused level 0 fragment among the children of a level 1 block's candidates, or -1
+     */
+    private static int nearestChild(byte[] query, int queryOffset, byte[] sourceFeatures, int[] candidates,
+                                    int parent, int parentRows, int childRows, boolean[] used) {
+        int best = -1;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int p = 0; p < CANDIDATES; p++) {
+            int candidate = candidates[parent * CANDIDATES + p];
+            if (candidate < 0) {
+                continue;
+            }
+            for (int q = 0; q < 4; q++) {
+                int child = child(candidate, parentRows, childRows, q);
+                if (used[child]) {
+                    continue;
+                }
+                int d = FragmentIndex.distance(query, queryOffset,
+                        sourceFeatures, child * FragmentIndex.FEATURE_LENGTH);
+                if (d < bestDistance) {
+                    bestDistance = d;
+                    best = child;
+                }
+            }
+        }
+        return best;
+    }
+
+    private static int child(int parent, int parentRows, int childRows, int quadrant) {
+        int x = (parent / parentRows) * 2 + (quadrant & 1);
+        int y = (parent % parentRows) * 2 + (quadrant >> 1);
+        return x * childRows + y;
+    }
+
+    /**
+     * Keep the CANDIDATES closest ids seen so far, sorted by distance
+     */
+    private static void insert(int[] candidates, int base, int[] bestDistance, int id, int d) {
+        int slot = CANDIDATES;
+        while (slot > 0 && d < bestDistance[slot - 1]) {
+            slot--;
+        }
+        if (slot == CANDIDATES) {
+            return;
+        }
+        for (int k = CANDIDATES - 1; k > slot; k--) {
+            bestDistance[k] = bestDistance[k - 1];
+            candidates[base + k] = candidates[base + k - 1];
+        }
+        bestDistance[slot] = d;
+        candidates[base + slot] = id;
+    }
+
+    private static boolean contains(int[] values, int base, int count, int value) {
+        for (int k = 0; k < count; k++) {
+            if (values[base + k] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,216 @@
+package com.example.demo.util;
+
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Vector;
+
+/**
+ * An RGB image kept in a temporary file instead of on the heap, 3 bytes per pixel, row-major.
+ *
+ * Written a band of rows at a time by {@link TiledComposer} and read back through {@link RenderedImage}, so
+ * an encoder that pulls rows as it goes (ImageIO's PNG writer does) never needs the whole image in memory.
+ * The file is deleted on {@link #close()}.
+ */
+public class RasterFile implements RenderedImage, Closeable {
+
+    /** rows per tile handed out through the RenderedImage interface */
+    private static final int TILE_ROWS = 16;
+    private static final int[] MASKS = {0xFF0000, 0xFF00, 0xFF};
+
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final ColorModel colorModel = new DirectColorModel(24, MASKS[0], MASKS[1], MASKS[2]);
+
+    private RasterFile(FileChannel channel, int width, int height) {
+        this.channel = channel;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Create an all-black image in a new temporary file under dir
+     */
+    public static RasterFile create(Path dir, int width, int height) throws IOException {
+        Path path = Files.createTempFile(dir, ".compose-", ".rgb");
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        //extend to full size up front so unwritten rows read back as black
+        channel.write(ByteBuffer.allocate(1), (long) width * height * 3 - 1);
+        return new RasterFile(channel, width, height);
+    }
+
+    /**
+     * Copy full-width rows of packed RGB pixels into the file, starting at row y
+     */
+    public void writeRows(int y, int[] pixels, int scan, int rows) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(width * 3);
+        for (int row = 0; row < rows; row++) {
+            buffer.clear();
+            int start = row * scan;
+            for (int x = 0; x < width; x++) {
+                int rgb = pixels[start + x];
+                buffer.put((byte) (rgb >> 16)).put((byte) (rgb >> 8)).put((byte) rgb);
+            }
+            buffer.flip();
+            long position = ((long) (y + row) * width) * 3;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+    @Override
+    public Raster getData(Rectangle rect) {
+        Rectangle bounds = rect.intersection(new Rectangle(0, 0, width, height));
+        int[] pixels = new int[bounds.width * bounds.height];
+        ByteBuffer buffer = ByteBuffer.allocate(bounds.width * 3);
+        try {
+            for (int row = 0; row < bounds.height; row++) {
+                buffer.clear();
+                long position = ((long) (bounds.y + row) * width + bounds.x) * 3;
+                while (buffer.hasRemaining()) {
+                    int read = channel.read(buffer, position + buffer.position());
+                    if (read < 0) {
+                        throw new IOException("Raster file ended early");
+                    }
+                }
+                byte[] bytes = buffer.array();
+                for (int x = 0; x < bounds.width; x++) {
+                    pixels[row * bounds.width + x] = (bytes[x * 3] & 0xFF) << 16
+                            | (bytes[x * 3 + 1] & 0xFF) << 8
+                            | (bytes[x * 3 + 2] & 0xFF);
+                }
+            }
+        } catch (IOException iox) {
+            throw new UncheckedIOException(iox);
+        }
+        return Raster.createPackedRaster(new DataBufferInt(pixels, pixels.length), bounds.width, bounds.height,
+                bounds.width, MASKS, new Point(bounds.x, bounds.y));
+    }
+
+    @Override
+    public Raster getData() {
+        return getData(new Rectangle(0, 0, width, height));
+    }
+
+    @Override
+    public Raster getTile(int tileX, int tileY) {
+        return getData(new Rectangle(0, tileY * TILE_ROWS, width, TILE_ROWS));
+    }
+
+    @Override
+    public WritableRaster copyData(WritableRaster raster) {
+        if (raster == null) {
+            raster = colorModel.createCompatibleWritableRaster(width, height);
+        }
+        raster.setRect(getData(raster.getBounds()));
+        return raster;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public Vector<RenderedImage> getSources() {
+        return null;
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return Image.UndefinedProperty;
+    }
+
+    @Override
+    public String[] getPropertyNames() {
+        return null;
+    }
+
+    @Override
+    public ColorModel getColorModel() {
+        return colorModel;
+    }
+
+    @Override
+    public SampleModel getSampleModel() {
+        return colorModel.createCompatibleSampleModel(width, TILE_ROWS);
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getMinX() {
+        return 0;
+    }
+
+    @Override
+    public int getMinY() {
+        return 0;
+    }
+
+    @Override
+    public int getNumXTiles() {
+        return 1;
+    }
+
+    @Override
+    public int getNumYTiles() {
+        return (height + TILE_ROWS - 1) / TILE_ROWS;
+    }
+
+    @Override
+    public int getMinTileX() {
+        return 0;
+    }
+
+    @Override
+    public int getMinTileY() {
+        return 0;
+    }
+
+    @Override
+    public int getTileWidth() {
+        return width;
+    }
+
+    @Override
+    public int getTileHeight() {
+        return TILE_ROWS;
+    }
+
+    @Override
+    public int getTileGridXOffset() {
+        return 0;
+    }
+
+    @Override
+    public int getTileGridYOffset() {
+        return 0;
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.demo.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Similarity scoring straight off the int[] rasters backing TYPE_INT_RGB images.
+ *
+ * Fragments are addressed as (offset, stride) into the shared array, so subimages from getSubimage can be
+ * compared without copying, and channels are unpacked with shifts instead of going through Color objects.
+ * Scores are identical to the original per-pixel getRGB/Color version for the same sampling pattern.
+ */
+public class RasterSimilarity {
+
+    private RasterSimilarity() {
+    }
+
+    /**
+     * Score two width x height fragments. Samples every other column and row starting from the bottom right,
+     * the same pattern {@link ImageUtils#getSimilarityScore} has always used.
+     */
+    public static int score(int[] a, int aOffset, int aStride,
+                            int[] b, int bOffset, int bStride,
+                            int width, int height) {
+        int similarityScore = 0;
+        for (int i = width - 1; i >= 0; i -= 2) {
+            for (int j = height - 1; j >= 0; j -= 2) {
+                int aRgb = a[aOffset + j * aStride + i];
+                int bRgb = b[bOffset + j * bStride + i];
+                similarityScore += Math.abs(((aRgb >> 16) & 0xFF) - ((bRgb >> 16) & 0xFF));
+                similarityScore += Math.abs(((aRgb >> 8) & 0xFF) - ((bRgb >> 8) & 0xFF));
+                similarityScore += Math.abs((aRgb & 0xFF) - (bRgb & 0xFF));
+            }
+        }
+        return similarityScore / (width * height);
+    }
+
+    /**
+     * Whether the image is backed by a packed int[] we can read directly
+     */
+    public static boolean isPacked(BufferedImage image) {
+        return image.getType() == BufferedImage.TYPE_INT_RGB
+                && image.getRaster().getDataBuffer() instanceof DataBufferInt
+                && image.getRaster().getSampleModel() instanceof SinglePixelPackedSampleModel;
+    }
+
+    /**
+     * The backing pixel array of a packed image. Shared with the image, so writes show up in it.
+     */
+    public static int[] data(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Index of pixel (0, 0) of a packed image in its backing array; non-zero for subimages
+     */
+    public static int offset(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        return raster.getDataBuffer().getOffset()
+                - raster.getSampleModelTranslateY() * stride(image)
+                - raster.getSampleModelTranslateX();
+    }
+
+    /**
+     * Distance between the starts of two consecutive rows in the backing array
+     */
+    public static int stride(BufferedImage image) {
+        return ((SinglePixelPackedSampleModel) image.getRaster().getSampleModel()).getScanlineStride();
+    }
+
+    /**
+     * Make sure we're working with a TYPE_INT_RGB image we own outright, converting if we have to.
+     * Images that are already packed, unshared and unpadded are returned as is.
+     */
+    public static BufferedImage toPackedRgb(BufferedImage image) {
+        if (isPacked(image) && offset(image) == 0 && stride(image) == image.getWidth()) {
+            return image;
+        }
+        BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        int[] pixels = data(result);
+        image.getRGB(0, 0, image.getWidth(), image.getHeight(), pixels, 0, image.getWidth());
+        return result;
+    }
+}
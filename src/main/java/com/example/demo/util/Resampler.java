@@ -0,0 +1,258 @@
+package com.example.demo.util;
+
+import net.coobird.thumbnailator.Thumbnails;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Image scaling for the compose pipeline.
+ *
+ * {@link Method#RESAMPLE} is a separable resampler: an area-average (box) filter along any axis
+ * that shrinks by 2x or more, and a bilinear (triangle) filter widened to the reduction otherwise, so reductions
+ * are antialiased. Each result row is made by blending the source rows under it into one full-width row and
+ * then shrinking that, so there's no intermediate image. Rows are read straight out of INT_RGB/INT_ARGB and
+ * interleaved byte rasters (TYPE_3BYTE_BGR from JPEG decodes) without converting the whole image first, and
+ * result rows are split across the common ForkJoinPool.
+ *
+ * It reads every source pixel, so it's far slower than {@link Method#DRAW_IMAGE}, which only reads the pixels it
+ * keeps: about 135ms against 2-3ms taking a 6000x4000 photo to 720x480 on one core. DRAW_IMAGE stays the default,
+ * and RESAMPLE is for when the aliasing matters more than the time.
+ */
+public class Resampler {
+
+    /**
+     * How to scale an image
+     */
+    public enum Method {
+        /** the built-in area-average/bilinear resampler */
+        RESAMPLE,
+        /** Thumbnailator's progressive bilinear scaling */
+        THUMBNAILATOR,
+        /** Graphics2D.drawImage with default hints, which is what we always used to do */
+        DRAW_IMAGE
+    }
+
+    private static final int WEIGHT_BITS = 14;
+    private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+    private static final int ROWS_PER_TASK = 8;
+
+    private Resampler() {
+    }
+
+    /**
+     * Scale an image to exactly width x height, returned as TYPE_INT_RGB
+     */
+    public static BufferedImage scale(BufferedImage image, int width, int height, Method method) {
+        switch (method) {
+            case THUMBNAILATOR:
+                try {
+                    return Thumbnails.of(image)
+                            .forceSize(width, height)
+                            .imageType(BufferedImage.TYPE_INT_RGB)
+                            .asBufferedImage();
+                } catch (IOException iox) {
+                    throw new UncheckedIOException(iox);
+                }
+            case DRAW_IMAGE:
+                BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                Graphics2D graphics = result.createGraphics();
+                graphics.drawImage(image, 0, 0, width, height, null);
+                graphics.dispose();
+                return result;
+            default:
+                return resample(image, width, height);
+        }
+    }
+
+    /**
+     * Scale with the built-in resampler
+     */
+    public static BufferedImage resample(BufferedImage image, int width, int height) {
+        int sourceWidth = image.getWidth();
+        RowReader reader = reader(image);
+        Weights horizontal = new Weights(sourceWidth, width);
+        Weights vertical = new Weights(image.getHeight(), height);
+
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = RasterSimilarity.data(result);
+        IntStream.range(0, (height + ROWS_PER_TASK - 1) / ROWS_PER_TASK).parallel().forEach(task -> {
+            int[] r = new int[sourceWidth];
+            int[] g = new int[sourceWidth];
+            int[] b = new int[sourceWidth];
+            int end = Math.min(height, (task + 1) * ROWS_PER_TASK);
+            for (int y = task * ROWS_PER_TASK; y < end; y++) {
+                //vertical pass first: blend the source rows under this result row into one full-width row...
+                Arrays.fill(r, 0);
+                Arrays.fill(g, 0);
+                Arrays.fill(b, 0);
+                for (int k = 0; k < vertical.count[y]; k++) {
+                    reader.accumulate(vertical.start[y] + k, vertical.weight(y, k), r, g, b);
+                }
+                for (int x = 0; x < sourceWidth; x++) {
+                    r[x] = unscale(r[x]);
+                    g[x] = unscale(g[x]);
+                    b[x] = unscale(b[x]);
+                }
+                //...then shrink that row to the new width
+                horizontal.apply(r, g, b, pixels, y * width);
+            }
+        });
+        return result;
+    }
+
+    private static int unscale(int value) {
+        return Math.min(255, (value + WEIGHT_ONE / 2) >> WEIGHT_BITS);
+    }
+
+    /**
+     * Adds one row of an image, times a weight, onto separate red, green and blue rows
+     */
+    private interface RowReader {
+        void accumulate(int y, int weight, int[] r, int[] g, int[] b);
+    }
+
+    private static RowReader reader(BufferedImage image) {
+        int width = image.getWidth();
+        WritableRaster raster = image.getRaster();
+        int type = image.getType();
+        if ((type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+                && raster.getDataBuffer() instanceof DataBufferInt
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+            int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+            int offset = raster.getDataBuffer().getOffset()
+                    - raster.getSampleModelTranslateY() * stride - raster.getSampleModelTranslateX();
+            return (y, weight, r, g, b) -> accumulatePacked(data, offset + y * stride, width, weight, r, g, b);
+        }
+        if ((type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR)
+                && raster.getDataBuffer() instanceof DataBufferByte
+                && raster.getSampleModel() instanceof ComponentSampleModel) {
+            byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+            int stride = sampleModel.getScanlineStride();
+            int pixelStride = sampleModel.getPixelStride();
+            int[] bandOffsets = sampleModel.getBandOffsets();
+            //bands are R, G, B(, A) whatever order they sit in memory
+            int red = bandOffsets[0];
+            int green = bandOffsets[1];
+            int blue = bandOffsets[2];
+            int offset = raster.getDataBuffer().getOffset()
+                    - raster.getSampleModelTranslateY() * stride - raster.getSampleModelTranslateX() * pixelStride;
+            return (y, weight, r, g, b) -> {
+                int p = offset + y * stride;
+                for (int x = 0; x < width; x++, p += pixelStride) {
+                    r[x] += (data[p + red] & 0xFF) * weight;
+                    g[x] += (data[p + green] & 0xFF) * weight;
+                    b[x] += (data[p + blue] & 0xFF) * weight;
+                }
+            };
+        }
+        //anything else gets converted once up front
+        int[] data = RasterSimilarity.data(RasterSimilarity.toPackedRgb(image));
+        return (y, weight, r, g, b) -> accumulatePacked(data, y * width, width, weight, r, g, b);
+    }
+
+    private static void accumulatePacked(int[] data, int offset, int width, int weight, int[] r, int[] g, int[] b) {
+        for (int x = 0; x < width; x++) {
+            int rgb = data[offset + x];
+            r[x] += ((rgb >> 16) & 0xFF) * weight;
+            g[x] += ((rgb >> 8) & 0xFF) * weight;
+            b[x] += (rgb & 0xFF) * weight;
+        }
+    }
+
+    /**
+     * Fixed-point filter weights for scaling one axis from sourceSize to size
+     */
+    private static class Weights {
+
+        private final int[] start;
+        private final int[] count;
+        private final int[] weights;
+        private final int taps;
+
+        Weights(int sourceSize, int size) {
+            double scale = (double) sourceSize / size;
+            boolean box = scale >= 2;
+            //widen the filter to the reduction so every source pixel contributes
+            double filterScale = Math.max(1, scale);
+            double support = (box ? 0.5 : 1) * filterScale;
+            this.taps = (int) Math.ceil(support) * 2 + 1;
+            this.start = new int[size];
+            this.count = new int[size];
+            this.weights = new int[size * taps];
+            double[] raw = new double[taps];
+            for (int i = 0; i < size; i++) {
+                double center = (i + 0.5) * scale;
+                int first = Math.max(0, (int) Math.floor(center - support));
+                int last = Math.min(sourceSize, (int) Math.ceil(center + support));
+                double total = 0;
+                int n = 0;
+                for (int s = first; s < last && n < taps; s++, n++) {
+                    if (box) {
+                        //how much of the source pixel the output pixel's footprint covers
+                        raw[n] = Math.max(0, Math.min(s + 1, center + support) - Math.max(s, center - support));
+                    } else {
+                        raw[n] = Math.max(0, 1 - Math.abs((s + 0.5 - center) / filterScale));
+                    }
+                    total += raw[n];
+                }
+                if (total == 0) {
+                    //can only happen right at an edge; fall back to the nearest pixel
+                    first = Math.min(sourceSize - 1, (int) center);
+                    raw[0] = 1;
+                    total = 1;
+                    n = 1;
+                }
+                start[i] = first;
+                count[i] = n;
+                int sum = 0;
+                int biggest = 0;
+                for (int k = 0; k < n; k++) {
+                    int w = (int) Math.round(raw[k] / total * WEIGHT_ONE);
+                    weights[i * taps + k] = w;
+                    sum += w;
+                    if (w > weights[i * taps + biggest]) {
+                        biggest = k;
+                    }
+                }
+                //rounding mustn't brighten or darken the result
+                weights[i * taps + biggest] += WEIGHT_ONE - sum;
+            }
+        }
+
+        int weight(int i, int k) {
+            return weights[i * taps + k];
+        }
+
+        /**
+         * Filter one row, given as separate red, green and blue rows, into packed pixels starting at outOffset
+         */
+        void apply(int[] r, int[] g, int[] b, int[] out, int outOffset) {
+            for (int i = 0; i < start.length; i++) {
+                int red = 0;
+                int green = 0;
+                int blue = 0;
+                int p = start[i];
+                int w = i * taps;
+                for (int k = 0; k < count[i]; k++, p++, w++) {
+                    int weight = weights[w];
+                    red += r[p] * weight;
+                    green += g[p] * weight;
+                    blue += b[p] * weight;
+                }
+                out[outOffset + i] = unscale(red) << 16 | unscale(green) << 8 | unscale(blue);
+            }
+        }
+    }
+}
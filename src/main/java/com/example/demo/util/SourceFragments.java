@@ -0,0 +1,193 @@
+package com.example.demo.util;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A source image that's already been scaled to the model's size and broken down for matching: its packed
+ * pixels plus the feature vector of every fragment.
+ *
+ * Can be saved as a compact binary file and mapped back in later, so reusing the same source for another
+ * compose skips decoding, scaling and breakdown. A source read back that way keeps its pixels in the mapping,
+ * off the heap and shared through the page cache by every compose using it; composers only ever copy single
+ * fragments out with {@link #copyFragment}. File layout, all big-endian:
+ * magic, version, width, height, fragWidth, fragHeight (ints), then width*height pixels (ints),
+ * then the fragment features (bytes).
+ */
+public class SourceFragments {
+
+    private static final int MAGIC = 0x46524147; // "FRAG"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 6 * Integer.BYTES;
+
+    //exactly one of these holds the pixels: an array for a source broken down here, or a view of a mapped file
+    private final int[] pixels;
+    private final IntBuffer mappedPixels;
+    private final byte[] features;
+    private final int width;
+    private final int height;
+    private final int fragWidth;
+    private final int fragHeight;
+
+    public SourceFragments(int[] pixels, byte[] features, int width, int height, int fragWidth, int fragHeight) {
+        this(pixels, null, features, width, height, fragWidth, fragHeight);
+    }
+
+    private SourceFragments(int[] pixels, IntBuffer mappedPixels, byte[] features, int width, int height,
+                            int fragWidth, int fragHeight) {
+        this.pixels = pixels;
+        this.mappedPixels = mappedPixels;
+        this.features = features;
+        this.width = width;
+        this.height = height;
+        this.fragWidth = fragWidth;
+        this.fragHeight = fragHeight;
+    }
+
+    /**
+     * Break down a source that's already been scaled to the model's dimensions
+     */
+    public static SourceFragments breakdown(BufferedImage transformedSource, int fragWidth, int fragHeight) {
+        int width = transformedSource.getWidth();
+        int height = transformedSource.getHeight();
+        int[] pixels = RasterSimilarity.data(RasterSimilarity.toPackedRgb(transformedSource));
+        return new SourceFragments(pixels, FragmentIndex.computeFeatures(pixels, width, height, fragWidth, fragHeight),
+                width, height, fragWidth, fragHeight);
+    }
+
+    /**
+     * Write to a temporary file next to the target and move it into place, so readers never see half a file. Every
+     * writer gets a temporary file of its own, so two composes building the same source can't mix their output.
+     */
+    public void write(Path target) throws IOException {
+        Path temp = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(fragWidth)
+                        .putInt(fragHeight);
+                header.flip();
+                writeFully(channel, header);
+
+                ByteBuffer pixelBytes = ByteBuffer.allocate(width * height * Integer.BYTES)
+                        .order(ByteOrder.BIG_ENDIAN);
+                pixelBytes.asIntBuffer().put(pixels != null ? IntBuffer.wrap(pixels) : mappedPixels.duplicate());
+                writeFully(channel, pixelBytes);
+                writeFully(channel, ByteBuffer.wrap(features));
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Map a file written by {@link #write}. The features are copied onto the heap for the index, the pixels are
+     * left in the mapping.
+     * @throws IOException if the file is missing, truncated or isn't one of ours
+     */
+    public static SourceFragments read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mapped.remaining() < HEADER_BYTES || mapped.getInt() != MAGIC || mapped.getInt() != VERSION) {
+                throw new IOException("Not a fragment file " + file);
+            }
+            int width = mapped.getInt();
+            int height = mapped.getInt();
+            int fragWidth = mapped.getInt();
+            int fragHeight = mapped.getInt();
+            int featureBytes = (width / fragWidth) * (height / fragHeight) * FragmentIndex.FEATURE_LENGTH;
+            if (mapped.remaining() != (long) width * height * Integer.BYTES + featureBytes) {
+                throw new IOException("Truncated fragment file " + file);
+            }
+
+            IntBuffer pixelView = mapped.asIntBuffer();
+            pixelView.limit(width * height);
+            //the mapping outlives the channel
+            IntBuffer pixels = pixelView.slice();
+            mapped.position(mapped.position() + width * height * Integer.BYTES);
+            byte[] features = new byte[featureBytes];
+            mapped.get(features);
+            return new SourceFragments(null, pixels, features, width, height, fragWidth, fragHeight);
+        }
+    }
+
+    public FragmentIndex index() {
+        return new FragmentIndex(features, width, height, fragWidth, fragHeight);
+    }
+
+    /**
+     * Copy fragment id into dst at dstOffset, dst being an image with the same width as this source.
+     * Only reads, so any number of composers can copy out of the same source at once.
+     */
+    public void copyFragment(int id, int[] dst, int dstOffset) {
+        int rows = height / fragHeight;
+        int srcOffset = (id % rows) * fragHeight * width + (id / rows) * fragWidth;
+        if (pixels != null) {
+            ImageUtils.copyFragment(pixels, srcOffset, dst, dstOffset, width, fragWidth, fragHeight);
+            return;
+        }
+        //a view of our own, as the position is per view and other composers are copying too
+        IntBuffer source = mappedPixels.duplicate();
+        for (int y = 0; y < fragHeight; y++) {
+            source.position(srcOffset + y * width);
+            source.get(dst, dstOffset + y * width, fragWidth);
+        }
+    }
+
+    /**
+     * A copy of the packed pixels, row-major. Costs a whole image's worth of heap, so composers should use
+     * {@link #copyFragment} instead.
+     */
+    public int[] copyPixels() {
+        if (pixels != null) {
+            return pixels.clone();
+        }
+        int[] copy = new int[width * height];
+        mappedPixels.duplicate().get(copy);
+        return copy;
+    }
+
+    /**
+     * Whether the pixels live in a mapped file rather than on the heap
+     */
+    public boolean isMapped() {
+        return mappedPixels != null;
+    }
+
+    public byte[] getFeatures() {
+        return features;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getFragWidth() {
+        return fragWidth;
+    }
+
+    public int getFragHeight() {
+        return fragHeight;
+    }
+}
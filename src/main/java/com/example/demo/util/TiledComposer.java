@@ -0,0 +1,146 @@
+package com.example.demo.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Composes full-resolution images without ever holding a whole raster on the heap.
+ *
+ * The model and the source are each decoded once, top to bottom, into a {@link DiskImage}, and the model is then
+ * processed in tiles of full-width bands of fragment rows. For each band only that band of the model and the
+ * matching rows of the source are read back from disk, turned the right way up, the source band is scaled to
+ * the model's width, and the band is composed by the normal engine with that band's source fragments as its
+ * pool. Finished bands go straight to a {@link RasterFile} on disk. Band height is chosen so a band's working
+ * set stays under the heap budget, so peak heap depends on the image width and the budget, not the image height.
+ * Every band's compose runs on the same workers.
+ *
+ * Because every band draws only from its own rows of the source, fragments never travel further than a band
+ * vertically; bigger budgets mean taller bands and results closer to the in-memory compose.
+ */
+public class TiledComposer {
+
+    //model band, packed model, scaled source, result band, plus the fragment features and index
+    private static final int BYTES_PER_BAND_PIXEL = 24;
+    //source rows read back as packed ints, twice over when they have to be turned upright
+    private static final int BYTES_PER_SOURCE_PIXEL = 8;
+
+    static Logger log = LoggerFactory.getLogger(TiledComposer.class);
+
+    private final int fragWidth;
+    private final int fragHeight;
+    private final long heapBudgetBytes;
+
+    /**
+     * @param heapBudgetBytes roughly how much heap a single band may use
+     */
+    public TiledComposer(int fragWidth, int fragHeight, long heapBudgetBytes) {
+        this.fragWidth = fragWidth;
+        this.fragHeight = fragHeight;
+        this.heapBudgetBytes = heapBudgetBytes;
+    }
+
+    /**
+     * Dimensions of an image file as displayed, read from its headers without decoding any pixels
+     */
+    public static Dimension dimensions(File file) throws IOException {
+        return ImageDecoder.displayedSize(file);
+    }
+
+    /**
+     * Remake the model at its full size out of the source's fragments
+     * @param workDir where the decoded inputs and the result's temporary files go
+     * @return the result; the caller closes it once it's been encoded
+     */
+    public RasterFile compose(File model, File source, Path workDir, ComposeOptions options) throws IOException {
+        try (DiskImage modelImage = DiskImage.decode(model, workDir);
+             DiskImage sourceImage = DiskImage.decode(source, workDir)) {
+            ForkJoinPool pool = new ForkJoinPool(Math.max(1, options.getParallelism()));
+            try {
+                return compose(modelImage, sourceImage, workDir, options.withPool(pool));
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    private RasterFile compose(DiskImage model, DiskImage source, Path workDir, ComposeOptions options)
+            throws IOException {
+        int width = model.getWidth();
+        int height = model.getHeight();
+        int bandHeight = bandHeight(width, height, source.getWidth(), source.getHeight());
+        log.info("composing " + width + "x" + height + " in bands of " + bandHeight + " rows");
+
+        ComposeMonitor monitor = options.getMonitor();
+        monitor.start((width / fragWidth) * (height / fragHeight));
+        RasterFile result = RasterFile.create(workDir, width, height);
+        try {
+            for (int y = 0; y < height; y += bandHeight) {
+                monitor.checkCancelled();
+                int rows = Math.min(bandHeight, height - y);
+                if (rows < fragHeight) {
+                    //leftover rows at the bottom that don't make up a whole fragment stay black
+                    break;
+                }
+                log.info("Band: " + y + "/" + height);
+                BufferedImage modelBand = model.band(y, rows);
+                BufferedImage sourceBand = sourceBand(source, width, height, y, rows);
+                SourceFragments fragments = SourceFragments.breakdown(sourceBand, fragWidth, fragHeight);
+                //the band reports into the overall progress rather than restarting it
+                BufferedImage band = ImageUtils.remakeImage(fragments, modelBand,
+                        options.withMonitor(new ComposeMonitor(monitor)));
+                result.writeRows(y, RasterSimilarity.data(band), width, rows);
+            }
+            return result;
+        } catch (IOException | RuntimeException ex) {
+            result.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Tallest band, in whole fragment rows, whose working set fits in the budget
+     */
+    int bandHeight(int width, int height, int sourceWidth, int sourceHeight) {
+        //source rows are scaled to model rows, so a band needs sourceHeight/height source rows per model row
+        double bytesPerRow = (double) width * BYTES_PER_BAND_PIXEL
+                + (double) sourceWidth * BYTES_PER_SOURCE_PIXEL * Math.max(1.0, (double) sourceHeight / height);
+        int fragmentRows = (int) (heapBudgetBytes / bytesPerRow) / fragHeight;
+        if (fragmentRows < 1) {
+            throw new IllegalArgumentException("A " + width + " pixel wide image needs more than the "
+                    + heapBudgetBytes + " byte budget for a single row of fragments");
+        }
+        int allRows = (height + fragHeight - 1) / fragHeight;
+        return Math.min(fragmentRows, allRows) * fragHeight;
+    }
+
+    /**
+     * Read the source rows under model rows [y, y + rows) and scale them to the model's width,
+     * the same stretch {@link ImageUtils#transformSource} applies to the whole image
+     */
+    private static BufferedImage sourceBand(DiskImage source, int width, int height, int y, int rows) {
+        int sourceWidth = source.getWidth();
+        int sourceHeight = source.getHeight();
+        double scaleY = (double) sourceHeight / height;
+        int top = (int) Math.floor(y * scaleY);
+        int bottom = Math.min(sourceHeight, (int) Math.ceil((y + rows) * scaleY) + 1);
+        BufferedImage decoded = source.band(top, bottom - top);
+
+        BufferedImage band = new BufferedImage(width, rows, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = band.createGraphics();
+        AffineTransform transform = new AffineTransform();
+        transform.translate(0, top / scaleY - y);
+        transform.scale((double) width / sourceWidth, 1 / scaleY);
+        graphics.drawImage(decoded, transform, null);
+        graphics.dispose();
+        return band;
+    }
+}
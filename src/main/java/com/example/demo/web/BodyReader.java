@@ -0,0 +1,103 @@
+package com.example.demo.web;
+
+import com.example.demo.service.FileStorageService;
+import com.example.demo.service.StoredFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.DeferredResultProcessingInterceptor;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.function.Function;
+
+/**
+ * Reads a request body into an upload with servlet non-blocking I/O. The container calls
+ * {@link #onDataAvailable()} whenever more of the body has arrived, and each call reads until the request says
+ * there's nothing more to read yet, so no thread waits on the client in between. The upload is stored once the
+ * whole body is in, and the request's {@link DeferredResult} gets what then makes of it, or what went wrong.
+ *
+ * A ReadListener can only be set once the request is in async mode, which Spring only starts after the handler
+ * returns its DeferredResult, so this is registered as the request's interceptor and starts reading from
+ * {@link #preProcess}.
+ */
+class BodyReader<T> implements ReadListener, DeferredResultProcessingInterceptor {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final Logger logger = LoggerFactory.getLogger(BodyReader.class);
+
+    private final FileStorageService.Upload upload;
+    private final Function<String, String> downloadUri;
+    private final Function<StoredFile, T> then;
+    private final DeferredResult<T> result;
+    private final byte[] buffer = new byte[CHUNK_SIZE];
+    private ServletInputStream in;
+    private boolean done;
+
+    BodyReader(FileStorageService.Upload upload, Function<String, String> downloadUri, Function<StoredFile, T> then,
+               DeferredResult<T> result) {
+        this.upload = upload;
+        this.downloadUri = downloadUri;
+        this.then = then;
+        this.result = result;
+    }
+
+    @Override
+    public <S> void preProcess(NativeWebRequest request, DeferredResult<S> deferredResult) throws IOException {
+        in = request.getNativeRequest(HttpServletRequest.class).getInputStream();
+        in.setReadListener(this);
+    }
+
+    @Override
+    public synchronized void onDataAvailable() {
+        try {
+            int read;
+            while (!done && in.isReady() && (read = in.read(buffer)) != -1) {
+                upload.write(buffer, 0, read);
+            }
+        } catch (IOException | RuntimeException ex) {
+            fail(ex);
+        }
+    }
+
+    @Override
+    public synchronized void onAllDataRead() {
+        if (done) {
+            return;
+        }
+        done = true;
+        try {
+            result.setResult(then.apply(upload.finish(downloadUri)));
+        } catch (IOException | RuntimeException ex) {
+            result.setErrorResult(ex);
+        } finally {
+            upload.close();
+        }
+    }
+
+    @Override
+    public synchronized void onError(Throwable t) {
+        //usually the client going away mid-upload
+        logger.info("upload cut short {}", t.getMessage());
+        fail(t);
+    }
+
+    private void fail(Throwable t) {
+        if (!done) {
+            done = true;
+            upload.close();
+            result.setErrorResult(t);
+        }
+    }
+
+    @Override
+    public synchronized <S> void afterCompletion(NativeWebRequest request, DeferredResult<S> deferredResult) {
+        //a no-op once stored, otherwise the request timed out or went away before the body was all in
+        done = true;
+        upload.close();
+    }
+}
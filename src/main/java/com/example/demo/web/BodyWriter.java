@@ -0,0 +1,111 @@
+package com.example.demo.web;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Copies part of a file onto a response with servlet non-blocking I/O. The container calls
+ * {@link #onWritePossible()} whenever the client can take more, and each call writes until the response says it
+ * isn't ready, so no thread waits on the client in between. The request completes once the last byte is written,
+ * or when it times out or fails.
+ */
+class BodyWriter implements WriteListener, AsyncListener {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final Logger logger = LoggerFactory.getLogger(BodyWriter.class);
+
+    private final FileChannel channel;
+    private final long end;
+    private final String fileName;
+    private final ServletOutputStream out;
+    private final AsyncContext async;
+    private final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+    private long position;
+    private boolean completed;
+
+    /**
+     * @param start first byte of the file to send
+     * @param end one past the last
+     */
+    BodyWriter(FileChannel channel, long start, long end, String fileName, ServletOutputStream out,
+               AsyncContext async) {
+        this.channel = channel;
+        this.position = start;
+        this.end = end;
+        this.fileName = fileName;
+        this.out = out;
+        this.async = async;
+    }
+
+    @Override
+    public synchronized void onWritePossible() throws IOException {
+        while (!completed && out.isReady()) {
+            if (position >= end) {
+                complete();
+                return;
+            }
+            buffer.clear();
+            buffer.limit((int) Math.min(CHUNK_SIZE, end - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException(fileName + " got shorter while it was being sent");
+            }
+            position += read;
+            out.write(buffer.array(), 0, read);
+        }
+    }
+
+    @Override
+    public synchronized void onError(Throwable t) {
+        //usually just the client going away mid-transfer
+        logger.info("download of {} cut short {}", fileName, t.getMessage());
+        complete();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        close();
+    }
+
+    @Override
+    public synchronized void onTimeout(AsyncEvent event) {
+        logger.info("download of {} timed out at byte {}", fileName, position);
+        complete();
+    }
+
+    @Override
+    public synchronized void onError(AsyncEvent event) {
+        onError(event.getThrowable());
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+
+    private void complete() {
+        if (!completed) {
+            completed = true;
+            close();
+            async.complete();
+        }
+    }
+
+    private void close() {
+        try {
+            channel.close();
+        } catch (IOException iox) {
+            logger.debug("could not close {} {}", fileName, iox.getMessage());
+        }
+    }
+}
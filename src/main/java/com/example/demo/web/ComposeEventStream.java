@@ -0,0 +1,228 @@
+package com.example.demo.web;
+
+import com.example.demo.payload.ComposeJobResponse;
+import com.example.demo.payload.ComposeStripResponse;
+import com.example.demo.property.ComposeProperties;
+import com.example.demo.service.ComposeJob;
+import com.example.demo.service.FileStorageService;
+import com.example.demo.service.PipelineMetrics;
+import com.example.demo.util.ComposeMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PreDestroy;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams a compose job to the client as server-sent events, so the finished parts of the result show up while
+ * the rest of it is still being composed.
+ *
+ * Each stream is updated every compose.stream-interval-millis. A small scheduler only decides when; the update
+ * itself, encoding and sending, runs on a sender thread, one at a time per client. A client still taking the
+ * last update when the next is due skips it, and gets everything new in the one after, so a slow or stalled
+ * client only ever holds up itself. Streams end after compose.stream-timeout-minutes at the most. An update sends a
+ * "strip" event for every run of fragment columns finished since the last one, as a JPEG data URI to draw at its
+ * x and y, and a "progress" event when the job has moved on. Once the job is over, a "done" event carries the job
+ * as /composeJob/{jobId} reports it, with the stored file's download URI, and the stream ends. Strips are read out
+ * of the result while it's being composed, so the compose threads never wait on a client. Full resolution composes
+ * never hold their result in memory and only stream progress.
+ */
+@Component
+public class ComposeEventStream {
+
+    private static final String STRIP_FORMAT = "jpg";
+    private static final String STRIP_DATA_URI = "data:image/jpeg;base64,";
+
+    private static final Logger logger = LoggerFactory.getLogger(ComposeEventStream.class);
+
+    private final FileStorageService fileStorageService;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final ExecutorService senders;
+    private final long intervalMillis;
+    private final long timeoutMillis;
+
+    @Autowired
+    public ComposeEventStream(FileStorageService fileStorageService, ComposeProperties composeProperties,
+                              PipelineMetrics metrics) {
+        this.fileStorageService = fileStorageService;
+        this.intervalMillis = Math.max(1, composeProperties.getStreamIntervalMillis());
+        this.timeoutMillis = TimeUnit.MINUTES.toMillis(Math.max(1, composeProperties.getStreamTimeoutMinutes()));
+        AtomicInteger threadCount = new AtomicInteger();
+        this.scheduler = new ScheduledThreadPoolExecutor(Math.max(1, composeProperties.getStreamThreads()),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "compose-stream-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        scheduler.setRemoveOnCancelPolicy(true);
+        //at most one thread per client, as a client's next update waits for its last
+        AtomicInteger senderCount = new AtomicInteger();
+        this.senders = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "compose-stream-send-" + senderCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        metrics.monitor(scheduler, "composeStreams");
+        metrics.monitor(senders, "composeStreamSenders");
+    }
+
+    /**
+     * Start streaming a job. The emitter completes once the job is over, as soon as the client goes away, or
+     * when the stream times out.
+     */
+    public SseEmitter stream(ComposeJob job) {
+        return stream(job, new SseEmitter(timeoutMillis));
+    }
+
+    SseEmitter stream(ComposeJob job, SseEmitter emitter) {
+        Stream stream = new Stream(job, emitter);
+        emitter.onCompletion(stream::stop);
+        emitter.onTimeout(() -> {
+            stream.stop();
+            emitter.complete();
+        });
+        emitter.onError(ex -> stream.stop());
+        stream.start();
+        return emitter;
+    }
+
+    /**
+     * One client following one job
+     */
+    private class Stream {
+
+        private final ComposeJob job;
+        private final SseEmitter emitter;
+        //fragment columns of result already sent
+        private final BitSet sent = new BitSet();
+        private BufferedImage result;
+        private ComposeJob.Status lastStatus;
+        private int lastCompleted = -1;
+        private volatile ScheduledFuture<?> updates;
+        private volatile boolean stopped;
+        //an update is being sent; it also hands what the last update sent on to the next one's thread
+        private final AtomicBoolean sending = new AtomicBoolean();
+
+        Stream(ComposeJob job, SseEmitter emitter) {
+            this.job = job;
+            this.emitter = emitter;
+        }
+
+        void start() {
+            updates = scheduler.scheduleWithFixedDelay(this::tick, 0, intervalMillis, TimeUnit.MILLISECONDS);
+            if (stopped) {
+                updates.cancel(false);
+            }
+        }
+
+        void stop() {
+            stopped = true;
+            ScheduledFuture<?> scheduled = updates;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+        }
+
+        private void tick() {
+            if (stopped || !sending.compareAndSet(false, true)) {
+                //still sending the last update, what's new since will go in the next one
+                return;
+            }
+            try {
+                senders.execute(this::update);
+            } catch (RejectedExecutionException ex) {
+                //shutting down
+                sending.set(false);
+            }
+        }
+
+        private void update() {
+            try {
+                if (!stopped) {
+                    send();
+                }
+            } finally {
+                sending.set(false);
+            }
+        }
+
+        private void send() {
+            try {
+                //checked before sending strips, so a job that's over has had every strip sent by the time we say so
+                boolean finished = job.isFinished();
+                sendStrips();
+                if (finished) {
+                    emitter.send(SseEmitter.event().name("done")
+                            .data(new ComposeJobResponse(job), MediaType.APPLICATION_JSON));
+                    stop();
+                    emitter.complete();
+                    return;
+                }
+                int completed = job.getMonitor().getCompleted();
+                if (job.getStatus() != lastStatus || completed != lastCompleted) {
+                    lastStatus = job.getStatus();
+                    lastCompleted = completed;
+                    emitter.send(SseEmitter.event().name("progress")
+                            .data(new ComposeJobResponse(job), MediaType.APPLICATION_JSON));
+                }
+            } catch (IOException | RuntimeException ex) {
+                //most likely the client has gone away
+                logger.debug("stopped streaming compose job {} {}", job.getId(), ex.getMessage());
+                stop();
+                emitter.completeWithError(ex);
+            }
+        }
+
+        private void sendStrips() throws IOException {
+            ComposeMonitor monitor = job.getMonitor();
+            BufferedImage current = monitor.getResult();
+            if (current == null) {
+                return;
+            }
+            if (current != result) {
+                //a compose that had to start over draws a new image
+                result = current;
+                sent.clear();
+            }
+            BitSet finished = monitor.getFinishedColumns();
+            finished.andNot(sent);
+            int fragWidth = monitor.getFragWidth();
+            int height = result.getHeight();
+            int from = finished.nextSetBit(0);
+            while (from >= 0) {
+                int to = finished.nextClearBit(from);
+                int x = from * fragWidth;
+                int width = (to - from) * fragWidth;
+                byte[] strip = fileStorageService.encodeToBytes(result.getSubimage(x, 0, width, height),
+                        STRIP_FORMAT);
+                emitter.send(SseEmitter.event().name("strip")
+                        .data(new ComposeStripResponse(x, 0, width, height,
+                                STRIP_DATA_URI + Base64.getEncoder().encodeToString(strip)),
+                                MediaType.APPLICATION_JSON));
+                sent.set(from, to);
+                from = finished.nextSetBit(to);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        senders.shutdownNow();
+    }
+}
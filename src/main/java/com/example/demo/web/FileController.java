@@ -1,43 +1,54 @@
 package com.example.demo.web;
 
+import com.example.demo.exception.InvalidCursorException;
 import com.example.demo.exception.MyFileNotFoundException;
-import com.example.demo.model.ImageFile;
 import com.example.demo.model.ImageFileRepository;
+import com.example.demo.model.ImageFileSummary;
+import com.example.demo.payload.CacheStatsResponse;
+import com.example.demo.payload.ComposeJobResponse;
 import com.example.demo.payload.ComposeResponse;
 import com.example.demo.payload.UploadFileResponse;
+import com.example.demo.service.ComposeJob;
+import com.example.demo.service.ComposeJobService;
+import com.example.demo.service.ComposeService;
+import com.example.demo.service.ComposeSettings;
+import com.example.demo.service.DecodedImageCache;
 import com.example.demo.service.FileStorageService;
-import com.example.demo.util.ImageUtils;
-import javaxt.io.Image;
+import com.example.demo.service.PreviewService;
+import com.example.demo.service.StoreResult;
+import com.example.demo.service.StoredFile;
+import com.example.demo.util.ComposeMonitor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.Resource;
-import org.springframework.http.HttpHeaders;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import org.springframework.web.util.UriComponentsBuilder;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
-import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.function.Function;
 
 @CrossOrigin(origins= "192.168.1.119:3000")
 @RestController
 public class FileController {
 
-    private static final int FRAG_WIDTH = 3;
-    private static final int FRAG_HEIGHT = 3;
     private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+    private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    private static final int MAX_LIST_LIMIT = 1000;
 
     private static final Logger logger = LoggerFactory.getLogger(FileController.class);
     private ImageFileRepository repository;
@@ -49,71 +60,167 @@ public class FileController {
     @Autowired
     private FileStorageService fileStorageService;
 
+    @Autowired
+    private ComposeService composeService;
+
+    @Autowired
+    private ComposeJobService composeJobService;
+
+    @Autowired
+    private DecodedImageCache imageCache;
+
+    @Autowired
+    private FileTransfer fileTransfer;
+
+    @Autowired
+    private PreviewService previewService;
+
+    @Autowired
+    private UploadReceiver uploadReceiver;
+
+    @Autowired
+    private ComposeEventStream composeEventStream;
+
     @CrossOrigin(origins= "192.168.1.119:3000")
     @PostMapping("/uploadFile")
     public UploadFileResponse uploadFile(@RequestParam("file")MultipartFile file) {
-        logger.info("got the file! " + file.getOriginalFilename()+ " size " + file.getSize());
-        String fileName = fileStorageService.storeFile(file);
+        logger.info("got the file! {} size {}", file.getOriginalFilename(), file.getSize());
+        String fileName = fileStorageService.storeFile(file, this::getDownloadUri);
+        previewService.generate(fileName, detachedDownloadUri());
 
         String fileDownloadUri = getDownloadUri(fileName);
 
-        repository.save(new ImageFile(fileName, fileDownloadUri));
-
         return new UploadFileResponse(fileName, fileDownloadUri, file.getContentType(), file.getSize());
     }
 
+    /**
+     * Upload with the raw file as the request body instead of a multipart form.
+     * The body goes straight to disk without being spooled to a temp file first, which matters for big uploads.
+     * Read without holding a thread between pieces when file.io-mode is non_blocking, see {@link UploadReceiver};
+     * multipart bodies are always read by the container up front.
+     */
+    @CrossOrigin(origins= "192.168.1.119:3000")
+    @PutMapping("/uploadStream/{fileName:.+}")
+    public DeferredResult<UploadFileResponse> uploadStream(@PathVariable String fileName,
+                                                           HttpServletRequest request) throws IOException {
+        logger.info("streaming upload of {} size {}", fileName, request.getContentLengthLong());
+        Function<String, String> downloadUri = detachedDownloadUri();
+        String contentType = request.getContentType();
+        return uploadReceiver.receive(request, fileName, downloadUri, stored -> {
+            previewService.generate(stored.getFileName(), downloadUri);
+
+            String fileDownloadUri = downloadUri.apply(stored.getFileName());
+
+            return new UploadFileResponse(stored.getFileName(), fileDownloadUri, contentType, stored.getSize());
+        });
+    }
+
+    /**
+     * Store a batch of files together. Every file gets its own entry in the response, with an error instead of
+     * a download URI if it couldn't be stored.
+     */
     @CrossOrigin(origins= "192.168.1.119:3000")
     @PostMapping("/uploadMultipleFiles")
     public List<UploadFileResponse> uploadMultipleFiles(@RequestParam("files") MultipartFile[] files) {
-        return Arrays.asList(files)
-                .stream()
-                .map(file -> uploadFile(file))
-                .collect(Collectors.toList());
+        logger.info("got {} files", files.length);
+        List<StoreResult> results = fileStorageService.storeFiles(Arrays.asList(files), this::getDownloadUri);
+        Function<String, String> previewDownloadUri = detachedDownloadUri();
+        List<UploadFileResponse> responses = new ArrayList<>();
+        for (int i = 0; i < files.length; i++) {
+            StoreResult result = results.get(i);
+            if (result.isSucceeded()) {
+                StoredFile stored = result.getStored();
+                previewService.generate(stored.getFileName(), previewDownloadUri);
+                responses.add(new UploadFileResponse(stored.getFileName(), getDownloadUri(stored.getFileName()),
+                        files[i].getContentType(), stored.getSize()));
+            } else {
+                responses.add(UploadFileResponse.failed(result.getFileName(), result.getError()));
+            }
+        }
+        return responses;
     }
 
+    /**
+     * @param size if given, serve the smallest preview whose longest side is at least this many pixels instead,
+     *             or the original when there's no such preview
+     */
     @CrossOrigin(origins= "192.168.1.119:3000")
     @GetMapping("/downloadFile/{fileName:.+}")
-    public ResponseEntity<Resource> downloadFile(@PathVariable String fileName, HttpServletRequest request) {
-        logger.info("attempting to access " + fileName);
+    public void downloadFile(@PathVariable String fileName,
+                             @RequestParam(value = "size", required = false) Integer size,
+                             HttpServletRequest request, HttpServletResponse response) throws IOException {
+        logger.debug("attempting to access {}", fileName);
+        if (size != null) {
+            fileName = previewService.previewFor(fileName, size);
+        }
 
         //load file as resource
         Resource resource = fileStorageService.loadFileAsResource(fileName);
 
-        //try to determine content type
-        String contentType = null;
-        try {
-            contentType = request.getServletContext().getMimeType(resource.getFile().getAbsolutePath());
-        } catch (IOException ex) {
-            logger.info("Could not determine file type");
+        //the name has the extension even when we end up reading the blob
+        String contentType = request.getServletContext().getMimeType(fileName);
+        if (contentType == null) {
             //default content type
             contentType = DEFAULT_CONTENT_TYPE;
         }
 
-        return ResponseEntity.ok()
-                .contentType(MediaType.parseMediaType(contentType))
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\""+ resource.getFilename() + "\"")
-                .body(resource);
-
+        fileTransfer.send(resource.getFile().toPath(), fileName, fileStorageService.getContentHash(fileName),
+                contentType, request, response);
     }
 
-    @CrossOrigin(origins= "192.168.1.119:3000")
+    /**
+     * One page of stored files, straight from the imageFiles table.
+     * Pages are keyset based: pass the X-Next-Cursor header of a response as 'after' to get the next page.
+     * @param sort 'name' (A-Z, the default) or 'created' (newest first)
+     */
+    @CrossOrigin(origins= "192.168.1.119:3000", exposedHeaders = NEXT_CURSOR_HEADER)
     @GetMapping("/list")
-    Collection<ImageFile> list() {
-        logger.info("trying to list the files");
-        ArrayList<ImageFile> files = new ArrayList<>();
-        List<Resource> resources = fileStorageService.loadResources();
-        resources.forEach(resource -> {
-            logger.info("the download uri is " + getDownloadUri(resource.getFilename()));
-            files.add(new ImageFile(resource.getFilename(), getDownloadUri(resource.getFilename()) ));
-        });
+    ResponseEntity<List<ImageFileSummary>> list(@RequestParam(value = "after", required = false) String after,
+                                                @RequestParam(value = "limit", defaultValue = "100") int limit,
+                                                @RequestParam(value = "sort", defaultValue = "name") String sort) {
+        logger.debug("trying to list the files");
+        PageRequest page = PageRequest.of(0, Math.max(1, Math.min(limit, MAX_LIST_LIMIT)));
+        List<ImageFileSummary> files;
+        if ("created".equals(sort)) {
+            if (after == null) {
+                files = repository.findByPreviewOfIsNullOrderByCreatedAtDescIdDesc(page);
+            } else {
+                long[] cursor = parseCreatedCursor(after);
+                files = repository.findCreatedBefore(cursor[0], cursor[1], page);
+            }
+        } else {
+            files = repository.findByPreviewOfIsNullAndNameGreaterThanOrderByNameAsc(after == null ? "" : after, page);
+        }
 
-        return files;
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        if (files.size() == page.getPageSize()) {
+            ImageFileSummary last = files.get(files.size() - 1);
+            response.header(NEXT_CURSOR_HEADER, "created".equals(sort)
+                    ? last.getCreatedAt() + ":" + last.getId()
+                    : last.getName());
+        }
+        return response.body(files);
+    }
+
+    /**
+     * Reads back a 'created' cursor, as written by {@link #list}: createdAt:id
+     */
+    private static long[] parseCreatedCursor(String after) {
+        String[] parts = after.split(":", -1);
+        if (parts.length != 2) {
+            throw new InvalidCursorException("Cursor " + after + " should look like createdAt:id");
+        }
+        try {
+            return new long[]{Long.parseLong(parts[0]), Long.parseLong(parts[1])};
+        } catch (NumberFormatException ex) {
+            throw new InvalidCursorException("Cursor " + after + " should look like createdAt:id", ex);
+        }
     }
 
     @CrossOrigin(origins= "192.168.1.119:3000")
     @DeleteMapping("/delete/{filename:.+}")
     public ResponseEntity<?> deleteImage(@PathVariable String filename) {
-        logger.info("request to delete file: " + filename);
+        logger.info("request to delete file: {}", filename);
         boolean success = fileStorageService.deleteFile(filename);
         if(success) {
             return ResponseEntity.ok().build();
@@ -123,31 +230,36 @@ public class FileController {
 
     @CrossOrigin(origins= "192.168.1.119:3000")
     @PostMapping("/compose")
-    public ComposeResponse composeImage(@RequestParam("base") String baseFile,
-                                        @RequestParam("mapper") String mapperFile,
-                                        @RequestParam("resultName") String resultName,
-                                        HttpServletRequest request) {
-        logger.info("request to remake '"+baseFile+"' with the components of '" +mapperFile +"'" +
-                " and store it as '" +resultName+"'");
-        BufferedImage base;
-        BufferedImage mapper;
+    public ComposeResponse composeImage(
+            @RequestParam("base") String baseFile,
+            @RequestParam("mapper") String mapperFile,
+            @RequestParam("resultName") String resultName,
+            @RequestParam(value = "fragSize", required = false) Integer fragSize,
+            @RequestParam(value = "mode", required = false) String mode,
+            @RequestParam(value = "pyramidDepth", required = false) Integer pyramidDepth,
+            @RequestParam(value = "budgetMillis", required = false) Long budgetMillis,
+            @RequestParam(value = "fullResolution", required = false) Boolean fullResolution,
+            @RequestParam(value = "recomposable", required = false) Boolean recomposable,
+            @RequestParam(value = "previous", required = false) String previous,
+            HttpServletRequest request) {
+        logger.info("request to remake '{}' with the components of '{}' and store it as '{}'", baseFile, mapperFile,
+                resultName);
+        ComposeSettings settings = composeService.settings(fragSize, mode, pyramidDepth, budgetMillis,
+                fullResolution, recomposable, previous);
+        String filename;
         try {
-            base = loadOrientedFile(baseFile);
-            mapper = loadOrientedFile(mapperFile);
+            filename = composeService.compose(baseFile, mapperFile, resultName, settings, new ComposeMonitor(),
+                    this::getDownloadUri);
         } catch (MyFileNotFoundException ex) {
-            logger.info("Couldn't find one or more of the files the files "+ ex.getMessage());
+            logger.info("Couldn't find one or more of the files the files {}", ex.getMessage());
             return new ComposeResponse();
         } catch (IOException iox) {
-            logger.info("IOException " + iox.getMessage());
+            logger.info("IOException {}", iox.getMessage());
             return new ComposeResponse();
         }
 
-        BufferedImage result = ImageUtils.remakeImage(mapper, base, FRAG_WIDTH, FRAG_HEIGHT);
-        String filename = fileStorageService.storeFile(result, resultName);
         String fileDownloadUri = getDownloadUri(filename);
-        logger.info("downloadUri is " + fileDownloadUri);
-
-        repository.save(new ImageFile(filename, fileDownloadUri));
+        logger.info("downloadUri is {}", fileDownloadUri);
 
         Resource resource = fileStorageService.loadFileAsResource(filename);
         String contentType;
@@ -163,6 +275,73 @@ public class FileController {
         return new ComposeResponse(filename, fileDownloadUri, contentType, size);
     }
 
+    /**
+     * Queue a compose to run in the background. Poll /composeJob/{jobId} for progress and the result.
+     */
+    @CrossOrigin(origins= "192.168.1.119:3000")
+    @PostMapping("/composeJob")
+    public ResponseEntity<ComposeJobResponse> submitComposeJob(
+            @RequestParam("base") String baseFile,
+            @RequestParam("mapper") String mapperFile,
+            @RequestParam("resultName") String resultName,
+            @RequestParam(value = "fragSize", required = false) Integer fragSize,
+            @RequestParam(value = "mode", required = false) String mode,
+            @RequestParam(value = "pyramidDepth", required = false) Integer pyramidDepth,
+            @RequestParam(value = "budgetMillis", required = false) Long budgetMillis,
+            @RequestParam(value = "fullResolution", required = false) Boolean fullResolution,
+            @RequestParam(value = "recomposable", required = false) Boolean recomposable,
+            @RequestParam(value = "previous", required = false) String previous) {
+        logger.info("request to queue a remake of '{}' with the components of '{}'", baseFile, mapperFile);
+        ComposeSettings settings = composeService.settings(fragSize, mode, pyramidDepth, budgetMillis,
+                fullResolution, recomposable, previous);
+        ComposeJob job = composeJobService.submit(baseFile, mapperFile, resultName, settings,
+                detachedDownloadUri());
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(new ComposeJobResponse(job));
+    }
+
+    @CrossOrigin(origins= "192.168.1.119:3000")
+    @GetMapping("/composeJob/{jobId}")
+    public ComposeJobResponse composeJobStatus(@PathVariable String jobId) {
+        return new ComposeJobResponse(composeJobService.getJob(jobId));
+    }
+
+    /**
+     * Follow a compose job as server-sent events: the finished strips of the result as it's composed, then the
+     * stored file, see {@link ComposeEventStream}
+     */
+    @CrossOrigin(origins= "192.168.1.119:3000")
+    @GetMapping(value = "/composeJob/{jobId}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter composeJobEvents(@PathVariable String jobId) {
+        logger.info("request to stream compose job {}", jobId);
+        return composeEventStream.stream(composeJobService.getJob(jobId));
+    }
+
+    @CrossOrigin(origins= "192.168.1.119:3000")
+    @DeleteMapping("/composeJob/{jobId}")
+    public ComposeJobResponse cancelComposeJob(@PathVariable String jobId) {
+        logger.info("request to cancel compose job {}", jobId);
+        return new ComposeJobResponse(composeJobService.cancel(jobId));
+    }
+
+    @CrossOrigin(origins= "192.168.1.119:3000")
+    @GetMapping("/stats/imageCache")
+    public CacheStatsResponse imageCacheStats() {
+        return new CacheStatsResponse(imageCache.getHits(), imageCache.getMisses(), imageCache.getEvictions(),
+                imageCache.getEntryCount(), imageCache.getCurrentBytes(), imageCache.getMaxBytes());
+    }
+
+    /**
+     * Same as {@link #getDownloadUri} for work that finishes off the request thread; works out where downloads
+     * live while we still have the request
+     */
+    private Function<String, String> detachedDownloadUri() {
+        String contextPath = ServletUriComponentsBuilder.fromCurrentContextPath().toUriString();
+        return fileName -> UriComponentsBuilder.fromUriString(contextPath)
+                .path("/downloadFile/")
+                .path(fileName)
+                .toUriString();
+    }
+
     private String getDownloadUri(String fileName) {
 
         String temp = ServletUriComponentsBuilder.fromCurrentRequest().toString();
@@ -172,16 +351,4 @@ public class FileController {
                 .toUriString();
     }
 
-    /**
-     * Helper method that's gonna make sure we load something that's oriented properly
-     * @param filename
-     * @return
-     */
-    private BufferedImage loadOrientedFile(String filename) throws IOException {
-        File file = fileStorageService.loadFileAsResource(filename).getFile();
-        Image image = new Image(file);
-        image.rotate();
-        return image.getBufferedImage();
-    }
-
 }
@@ -0,0 +1,161 @@
+package com.example.demo.web;
+
+import com.example.demo.property.FileStorageProperties;
+import com.example.demo.service.PipelineMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves a stored file with HTTP caching and range support.
+ *
+ * Responses carry a strong ETag (the content hash), Last-Modified and Cache-Control, and conditional requests
+ * that still match get a 304. A single byte range is honoured with a 206; multiple ranges get the whole file.
+ * The bytes themselves go out through Tomcat's sendfile when the connector offers it (the NIO connector does by
+ * default), which hands the file to the socket without it ever passing through the JVM, and without holding a
+ * thread while the client reads. Otherwise the file is copied onto the response's output stream; that goes through
+ * a heap buffer on its way to the container's, so it costs a copy per chunk. With file.io-mode=non_blocking that
+ * copy uses servlet non-blocking I/O, see {@link BodyWriter}, so a slow client doesn't hold a thread either.
+ */
+@Component
+public class FileTransfer {
+
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private static final Logger logger = LoggerFactory.getLogger(FileTransfer.class);
+
+    private final String cacheControl;
+    private final PipelineMetrics metrics;
+    private final boolean nonBlocking;
+    private final long timeoutMillis;
+
+    @Autowired
+    public FileTransfer(FileStorageProperties fileStorageProperties, PipelineMetrics metrics) {
+        this.metrics = metrics;
+        this.cacheControl = CacheControl.maxAge(fileStorageProperties.getDownloadMaxAgeSeconds(), TimeUnit.SECONDS)
+                .cachePublic()
+                .getHeaderValue();
+        this.nonBlocking = fileStorageProperties.getIoMode() == FileStorageProperties.IoMode.NON_BLOCKING;
+        this.timeoutMillis = TimeUnit.MINUTES.toMillis(fileStorageProperties.getTransferTimeoutMinutes());
+    }
+
+    /**
+     * Answer the request with the file. In non-blocking mode the request may still be in async mode, sending, when
+     * this returns.
+     * @param contentHash the file's SHA-256, used as its ETag
+     */
+    public void send(Path file, String fileName, String contentHash, String contentType,
+                     HttpServletRequest request, HttpServletResponse response) throws IOException {
+        long size = Files.size(file);
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        String etag = "\"" + contentHash + "\"";
+
+        response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        //sets ETag and Last-Modified, and answers 304 if the client's copy is still good
+        if (new ServletWebRequest(request, response).checkNotModified(etag, lastModified)) {
+            return;
+        }
+
+        long start = 0;
+        long end = size;
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader != null && rangeStillApplies(request, etag, lastModified)) {
+            try {
+                List<HttpRange> ranges = HttpRange.parseRanges(rangeHeader);
+                if (ranges.size() == 1) {
+                    start = ranges.get(0).getRangeStart(size);
+                    end = ranges.get(0).getRangeEnd(size) + 1;
+                    response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+                    response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + (end - 1) + "/" + size);
+                }
+            } catch (IllegalArgumentException ex) {
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+                response.sendError(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+                return;
+            }
+        }
+
+        response.setContentType(contentType);
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"");
+        response.setContentLengthLong(end - start);
+        if ("HEAD".equals(request.getMethod())) {
+            return;
+        }
+        metrics.downloaded(end - start);
+
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            //Tomcat takes it from here once we return and hands the file straight to the socket
+            request.setAttribute(SENDFILE_FILENAME, file.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, end);
+            return;
+        }
+        if (nonBlocking && request.isAsyncSupported()) {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                AsyncContext async = request.startAsync(request, response);
+                async.setTimeout(timeoutMillis);
+                BodyWriter writer = new BodyWriter(channel, start, end, fileName, response.getOutputStream(), async);
+                async.addListener(writer);
+                //the container calls back whenever the client can take more
+                response.getOutputStream().setWriteListener(writer);
+            } catch (IOException | RuntimeException ex) {
+                channel.close();
+                throw ex;
+            }
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            //not zero copy: the servlet stream is no socket, so transferTo falls back to copying through a buffer
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = start;
+            while (position < end) {
+                position += channel.transferTo(position, end - position, out);
+            }
+        } catch (IOException iox) {
+            //usually just the client going away mid-transfer
+            logger.info("download of {} cut short {}", fileName, iox.getMessage());
+        }
+    }
+
+    /**
+     * If-Range lets a client say "only send the range if it's still the version I have"
+     */
+    private static boolean rangeStillApplies(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(etag);
+        }
+        try {
+            return request.getDateHeader(HttpHeaders.IF_RANGE) / 1000 == lastModified / 1000;
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+}
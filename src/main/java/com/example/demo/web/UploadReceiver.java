@@ -0,0 +1,57 @@
+package com.example.demo.web;
+
+import com.example.demo.property.FileStorageProperties;
+import com.example.demo.service.FileStorageService;
+import com.example.demo.service.StoredFile;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Stores raw request bodies, as sent to /uploadStream, the way file.io-mode says.
+ *
+ * BLOCKING reads the body from the request's stream on the request thread. NON_BLOCKING reads it with a
+ * {@link BodyReader} as it arrives, so a slow client holds a connection but no thread while it sends. Either way
+ * the name is checked before any of the body is read, and the bytes are hashed and written once.
+ */
+@Component
+public class UploadReceiver {
+
+    private final FileStorageService fileStorageService;
+    private final boolean nonBlocking;
+    private final long timeoutMillis;
+
+    @Autowired
+    public UploadReceiver(FileStorageService fileStorageService, FileStorageProperties fileStorageProperties) {
+        this.fileStorageService = fileStorageService;
+        this.nonBlocking = fileStorageProperties.getIoMode() == FileStorageProperties.IoMode.NON_BLOCKING;
+        this.timeoutMillis = TimeUnit.MINUTES.toMillis(fileStorageProperties.getTransferTimeoutMinutes());
+    }
+
+    /**
+     * Store the request's body as fileName
+     * @param downloadUri maps the stored name to the URI it'll be served from; called off the request thread
+     * @param then what to answer the request with once the file is stored
+     */
+    public <T> DeferredResult<T> receive(HttpServletRequest request, String fileName,
+                                         Function<String, String> downloadUri, Function<StoredFile, T> then)
+            throws IOException {
+        DeferredResult<T> result = new DeferredResult<>(timeoutMillis);
+        long maxBytes = fileStorageService.getMaxStreamUploadBytes();
+        if (!nonBlocking || !request.isAsyncSupported()) {
+            result.setResult(then.apply(fileStorageService.storeStream(request.getInputStream(), fileName, maxBytes,
+                    downloadUri)));
+            return result;
+        }
+        FileStorageService.Upload upload = fileStorageService.beginUpload(fileName, maxBytes);
+        WebAsyncUtils.getAsyncManager(request).registerDeferredResultInterceptor(BodyReader.class.getName(),
+                new BodyReader<>(upload, downloadUri, then, result));
+        return result;
+    }
+}
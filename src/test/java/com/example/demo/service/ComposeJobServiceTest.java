@@ -0,0 +1,159 @@
+package com.example.demo.service;
+
+import com.example.demo.exception.JobNotFoundException;
+import com.example.demo.exception.TooManyJobsException;
+import com.example.demo.property.ComposeProperties;
+import com.example.demo.util.ComposeMonitor;
+import com.example.demo.util.ComposeOptions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ComposeJobServiceTest {
+
+    private static final Function<String, String> DOWNLOAD_URI = name -> "/downloadFile/" + name;
+    private static final ComposeSettings SETTINGS = new ComposeSettings(3, ComposeOptions.MatchMode.NEAREST, 2,
+            2000, false, false, null);
+
+    private final ComposeService composeService = mock(ComposeService.class);
+    //holds up the composes until the test lets them go
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final CountDownLatch running = new CountDownLatch(1);
+    private ComposeJobService jobs;
+
+    @AfterEach
+    void shutdown() {
+        release.countDown();
+        if (jobs != null) {
+            jobs.shutdown();
+        }
+    }
+
+    @Test
+    void fullQueueTurnsJobsAway() throws Exception {
+        jobs = service(1, 60);
+        holdComposes(false);
+
+        jobs.submit("a.jpg", "m.jpg", "one.jpg", SETTINGS, DOWNLOAD_URI);
+        assertTrue(running.await(10, TimeUnit.SECONDS));
+        jobs.submit("a.jpg", "m.jpg", "two.jpg", SETTINGS, DOWNLOAD_URI);
+
+        assertThrows(TooManyJobsException.class,
+                () -> jobs.submit("a.jpg", "m.jpg", "three.jpg", SETTINGS, DOWNLOAD_URI));
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS,
+                TooManyJobsException.class.getAnnotation(ResponseStatus.class).value());
+    }
+
+    @Test
+    void queuedJobIsCancelledAndNeverStarts() throws Exception {
+        jobs = service(1, 60);
+        holdComposes(false);
+        ComposeJob first = jobs.submit("a.jpg", "m.jpg", "one.jpg", SETTINGS, DOWNLOAD_URI);
+        assertTrue(running.await(10, TimeUnit.SECONDS));
+        ComposeJob queued = jobs.submit("a.jpg", "m.jpg", "two.jpg", SETTINGS, DOWNLOAD_URI);
+
+        assertEquals(ComposeJob.Status.CANCELLED, jobs.cancel(queued.getId()).getStatus());
+        release.countDown();
+        awaitFinished(first);
+
+        assertEquals(ComposeJob.Status.DONE, first.getStatus());
+        verify(composeService, never()).compose(anyString(), anyString(), eq("two.jpg"), any(), any(), any());
+        assertEquals(ComposeJob.Status.CANCELLED, queued.getStatus());
+    }
+
+    @Test
+    void runningJobReportsCancelledOnceItHasStopped() throws Exception {
+        jobs = service(1, 60);
+        holdComposes(true);
+        ComposeJob job = jobs.submit("a.jpg", "m.jpg", "one.jpg", SETTINGS, DOWNLOAD_URI);
+        assertTrue(running.await(10, TimeUnit.SECONDS));
+
+        //still running until the compose notices
+        assertEquals(ComposeJob.Status.RUNNING, jobs.cancel(job.getId()).getStatus());
+        assertTrue(job.getMonitor().isCancelled());
+        release.countDown();
+        awaitFinished(job);
+
+        assertEquals(ComposeJob.Status.CANCELLED, job.getStatus());
+    }
+
+    @Test
+    void runningJobPastItsLastCheckIsDoneNotCancelled() throws Exception {
+        jobs = service(1, 60);
+        holdComposes(false);
+        ComposeJob job = jobs.submit("a.jpg", "m.jpg", "one.jpg", SETTINGS, DOWNLOAD_URI);
+        assertTrue(running.await(10, TimeUnit.SECONDS));
+
+        assertEquals(ComposeJob.Status.RUNNING, jobs.cancel(job.getId()).getStatus());
+        release.countDown();
+        awaitFinished(job);
+
+        //the result was stored, so that's what the job says
+        assertEquals(ComposeJob.Status.DONE, job.getStatus());
+        assertEquals("one.jpg", job.getFileName());
+    }
+
+    @Test
+    void finishedJobsAreForgottenAfterTheRetention() throws Exception {
+        jobs = service(4, 0);
+        when(composeService.compose(anyString(), anyString(), anyString(), any(), any(), any()))
+                .then(call -> call.getArgument(2));
+        ComposeJob job = jobs.submit("a.jpg", "m.jpg", "one.jpg", SETTINGS, DOWNLOAD_URI);
+        awaitFinished(job);
+        assertEquals(job, jobs.getJob(job.getId()));
+        Thread.sleep(5);
+
+        jobs.submit("a.jpg", "m.jpg", "two.jpg", SETTINGS, DOWNLOAD_URI);
+
+        assertThrows(JobNotFoundException.class, () -> jobs.getJob(job.getId()));
+    }
+
+    private ComposeJobService service(int queueCapacity, long retentionMinutes) {
+        ComposeProperties properties = new ComposeProperties();
+        properties.setWorkerThreads(1);
+        properties.setQueueCapacity(queueCapacity);
+        properties.setJobRetentionMinutes(retentionMinutes);
+        return new ComposeJobService(composeService, properties, mock(PipelineMetrics.class));
+    }
+
+    /**
+     * Make every compose wait for release, then store its result under the name asked for
+     * @param checkCancelled whether the compose looks at its monitor once it's released, or is already past that
+     */
+    private void holdComposes(boolean checkCancelled) throws IOException {
+        when(composeService.compose(anyString(), anyString(), anyString(), any(), any(), any())).then(call -> {
+            running.countDown();
+            release.await();
+            if (checkCancelled && call.<ComposeMonitor>getArgument(4).isCancelled()) {
+                throw new CancellationException("Compose cancelled");
+            }
+            return call.getArgument(2);
+        });
+    }
+
+    private void awaitFinished(ComposeJob job) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!job.isFinished() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(job.isFinished(), "job " + job.getId() + " is still " + job.getStatus());
+    }
+}
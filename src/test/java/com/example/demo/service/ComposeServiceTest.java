@@ -0,0 +1,143 @@
+package com.example.demo.service;
+
+import com.example.demo.exception.MyFileNotFoundException;
+import com.example.demo.property.ComposeProperties;
+import com.example.demo.util.ComposeMonitor;
+import com.example.demo.util.SourceFragments;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.core.io.FileSystemResource;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+class ComposeServiceTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void identicalComposeReusesTheStoredResult() throws IOException {
+        FileStorageService fileStorageService = fileStorageService();
+        DecodedImageCache imageCache = mock(DecodedImageCache.class);
+        ComposeService service = new ComposeService(fileStorageService, properties(1, null), imageCache,
+                mock(FragmentCache.class), mock(PipelineMetrics.class));
+
+        assertEquals("earlier.jpg", compose(service));
+        verifyNoInteractions(imageCache);
+    }
+
+    @Test
+    void parallelismAndSeedArePartOfTheKey() throws IOException {
+        FileStorageService fileStorageService = fileStorageService();
+        List<String> keys = keys(fileStorageService,
+                properties(1, null), properties(1, null),
+                properties(4, null), properties(8, null),
+                properties(4, 1L), properties(4, 2L));
+
+        assertEquals(keys.get(0), keys.get(1));
+        assertEquals(5, new HashSet<>(keys).size());
+    }
+
+    @Test
+    void missingPreviousFallsBackToAFullCompose() throws IOException {
+        FileStorageService fileStorageService = fileStorageService();
+        when(fileStorageService.getContentHash("gone.jpg")).thenThrow(new MyFileNotFoundException("gone.jpg"));
+        ComposeService service = new ComposeService(fileStorageService, properties(1, null),
+                mock(DecodedImageCache.class), mock(FragmentCache.class), mock(PipelineMetrics.class));
+
+        ComposeSettings settings = service.settings(null, null, null, null, false, null, "gone.jpg");
+        service.compose("model.jpg", "mapper.jpg", "result.jpg", settings, new ComposeMonitor(),
+                name -> "/downloadFile/" + name);
+        ComposeSettings scratch = service.settings(null, null, null, null, false, null, null);
+        service.compose("model.jpg", "mapper.jpg", "result.jpg", scratch, new ComposeMonitor(),
+                name -> "/downloadFile/" + name);
+
+        ArgumentCaptor<String> keys = ArgumentCaptor.forClass(String.class);
+        verify(fileStorageService, times(2)).storeComposed(keys.capture(), anyString(), any());
+        assertEquals(keys.getAllValues().get(1), keys.getAllValues().get(0));
+    }
+
+    @Test
+    void onlyRecomposableResultsKeepTheirAssignment() throws IOException {
+        FileStorageService fileStorageService = fileStorageService();
+        when(fileStorageService.storeComposed(anyString(), anyString(), any())).thenReturn(null);
+        when(fileStorageService.storeFile(any(RenderedImage.class), eq("jpg"), anyString(), anyString(), any()))
+                .then(call -> call.getArgument(2));
+        BufferedImage image = new BufferedImage(30, 30, BufferedImage.TYPE_INT_RGB);
+        DecodedImageCache imageCache = mock(DecodedImageCache.class);
+        when(imageCache.getDisplayedSize(anyString(), anyLong(), any())).thenReturn(new Dimension(30, 30));
+        when(imageCache.get(anyString(), anyLong(), anyInt(), anyInt(), any(), any())).thenReturn(image);
+        FragmentCache fragmentCache = mock(FragmentCache.class);
+        when(fragmentCache.get(anyString(), anyInt(), anyInt(), anyInt(), anyInt(), any(), any()))
+                .thenReturn(SourceFragments.breakdown(image, 3, 3));
+        ComposeService service = new ComposeService(fileStorageService, properties(1, null), imageCache,
+                fragmentCache, new PipelineMetrics(new SimpleMeterRegistry(), false));
+
+        service.compose("model.jpg", "mapper.jpg", "plain.jpg", service.settings(null, null, null, null, false,
+                null, null), new ComposeMonitor(), name -> "/downloadFile/" + name);
+        verify(fragmentCache, never()).putAssignment(anyString(), anyString(), any(), any());
+
+        service.compose("model.jpg", "mapper.jpg", "kept.jpg", service.settings(null, null, null, null, false,
+                true, null), new ComposeMonitor(), name -> "/downloadFile/" + name);
+        verify(fragmentCache).putAssignment(eq("kept.jpg"), eq("mapper.jpg"), any(), any());
+    }
+
+    private List<String> keys(FileStorageService fileStorageService, ComposeProperties... configs)
+            throws IOException {
+        for (ComposeProperties properties : configs) {
+            compose(new ComposeService(fileStorageService, properties, mock(DecodedImageCache.class),
+                    mock(FragmentCache.class), mock(PipelineMetrics.class)));
+        }
+        ArgumentCaptor<String> keys = ArgumentCaptor.forClass(String.class);
+        verify(fileStorageService, times(configs.length))
+                .storeComposed(keys.capture(), anyString(), any());
+        return keys.getAllValues();
+    }
+
+    private static String compose(ComposeService service) throws IOException {
+        ComposeSettings settings = service.settings(null, null, null, null, false, null, null);
+        return service.compose("model.jpg", "mapper.jpg", "result.jpg", settings, new ComposeMonitor(),
+                name -> "/downloadFile/" + name);
+    }
+
+    private FileStorageService fileStorageService() throws IOException {
+        Path model = Files.write(dir.resolve("model.jpg"), new byte[]{1});
+        FileStorageService fileStorageService = mock(FileStorageService.class);
+        when(fileStorageService.loadFileAsResource("model.jpg")).thenReturn(new FileSystemResource(model));
+        when(fileStorageService.getContentHash("model.jpg")).thenReturn("aaaa");
+        when(fileStorageService.getContentHash("mapper.jpg")).thenReturn("bbbb");
+        when(fileStorageService.getResultFormat()).thenReturn("jpg");
+        when(fileStorageService.describeEncoding("jpg")).thenReturn("jpg-q90");
+        when(fileStorageService.storeComposed(anyString(), anyString(), any())).thenReturn("earlier.jpg");
+        return fileStorageService;
+    }
+
+    private static ComposeProperties properties(int parallelism, Long seed) {
+        ComposeProperties properties = new ComposeProperties();
+        properties.setParallelism(parallelism);
+        properties.setSeed(seed);
+        return properties;
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.demo.service;
+
+import com.example.demo.property.ComposeProperties;
+import org.junit.jupiter.api.Test;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+
+class DecodedImageCacheTest {
+
+    private static final long QUARTER_MEGABYTE = 256 * 1024;
+
+    @Test
+    void leastRecentlyUsedImagesAreEvictedByWeight() throws IOException {
+        DecodedImageCache cache = megabyteCache();
+        AtomicInteger loads = new AtomicInteger();
+        //256x256 packed RGB is a quarter of the cache each
+        cache.get("a.jpg", 1, counting(loads, 256, 256));
+        cache.get("b.jpg", 1, counting(loads, 256, 256));
+        cache.get("c.jpg", 1, counting(loads, 256, 256));
+        cache.get("a.jpg", 1, counting(loads, 256, 256));
+        assertEquals(3 * QUARTER_MEGABYTE, cache.getCurrentBytes());
+
+        //half the cache, so the least recently used one has to go
+        cache.get("d.jpg", 1, counting(loads, 512, 256));
+
+        assertEquals(3, cache.getEntryCount());
+        assertEquals(4 * QUARTER_MEGABYTE, cache.getCurrentBytes());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(4, loads.get());
+        cache.get("a.jpg", 1, counting(loads, 256, 256));
+        cache.get("c.jpg", 1, counting(loads, 256, 256));
+        assertEquals(4, loads.get());
+        cache.get("b.jpg", 1, counting(loads, 256, 256));
+        assertEquals(5, loads.get());
+        assertEquals(3, cache.getHits());
+        assertEquals(5, cache.getMisses());
+    }
+
+    @Test
+    void imageBiggerThanTheWholeCacheIsntCached() throws IOException {
+        DecodedImageCache cache = megabyteCache();
+        AtomicInteger loads = new AtomicInteger();
+        cache.get("small.jpg", 1, counting(loads, 256, 256));
+
+        BufferedImage big = cache.get("big.jpg", 1, counting(loads, 1024, 512));
+        assertEquals(1024, big.getWidth());
+        cache.get("big.jpg", 1, counting(loads, 1024, 512));
+
+        assertEquals(3, loads.get());
+        //and nothing was evicted to make room for it
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(QUARTER_MEGABYTE, cache.getCurrentBytes());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    void invalidatedImageIsLoadedAgain() throws IOException {
+        DecodedImageCache cache = megabyteCache();
+        AtomicInteger loads = new AtomicInteger();
+        cache.get("a.jpg", 1, counting(loads, 256, 256));
+
+        cache.invalidate("a.jpg");
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, cache.getCurrentBytes());
+        cache.get("a.jpg", 1, counting(loads, 256, 256));
+
+        assertEquals(2, loads.get());
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    void changedFileOrBiggerTargetIsAMiss() throws IOException {
+        DecodedImageCache cache = megabyteCache();
+        AtomicInteger loads = new AtomicInteger();
+        cache.get("a.jpg", 1, 100, 100, new Dimension(400, 400), counting(loads, 100, 100));
+
+        cache.get("a.jpg", 1, 50, 50, new Dimension(400, 400), counting(loads, 100, 100));
+        assertEquals(1, cache.getHits());
+        cache.get("a.jpg", 1, 200, 200, new Dimension(400, 400), counting(loads, 200, 200));
+        cache.get("a.jpg", 2, 50, 50, new Dimension(400, 400), counting(loads, 100, 100));
+
+        assertEquals(3, loads.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    void displayedSizeIsServedFromTheDecodedEntry() throws IOException {
+        DecodedImageCache cache = new DecodedImageCache(new ComposeProperties(), mock(PipelineMetrics.class));
+        AtomicInteger reads = new AtomicInteger();
+        DecodedImageCache.SizeLoader header = () -> {
+            reads.incrementAndGet();
+            return new Dimension(6000, 4000);
+        };
+
+        Dimension displayed = cache.getDisplayedSize("photo.jpg", 1, header);
+        assertEquals(1, reads.get());
+        //decoded at a reduced size, so only the size we were given can say how big the file really is
+        cache.get("photo.jpg", 1, 720, 480, displayed, () -> new BufferedImage(750, 500, BufferedImage.TYPE_INT_RGB));
+
+        assertEquals(new Dimension(6000, 4000), cache.getDisplayedSize("photo.jpg", 1, header));
+        assertEquals(1, reads.get());
+        //a changed file has to be read again
+        cache.getDisplayedSize("photo.jpg", 2, header);
+        assertEquals(2, reads.get());
+    }
+
+    @Test
+    void fullSizeDecodeIsItsOwnDisplayedSize() throws IOException {
+        DecodedImageCache cache = new DecodedImageCache(new ComposeProperties(), mock(PipelineMetrics.class));
+        cache.get("photo.jpg", 1, () -> new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB));
+
+        assertEquals(new Dimension(40, 30), cache.getDisplayedSize("photo.jpg", 1, () -> {
+            throw new IOException("should have been cached");
+        }));
+    }
+
+    private static DecodedImageCache megabyteCache() {
+        ComposeProperties properties = new ComposeProperties();
+        properties.setImageCacheMaxMegabytes(1);
+        return new DecodedImageCache(properties, mock(PipelineMetrics.class));
+    }
+
+    private static DecodedImageCache.Loader counting(AtomicInteger loads, int width, int height) {
+        return () -> {
+            loads.incrementAndGet();
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        };
+    }
+}
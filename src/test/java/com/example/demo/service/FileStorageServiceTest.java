@@ -0,0 +1,379 @@
+package com.example.demo.service;
+
+import com.example.demo.exception.FileStorageException;
+import com.example.demo.exception.ReservedFileNameException;
+import com.example.demo.model.ImageFile;
+import com.example.demo.model.ImageFileRepository;
+import com.example.demo.property.EncodeProperties;
+import com.example.demo.property.FileStorageProperties;
+import com.example.demo.util.FragmentAssignment;
+import com.example.demo.util.FragmentIndex;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class FileStorageServiceTest {
+
+    private static final Function<String, String> DOWNLOAD_URI = name -> "/downloadFile/" + name;
+
+    @TempDir
+    Path dir;
+
+    ImageFileRepository repository;
+    FileStorageService service;
+
+    @BeforeEach
+    void createService() {
+        FileStorageProperties properties = new FileStorageProperties();
+        properties.setUploadDir(dir.resolve("uploads").toString());
+        properties.setBlobDir(dir.resolve("blobs").toString());
+        repository = mock(ImageFileRepository.class);
+        service = new FileStorageService(properties, new EncodeProperties(), mock(DecodedImageCache.class),
+                repository, mock(PipelineMetrics.class));
+    }
+
+    @AfterEach
+    void shutdown() {
+        service.shutdown();
+    }
+
+    @Test
+    void streamIsWrittenHashedAndSizedInOnePass() throws Exception {
+        byte[] body = new byte[3 * 1024 * 1024 + 17];
+        new Random(7).nextBytes(body);
+
+        StoredFile stored = service.storeStream(new ByteArrayInputStream(body), "photo.jpg", body.length,
+                DOWNLOAD_URI);
+
+        String hash = FileStorageService.toHex(MessageDigest.getInstance("SHA-256").digest(body));
+        assertEquals("photo.jpg", stored.getFileName());
+        assertEquals(body.length, stored.getSize());
+        assertEquals(hash, stored.getContentHash());
+        assertArrayEquals(body, Files.readAllBytes(blob(hash)));
+        assertArrayEquals(body, Files.readAllBytes(dir.resolve("uploads").resolve("photo.jpg")));
+        assertEquals(0, partFiles());
+    }
+
+    @Test
+    void streamOverTheLimitIsRejectedAndCleanedUp() throws IOException {
+        byte[] body = new byte[1024 * 1024];
+
+        assertThrows(FileStorageException.class, () -> service.storeStream(new ByteArrayInputStream(body),
+                "big.jpg", body.length - 1, DOWNLOAD_URI));
+
+        verify(repository, never()).saveAll(any());
+        assertEquals(0, partFiles());
+    }
+
+    @Test
+    void uploadsCantTakeAPreviewsName() {
+        assertThrows(ReservedFileNameException.class, () -> service.storeStream(
+                new ByteArrayInputStream(new byte[16]), "photo.jpg.preview-160.jpg", 16, DOWNLOAD_URI));
+
+        List<StoreResult> results = service.storeFiles(Arrays.asList(
+                new MockMultipartFile("files", "photo.jpg", "image/jpeg", new byte[]{1, 2, 3}),
+                new MockMultipartFile("files", "photo.jpg.PREVIEW-480.JPG", "image/jpeg", new byte[]{4, 5, 6})),
+                DOWNLOAD_URI);
+
+        assertTrue(results.get(0).isSucceeded());
+        assertFalse(results.get(1).isSucceeded());
+        assertEquals(Collections.singletonList("photo.jpg"), savedNames());
+    }
+
+    @Test
+    void previewsAreRegisteredAsPreviewsOfTheirOriginal() throws IOException {
+        when(repository.findByName("photo.jpg")).thenReturn(stored("photo.jpg", "abcd"));
+        Map<Integer, BufferedImage> previews = new TreeMap<>();
+        previews.put(160, new BufferedImage(160, 120, BufferedImage.TYPE_INT_RGB));
+        previews.put(480, new BufferedImage(480, 360, BufferedImage.TYPE_INT_RGB));
+
+        List<String> names = service.storePreviews("photo.jpg", "abcd", previews, DOWNLOAD_URI);
+
+        assertEquals(Arrays.asList("photo.jpg.preview-160.jpg", "photo.jpg.preview-480.jpg"), names);
+        List<ImageFile> rows = savedRows();
+        assertEquals(2, rows.size());
+        for (ImageFile row : rows) {
+            assertEquals("photo.jpg", row.getPreviewOf());
+            assertEquals(FileStorageService.previewName("photo.jpg", row.getPreviewSize()), row.getName());
+            assertTrue(Files.exists(blob(row.getContentHash())));
+        }
+        assertEquals(0, partFiles());
+    }
+
+    @Test
+    void previewsOfAnOriginalThatChangedAreDropped() throws IOException {
+        when(repository.findByName("photo.jpg")).thenReturn(stored("photo.jpg", "newer"));
+
+        List<String> names = service.storePreviews("photo.jpg", "abcd", Collections.singletonMap(160,
+                new BufferedImage(160, 120, BufferedImage.TYPE_INT_RGB)), DOWNLOAD_URI);
+
+        assertTrue(names.isEmpty());
+        verify(repository, never()).saveAll(any());
+        assertEquals(0, partFiles());
+    }
+
+    @Test
+    void replacingAnOriginalDropsItsPreviews() throws IOException {
+        StoredFile thumbnail = service.storeStream(new ByteArrayInputStream(new byte[]{7, 7, 7}),
+                "thumbnail.jpg", 3, DOWNLOAD_URI);
+        ImageFile preview = stored(FileStorageService.previewName("photo.jpg", 160), thumbnail.getContentHash());
+        preview.setPreviewOf("photo.jpg");
+        Path previewLink = dir.resolve("uploads").resolve(preview.getName());
+        Files.createLink(previewLink, blob(thumbnail.getContentHash()));
+        when(repository.findByName("photo.jpg")).thenReturn(stored("photo.jpg", "abcd"));
+        when(repository.findByPreviewOf("photo.jpg")).thenReturn(Collections.singletonList(preview));
+
+        service.storeStream(new ByteArrayInputStream(new byte[]{1, 2, 3}), "photo.jpg", 3, DOWNLOAD_URI);
+
+        verify(repository).deleteInBatch(Collections.singletonList(preview));
+        assertFalse(Files.exists(previewLink));
+        //no row refers to the preview's bytes any more
+        assertFalse(Files.exists(blob(thumbnail.getContentHash())));
+    }
+
+    @Test
+    void batchThatCantBeRegisteredLeavesNothingBehind() throws Exception {
+        byte[] kept = {1, 2, 3};
+        byte[] fresh = {4, 5, 6};
+        StoredFile earlier = service.storeStream(new ByteArrayInputStream(kept), "earlier.jpg", 3, DOWNLOAD_URI);
+        when(repository.saveAll(any())).thenThrow(new IllegalStateException("database is down"));
+
+        List<StoreResult> results = service.storeFiles(Arrays.asList(
+                new MockMultipartFile("files", "same.jpg", "image/jpeg", kept),
+                new MockMultipartFile("files", "fresh.jpg", "image/jpeg", fresh)), DOWNLOAD_URI);
+
+        assertFalse(results.get(0).isSucceeded());
+        assertFalse(results.get(1).isSucceeded());
+        //the blob an earlier name still points at stays, the one only this batch brought in goes
+        assertTrue(Files.exists(blob(earlier.getContentHash())));
+        String freshHash = FileStorageService.toHex(MessageDigest.getInstance("SHA-256").digest(fresh));
+        assertFalse(Files.exists(blob(freshHash)));
+        assertFalse(Files.exists(dir.resolve("uploads").resolve("fresh.jpg")));
+        assertEquals(0, partFiles());
+    }
+
+    @Test
+    void cleanupThatFailsAfterTheBatchIsSavedDoesntFailTheBatch() throws IOException {
+        rememberRows();
+        service.storeStream(new ByteArrayInputStream(new byte[]{1, 2}), "photo.jpg", 16, DOWNLOAD_URI);
+        when(repository.findByPreviewOf("photo.jpg")).thenThrow(new IllegalStateException("database is down"));
+
+        List<StoreResult> results = service.storeFiles(Arrays.asList(
+                new MockMultipartFile("files", "photo.jpg", "image/jpeg", new byte[]{3, 4}),
+                new MockMultipartFile("files", "other.jpg", "image/jpeg", new byte[]{5})), DOWNLOAD_URI);
+
+        //the rows are saved and point at the new blobs, so that's what the client is told
+        assertTrue(results.get(0).isSucceeded());
+        assertTrue(results.get(1).isSucceeded());
+        assertTrue(Files.exists(blob(results.get(0).getStored().getContentHash())));
+        assertTrue(Files.exists(blob(results.get(1).getStored().getContentHash())));
+        assertEquals(0, partFiles());
+    }
+
+    @Test
+    void fileThatCantBeReadFailsAlone() throws IOException {
+        MultipartFile broken = mock(MultipartFile.class);
+        when(broken.getOriginalFilename()).thenReturn("broken.jpg");
+        when(broken.getInputStream()).thenThrow(new IOException("connection reset"));
+
+        List<StoreResult> results = service.storeFiles(Arrays.asList(
+                new MockMultipartFile("files", "a.jpg", "image/jpeg", new byte[]{1}),
+                broken,
+                new MockMultipartFile("files", "b.jpg", "image/jpeg", new byte[]{2})), DOWNLOAD_URI);
+
+        assertTrue(results.get(0).isSucceeded());
+        assertFalse(results.get(1).isSucceeded());
+        assertEquals("broken.jpg", results.get(1).getFileName());
+        assertTrue(results.get(2).isSucceeded());
+        assertEquals(Arrays.asList("a.jpg", "b.jpg"), savedNames());
+        assertEquals(0, partFiles());
+    }
+
+    @Test
+    void nameThatComesUpTwiceInABatchIsOnlyStoredOnce() throws IOException {
+        byte[] first = {1, 2, 3};
+
+        List<StoreResult> results = service.storeFiles(Arrays.asList(
+                new MockMultipartFile("files", "photo.jpg", "image/jpeg", first),
+                new MockMultipartFile("files", "photo.jpg", "image/jpeg", new byte[]{4, 5, 6}),
+                new MockMultipartFile("files", "other.jpg", "image/jpeg", new byte[]{7})), DOWNLOAD_URI);
+
+        assertTrue(results.get(0).isSucceeded());
+        assertFalse(results.get(1).isSucceeded());
+        assertEquals("photo.jpg", results.get(1).getFileName());
+        assertTrue(results.get(2).isSucceeded());
+        assertEquals(Arrays.asList("photo.jpg", "other.jpg"), savedNames());
+        assertArrayEquals(first, Files.readAllBytes(dir.resolve("uploads").resolve("photo.jpg")));
+        assertEquals(0, partFiles());
+    }
+
+    @Test
+    void assignmentIsKeptWithItsResultAndDeletedWithIt() throws IOException {
+        byte[] body = new byte[]{1, 2, 3};
+        String hash = service.storeStream(new ByteArrayInputStream(body), "result.jpg", body.length, DOWNLOAD_URI)
+                .getContentHash();
+        when(repository.findByName("result.jpg")).thenReturn(stored("result.jpg", hash));
+        FragmentAssignment assignment = new FragmentAssignment(new int[]{3, 2, 1, 0},
+                new byte[4 * FragmentIndex.FEATURE_LENGTH], 6, 6, 3, 3);
+
+        service.storeAssignment("result.jpg", "mapper-key", assignment);
+        assertArrayEquals(assignment.getSources(), service.loadAssignment("result.jpg", "mapper-key").getSources());
+        assertNull(service.loadAssignment("result.jpg", "other-mapper-key"));
+        assertEquals(2, blobDirFiles(blob(hash).getParent()));
+
+        service.deleteFile("result.jpg");
+        assertEquals(0, blobDirFiles(blob(hash).getParent()));
+    }
+
+    @Test
+    void identicalBytesUnderASecondNameShareOneBlob() throws IOException {
+        rememberRows();
+        byte[] body = new byte[]{1, 2, 3, 4};
+
+        String first = service.storeStream(new ByteArrayInputStream(body), "a.jpg", 16, DOWNLOAD_URI)
+                .getContentHash();
+        String second = service.storeStream(new ByteArrayInputStream(body), "b.jpg", 16, DOWNLOAD_URI)
+                .getContentHash();
+
+        assertEquals(first, second);
+        assertEquals(1, blobDirFiles(blob(first).getParent()));
+        assertArrayEquals(body, Files.readAllBytes(blob(first)));
+        assertArrayEquals(body, Files.readAllBytes(dir.resolve("uploads").resolve("a.jpg")));
+        assertArrayEquals(body, Files.readAllBytes(dir.resolve("uploads").resolve("b.jpg")));
+        assertEquals(0, partFiles());
+    }
+
+    @Test
+    void deletingOneOfTwoNamesKeepsTheBlob() throws IOException {
+        rememberRows();
+        byte[] body = new byte[]{1, 2, 3, 4};
+        String hash = service.storeStream(new ByteArrayInputStream(body), "a.jpg", 16, DOWNLOAD_URI)
+                .getContentHash();
+        service.storeStream(new ByteArrayInputStream(body), "b.jpg", 16, DOWNLOAD_URI);
+
+        assertTrue(service.deleteFile("a.jpg"));
+
+        assertTrue(Files.exists(blob(hash)));
+        assertFalse(Files.exists(dir.resolve("uploads").resolve("a.jpg")));
+        assertArrayEquals(body, Files.readAllBytes(service.loadFileAsResource("b.jpg").getFile().toPath()));
+    }
+
+    @Test
+    void deletingTheLastNameRemovesTheBlob() throws IOException {
+        rememberRows();
+        byte[] body = new byte[]{1, 2, 3, 4};
+        String hash = service.storeStream(new ByteArrayInputStream(body), "a.jpg", 16, DOWNLOAD_URI)
+                .getContentHash();
+        service.storeStream(new ByteArrayInputStream(body), "b.jpg", 16, DOWNLOAD_URI);
+
+        service.deleteFile("a.jpg");
+        service.deleteFile("b.jpg");
+
+        assertFalse(Files.exists(blob(hash)));
+        assertFalse(Files.exists(dir.resolve("uploads").resolve("b.jpg")));
+    }
+
+    @Test
+    void replacingTheOnlyNameOfSomeBytesRemovesTheirBlob() throws IOException {
+        rememberRows();
+        String old = service.storeStream(new ByteArrayInputStream(new byte[]{1, 2}), "a.jpg", 16, DOWNLOAD_URI)
+                .getContentHash();
+
+        String replacement = service.storeStream(new ByteArrayInputStream(new byte[]{3, 4}), "a.jpg", 16,
+                DOWNLOAD_URI).getContentHash();
+
+        assertFalse(Files.exists(blob(old)));
+        assertTrue(Files.exists(blob(replacement)));
+    }
+
+    /**
+     * Back the mocked repository with a map, so it can count how many names refer to each blob
+     */
+    private void rememberRows() {
+        Map<String, ImageFile> rows = new HashMap<>();
+        when(repository.saveAll(any())).then(call -> {
+            List<ImageFile> saved = new ArrayList<>();
+            call.<Iterable<ImageFile>>getArgument(0).forEach(saved::add);
+            saved.forEach(row -> rows.put(row.getName(), row));
+            return saved;
+        });
+        when(repository.findByName(anyString())).then(call -> rows.get(call.<String>getArgument(0)));
+        when(repository.countByContentHash(anyString())).then(call -> rows.values().stream()
+                .filter(row -> call.getArgument(0).equals(row.getContentHash()))
+                .count());
+        doAnswer(call -> rows.remove(call.<ImageFile>getArgument(0).getName()))
+                .when(repository).delete(any(ImageFile.class));
+    }
+
+    private static ImageFile stored(String name, String hash) {
+        ImageFile file = new ImageFile(name, DOWNLOAD_URI.apply(name));
+        file.setContentHash(hash);
+        return file;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<ImageFile> savedRows() {
+        ArgumentCaptor<Iterable<ImageFile>> saved = ArgumentCaptor.forClass(Iterable.class);
+        verify(repository).saveAll(saved.capture());
+        List<ImageFile> rows = new ArrayList<>();
+        saved.getValue().forEach(rows::add);
+        return rows;
+    }
+
+    private List<String> savedNames() {
+        List<String> names = new ArrayList<>();
+        savedRows().forEach(row -> names.add(row.getName()));
+        return names;
+    }
+
+    private Path blob(String hash) {
+        return dir.resolve("blobs").resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+    }
+
+    private static long blobDirFiles(Path blobDir) throws IOException {
+        try (Stream<Path> files = Files.list(blobDir)) {
+            return files.count();
+        }
+    }
+
+    private long partFiles() throws IOException {
+        try (Stream<Path> files = Files.walk(dir.resolve("blobs"))) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".part")).count();
+        }
+    }
+}
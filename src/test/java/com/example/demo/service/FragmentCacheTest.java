@@ -0,0 +1,53 @@
+package com.example.demo.service;
+
+import com.example.demo.property.FileStorageProperties;
+import com.example.demo.util.Resampler;
+import com.example.demo.util.SourceFragments;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class FragmentCacheTest {
+
+    @TempDir
+    Path cacheDir;
+
+    @Test
+    void leastRecentlyUsedSourceIsEvictedOverBudget() throws IOException {
+        FileStorageProperties properties = new FileStorageProperties();
+        properties.setFragmentCacheDir(cacheDir.toString());
+        properties.setFragmentCacheMaxMegabytes(1);
+        FileStorageService fileStorageService = mock(FileStorageService.class);
+        when(fileStorageService.getContentHash("a.png")).thenReturn("aaaa");
+        when(fileStorageService.getContentHash("b.png")).thenReturn("bbbb");
+        FragmentCache cache = new FragmentCache(properties, fileStorageService, mock(PipelineMetrics.class));
+
+        //each source takes about 640 KB, so the cache only has room for one
+        AtomicInteger loads = new AtomicInteger();
+        FragmentCache.Loader loader = () -> {
+            loads.incrementAndGet();
+            return SourceFragments.breakdown(new BufferedImage(400, 400, BufferedImage.TYPE_INT_RGB), 4, 4);
+        };
+        cache.get("a.png", 400, 400, 4, 4, Resampler.Method.DRAW_IMAGE, loader);
+        cache.get("b.png", 400, 400, 4, 4, Resampler.Method.DRAW_IMAGE, loader);
+        assertEquals(2, loads.get());
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            assertEquals(1, files.count());
+        }
+
+        cache.get("b.png", 400, 400, 4, 4, Resampler.Method.DRAW_IMAGE, loader);
+        assertEquals(2, loads.get());
+        cache.get("a.png", 400, 400, 4, 4, Resampler.Method.DRAW_IMAGE, loader);
+        assertEquals(3, loads.get());
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.demo.service;
+
+import com.example.demo.model.ImageFileRepository;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ImageFileReconcilerTest {
+
+    @TempDir
+    Path uploads;
+
+    @Test
+    void onlyFilesWithoutARowAreAdopted() throws IOException {
+        Files.write(uploads.resolve("known.jpg"), new byte[1]);
+        Files.write(uploads.resolve("new.jpg"), new byte[1]);
+        Files.write(uploads.resolve(".in-flight.part"), new byte[1]);
+        ImageFileRepository repository = mock(ImageFileRepository.class);
+        when(repository.findAllNames()).thenReturn(Arrays.asList("known.jpg", "gone.jpg"));
+        FileStorageService fileStorageService = mock(FileStorageService.class);
+        when(fileStorageService.getFileStorageLocation()).thenReturn(uploads);
+
+        new ImageFileReconciler(fileStorageService, repository, "http://host").reconcile();
+
+        verify(fileStorageService).adoptUntracked(eq("new.jpg"), any());
+        verify(fileStorageService, never()).adoptUntracked(eq("known.jpg"), any());
+        verify(fileStorageService, never()).adoptUntracked(eq(".in-flight.part"), any());
+        verify(repository, never()).findByName(anyString());
+    }
+}
@@ -0,0 +1,173 @@
+package com.example.demo.service;
+
+import com.example.demo.util.ComposeMonitor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InFlightComposesTest {
+
+    private final InFlightComposes composes = new InFlightComposes();
+    //what an identical compose finished earlier stored its result as
+    private final AtomicReference<String> stored = new AtomicReference<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void storedResultIsReusedWithoutComposing() throws IOException {
+        stored.set("first.jpg");
+
+        assertEquals("first.jpg", composes.compose("key", new ComposeMonitor(), stored::get, () -> {
+            throw new AssertionError("composed again");
+        }));
+        assertEquals(1, composes.getHits());
+        assertEquals(0, composes.getMisses());
+    }
+
+    @Test
+    void identicalComposeWaitsForTheRunningOne() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+        Future<String> leader = executor.submit(() -> composes.compose("key", new ComposeMonitor(), stored::get,
+                () -> {
+                    runs.incrementAndGet();
+                    started.countDown();
+                    hold(finish);
+                    stored.set("first.jpg");
+                    return "first.jpg";
+                }));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        Future<String> waiter = executor.submit(() -> composes.compose("key", new ComposeMonitor(), stored::get,
+                () -> {
+                    runs.incrementAndGet();
+                    return "second.jpg";
+                }));
+        Thread.sleep(200);
+        finish.countDown();
+
+        assertEquals("first.jpg", leader.get(10, TimeUnit.SECONDS));
+        assertEquals("first.jpg", waiter.get(10, TimeUnit.SECONDS));
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    void differentComposesDontWaitForEachOther() throws Exception {
+        CountDownLatch finish = new CountDownLatch(1);
+        Future<String> blocked = executor.submit(() -> composes.compose("one", new ComposeMonitor(), () -> null,
+                () -> {
+                    hold(finish);
+                    return "one.jpg";
+                }));
+
+        assertEquals("two.jpg", composes.compose("two", new ComposeMonitor(), () -> null, () -> "two.jpg"));
+        finish.countDown();
+        assertEquals("one.jpg", blocked.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void waiterFailsWhenTheRunningComposeFails() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        IOException failure = new IOException("unreadable model");
+        Future<String> leader = executor.submit(() -> composes.compose("key", new ComposeMonitor(), stored::get,
+                () -> {
+                    started.countDown();
+                    hold(finish);
+                    throw failure;
+                }));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        Future<String> waiter = executor.submit(() -> composes.compose("key", new ComposeMonitor(), stored::get,
+                () -> "second.jpg"));
+        Thread.sleep(200);
+        finish.countDown();
+
+        assertSame(failure, assertThrows(ExecutionException.class, leader::get).getCause());
+        assertSame(failure, assertThrows(ExecutionException.class, () -> waiter.get(10, TimeUnit.SECONDS))
+                .getCause());
+        //a failure isn't remembered, the next identical compose tries again
+        assertEquals("third.jpg", composes.compose("key", new ComposeMonitor(), stored::get, () -> "third.jpg"));
+    }
+
+    @Test
+    void waiterComposesItselfWhenTheRunningComposeIsCancelled() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        ComposeMonitor leaderMonitor = new ComposeMonitor();
+        Future<String> leader = executor.submit(() -> composes.compose("key", leaderMonitor, stored::get, () -> {
+            started.countDown();
+            hold(finish);
+            throw new CancellationException("Compose cancelled");
+        }));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        AtomicInteger runs = new AtomicInteger();
+        Future<String> waiter = executor.submit(() -> composes.compose("key", new ComposeMonitor(), stored::get,
+                () -> {
+                    runs.incrementAndGet();
+                    return "second.jpg";
+                }));
+        Thread.sleep(200);
+        assertEquals(0, runs.get());
+        leaderMonitor.cancel();
+        finish.countDown();
+
+        assertThrows(ExecutionException.class, leader::get);
+        assertEquals("second.jpg", waiter.get(10, TimeUnit.SECONDS));
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    void waiterStopsWaitingWhenItsOwnComposeIsCancelled() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        Future<String> leader = executor.submit(() -> composes.compose("key", new ComposeMonitor(), stored::get,
+                () -> {
+                    started.countDown();
+                    hold(finish);
+                    return "first.jpg";
+                }));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        ComposeMonitor waiterMonitor = new ComposeMonitor();
+        Future<String> waiter = executor.submit(() -> composes.compose("key", waiterMonitor, stored::get,
+                () -> "second.jpg"));
+        Thread.sleep(200);
+        waiterMonitor.cancel();
+
+        ExecutionException ex = assertThrows(ExecutionException.class, () -> waiter.get(10, TimeUnit.SECONDS));
+        assertTrue(ex.getCause() instanceof CancellationException);
+        //the compose it was waiting for carries on
+        finish.countDown();
+        assertEquals("first.jpg", leader.get(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Keep a compose running until the test lets it finish
+     */
+    private static void hold(CountDownLatch finish) {
+        try {
+            finish.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted");
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.demo.service;
+
+import com.example.demo.model.ImageFile;
+import com.example.demo.model.ImageFileRepository;
+import com.example.demo.property.FileStorageProperties;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.core.io.FileSystemResource;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PreviewServiceTest {
+
+    private static final Function<String, String> DOWNLOAD_URI = name -> "/downloadFile/" + name;
+
+    @TempDir
+    Path dir;
+
+    FileStorageService fileStorageService;
+    ImageFileRepository repository;
+    PreviewService previewService;
+
+    @BeforeEach
+    void createService() {
+        FileStorageProperties properties = new FileStorageProperties();
+        properties.setPreviewSizes(new int[]{480, 160, 1024});
+        fileStorageService = mock(FileStorageService.class);
+        repository = mock(ImageFileRepository.class);
+        previewService = new PreviewService(fileStorageService, repository, properties, mock(PipelineMetrics.class));
+    }
+
+    @AfterEach
+    void shutdown() {
+        previewService.shutdown();
+    }
+
+    @Test
+    void smallestPreviewBigEnoughIsServed() {
+        when(repository.findByName("photo.jpg.preview-480.jpg")).thenReturn(preview("photo.jpg", 480));
+        when(repository.findByName("photo.jpg.preview-1024.jpg")).thenReturn(preview("photo.jpg", 1024));
+
+        assertEquals("photo.jpg.preview-480.jpg", previewService.previewFor("photo.jpg", 100));
+        assertEquals("photo.jpg.preview-480.jpg", previewService.previewFor("photo.jpg", 480));
+        assertEquals("photo.jpg.preview-1024.jpg", previewService.previewFor("photo.jpg", 481));
+        assertEquals("photo.jpg", previewService.previewFor("photo.jpg", 2000));
+    }
+
+    @Test
+    void rowThatIsntAPreviewOfTheFileIsntServed() {
+        //say an upload took the name before names like these were reserved
+        ImageFile upload = preview("photo.jpg", 160);
+        upload.setPreviewOf(null);
+        when(repository.findByName("photo.jpg.preview-160.jpg")).thenReturn(upload);
+
+        assertEquals("photo.jpg", previewService.previewFor("photo.jpg", 100));
+    }
+
+    @Test
+    void previewsAreOnlyMadeSmallerThanTheOriginal() throws IOException {
+        File original = dir.resolve("photo.png").toFile();
+        ImageIO.write(new BufferedImage(600, 400, BufferedImage.TYPE_INT_RGB), "png", original);
+        when(fileStorageService.getContentHash("photo.png")).thenReturn("abcd");
+        when(fileStorageService.loadFileAsResource("photo.png")).thenReturn(new FileSystemResource(original));
+
+        previewService.generate("photo.png", DOWNLOAD_URI);
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Map<Integer, BufferedImage>> previews = ArgumentCaptor.forClass(Map.class);
+        verify(fileStorageService, timeout(10_000)).storePreviews(eq("photo.png"), eq("abcd"), previews.capture(),
+                any());
+        assertEquals(Arrays.asList(160, 480), Arrays.asList(previews.getValue().keySet().toArray()));
+        BufferedImage small = previews.getValue().get(160);
+        assertEquals(160, small.getWidth());
+        assertEquals(107, small.getHeight(), 1);
+        assertEquals(480, previews.getValue().get(480).getWidth());
+    }
+
+    @Test
+    void fileThatAlreadyHasPreviewsIsLeftAlone() throws IOException {
+        File original = dir.resolve("photo.png").toFile();
+        ImageIO.write(new BufferedImage(600, 400, BufferedImage.TYPE_INT_RGB), "png", original);
+        when(repository.findByPreviewOf("old.png")).thenReturn(Collections.singletonList(preview("old.png", 160)));
+        when(fileStorageService.getContentHash("photo.png")).thenReturn("abcd");
+        when(fileStorageService.loadFileAsResource("photo.png")).thenReturn(new FileSystemResource(original));
+
+        previewService.generate("old.png", DOWNLOAD_URI);
+        //one worker, so once this one's previews are stored the first job is long over
+        previewService.generate("photo.png", DOWNLOAD_URI);
+
+        verify(fileStorageService, timeout(10_000)).storePreviews(eq("photo.png"), eq("abcd"), anyMap(), any());
+        verify(fileStorageService, never()).getContentHash("old.png");
+    }
+
+    private static ImageFile preview(String fileName, int size) {
+        ImageFile preview = new ImageFile(FileStorageService.previewName(fileName, size), "/downloadFile/preview");
+        preview.setPreviewOf(fileName);
+        preview.setPreviewSize(size);
+        return preview;
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.demo.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static com.example.demo.util.TestImages.randomImage;
+import static com.example.demo.util.TestImages.sortedFragments;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AssignmentComposerTest {
+
+    @Test
+    void everySourceFragmentIsUsedOnce() {
+        Random random = new Random(7);
+        BufferedImage source = randomImage(random, 69, 57);
+        BufferedImage model = randomImage(random, 69, 57);
+
+        for (int parallelism = 1; parallelism <= 3; parallelism++) {
+            ComposeOptions options = new ComposeOptions()
+                    .setMatchMode(ComposeOptions.MatchMode.ASSIGNMENT)
+                    .setParallelism(parallelism);
+            assertArrayEquals(sortedFragments(source),
+                    sortedFragments(ImageUtils.remakeImage(source, model, 3, 3, options)));
+        }
+    }
+
+    @Test
+    void beatsGreedy() {
+        Random random = new Random(3);
+        BufferedImage source = randomImage(random, 96, 96);
+        BufferedImage model = randomImage(random, 96, 96);
+
+        long greedy = cost(model, ImageUtils.remakeImage(source, model, 3, 3, new ComposeOptions()));
+        long assigned = cost(model, ImageUtils.remakeImage(source, model, 3, 3, new ComposeOptions()
+                .setMatchMode(ComposeOptions.MatchMode.ASSIGNMENT)
+                .setParallelism(2)));
+        assertTrue(assigned < greedy, assigned + " should beat " + greedy);
+    }
+
+    /**
+     * Total feature distance between each fragment of the result and the model fragment it stands in for
+     */
+    private static long cost(BufferedImage model, BufferedImage result) {
+        byte[] expected = FragmentIndex.computeFeatures(RasterSimilarity.data(model), model.getWidth(),
+                model.getHeight(), 3, 3);
+        byte[] actual = FragmentIndex.computeFeatures(RasterSimilarity.data(result), result.getWidth(),
+                result.getHeight(), 3, 3);
+        long total = 0;
+        for (int offset = 0; offset < expected.length; offset += FragmentIndex.FEATURE_LENGTH) {
+            total += FragmentIndex.distance(expected, offset, actual, offset);
+        }
+        return total;
+    }
+}
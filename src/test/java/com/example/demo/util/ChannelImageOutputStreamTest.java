@@ -0,0 +1,59 @@
+package com.example.demo.util;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+class ChannelImageOutputStreamTest {
+
+    @Test
+    void writesWhatImageIoWouldWrite() throws IOException {
+        Path expected = Files.createTempFile("expected", ".bin");
+        Path actual = Files.createTempFile("actual", ".bin");
+        try {
+            try (ImageOutputStream out = new FileImageOutputStream(expected.toFile())) {
+                writeSomething(out);
+            }
+            try (FileChannel channel = FileChannel.open(actual, StandardOpenOption.WRITE,
+                    StandardOpenOption.READ);
+                 ImageOutputStream out = new ChannelImageOutputStream(channel, 16)) {
+                writeSomething(out);
+            }
+            assertArrayEquals(Files.readAllBytes(expected), Files.readAllBytes(actual));
+        } finally {
+            Files.deleteIfExists(expected);
+            Files.deleteIfExists(actual);
+        }
+    }
+
+    /**
+     * Small and large writes, a seek back to patch in a length the way the PNG writer does, and some bits
+     */
+    private static void writeSomething(ImageOutputStream out) throws IOException {
+        out.writeInt(0);
+        byte[] big = new byte[100];
+        for (int i = 0; i < big.length; i++) {
+            big[i] = (byte) i;
+        }
+        out.write(big);
+        for (int i = 0; i < 40; i++) {
+            out.write(i);
+        }
+        out.writeBits(5, 3);
+        out.writeBits(1, 1);
+        long end = out.getStreamPosition();
+        out.seek(0);
+        out.writeInt((int) end);
+        out.seek(end);
+        out.writeUTF("done");
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.demo.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static com.example.demo.util.TestImages.randomImage;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DiskImageTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void bandsMatchTheImageDecodedInMemory() throws IOException {
+        BufferedImage image = randomImage(new Random(3), 300, 700);
+        for (String format : new String[]{"jpg", "png"}) {
+            File file = dir.resolve("image." + format).toFile();
+            ImageIO.write(image, format, file);
+            BufferedImage expected = ImageIO.read(file);
+            try (DiskImage decoded = DiskImage.decode(file, dir)) {
+                assertEquals(300, decoded.getWidth());
+                assertEquals(700, decoded.getHeight());
+                //bands in any order, across the page boundaries of the file behind them
+                for (int y : new int[]{500, 0, 250, 699}) {
+                    int rows = Math.min(200, 700 - y);
+                    BufferedImage band = decoded.band(y, rows);
+                    for (int row = 0; row < rows; row++) {
+                        for (int x = 0; x < 300; x++) {
+                            assertEquals(expected.getRGB(x, y + row), band.getRGB(x, row), format);
+                        }
+                    }
+                }
+            }
+        }
+        //nothing left behind but the inputs
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(2, files.count());
+        }
+    }
+
+    @Test
+    void grayImagesDecodeToo() throws IOException {
+        BufferedImage image = randomImage(new Random(4), 50, 40, BufferedImage.TYPE_BYTE_GRAY);
+        File file = dir.resolve("gray.png").toFile();
+        ImageIO.write(image, "png", file);
+        BufferedImage expected = ImageIO.read(file);
+        try (DiskImage decoded = DiskImage.decode(file, dir)) {
+            BufferedImage band = decoded.band(10, 20);
+            for (int row = 0; row < 20; row++) {
+                for (int x = 0; x < 50; x++) {
+                    assertEquals(expected.getRGB(x, 10 + row), band.getRGB(x, row));
+                }
+            }
+        }
+    }
+}
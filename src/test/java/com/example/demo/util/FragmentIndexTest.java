@@ -0,0 +1,114 @@
+package com.example.demo.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FragmentIndexTest {
+
+    private static final int WIDTH = 60;
+    private static final int HEIGHT = 45;
+
+    @Test
+    void nearestMatchesBruteForceAndNeverRepeats() {
+        Random random = new Random(42);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt() & 0xFFFFFF;
+        }
+        FragmentIndex index = new FragmentIndex(pixels, WIDTH, HEIGHT, 3, 3);
+        byte[] features = new byte[index.size() * FragmentIndex.FEATURE_LENGTH];
+        for (int id = 0; id < index.size(); id++) {
+            FragmentIndex.extract(pixels, WIDTH, index.fragmentX(id), index.fragmentY(id), 3, 3,
+                    features, id * FragmentIndex.FEATURE_LENGTH);
+        }
+
+        boolean[] used = new boolean[index.size()];
+        byte[] query = new byte[FragmentIndex.FEATURE_LENGTH];
+        for (int n = 0; n < index.size(); n++) {
+            random.nextBytes(query);
+            int best = Integer.MAX_VALUE;
+            for (int id = 0; id < index.size(); id++) {
+                if (!used[id]) {
+                    best = Math.min(best, FragmentIndex.distance(query, 0, features, id * FragmentIndex.FEATURE_LENGTH));
+                }
+            }
+            int match = index.nearest(query, 0);
+            assertFalse(used[match]);
+            assertEquals(best, FragmentIndex.distance(query, 0, features, match * FragmentIndex.FEATURE_LENGTH));
+            used[match] = true;
+            index.remove(match);
+        }
+        assertEquals(0, index.available());
+        assertEquals(-1, index.nearest(query, 0));
+    }
+
+    @Test
+    void pruningCopyFindsTheNearestUnusedAndLeavesTheOriginalAlone() {
+        Random random = new Random(7);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt() & 0xFFFFFF;
+        }
+        FragmentIndex index = new FragmentIndex(pixels, WIDTH, HEIGHT, 3, 3);
+        byte[] features = FragmentIndex.computeFeatures(pixels, WIDTH, HEIGHT, 3, 3);
+        FragmentIndex copy = index.copy();
+
+        //used elsewhere, as another composer would
+        BitSet gone = new BitSet();
+        byte[] query = new byte[FragmentIndex.FEATURE_LENGTH];
+        for (int n = 0; n < index.size() - 1; n++) {
+            random.nextBytes(query);
+            gone.set(random.nextInt(index.size()));
+            int best = Integer.MAX_VALUE;
+            for (int id = gone.nextClearBit(0); id < index.size(); id = gone.nextClearBit(id + 1)) {
+                best = Math.min(best, FragmentIndex.distance(query, 0, features, id * FragmentIndex.FEATURE_LENGTH));
+            }
+            int match = copy.nearestPruning(query, 0, gone::get, null);
+            if (best == Integer.MAX_VALUE) {
+                assertEquals(-1, match);
+                break;
+            }
+            assertFalse(gone.get(match));
+            assertEquals(best, FragmentIndex.distance(query, 0, features, match * FragmentIndex.FEATURE_LENGTH));
+            gone.set(match);
+        }
+        assertTrue(copy.available() < index.size());
+        assertEquals(index.size(), index.available());
+    }
+
+    @Test
+    void kNearestMatchesBruteForce() {
+        Random random = new Random(5);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt() & 0xFFFFFF;
+        }
+        FragmentIndex index = new FragmentIndex(pixels, WIDTH, HEIGHT, 3, 3);
+        byte[] features = FragmentIndex.computeFeatures(pixels, WIDTH, HEIGHT, 3, 3);
+
+        byte[] query = new byte[FragmentIndex.FEATURE_LENGTH];
+        int[] found = new int[8];
+        for (int n = 0; n < 50; n++) {
+            random.nextBytes(query);
+            int[] expected = new int[index.size()];
+            for (int id = 0; id < index.size(); id++) {
+                expected[id] = FragmentIndex.distance(query, 0, features, id * FragmentIndex.FEATURE_LENGTH);
+            }
+            Arrays.sort(expected);
+            assertEquals(8, index.nearest(query, 0, found, 0, 8));
+            int[] actual = new int[8];
+            for (int k = 0; k < 8; k++) {
+                actual[k] = FragmentIndex.distance(query, 0, features, found[k] * FragmentIndex.FEATURE_LENGTH);
+            }
+            assertArrayEquals(Arrays.copyOf(expected, 8), actual);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.demo.util;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ImageDecoderTest {
+
+    @Test
+    void subsamplingKeepsTwiceTheTarget() {
+        assertEquals(4, ImageDecoder.subsampling(6000, 4000, 720, 480));
+        //the tighter direction decides
+        assertEquals(2, ImageDecoder.subsampling(6000, 4000, 720, 720));
+        assertEquals(1, ImageDecoder.subsampling(1000, 800, 720, 480));
+        assertEquals(1, ImageDecoder.subsampling(6000, 4000, 0, 0));
+    }
+
+    @Test
+    void decodesNoBiggerThanNeeded() throws Exception {
+        BufferedImage image = new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB);
+        File file = Files.createTempFile("decoder", ".png").toFile();
+        try {
+            ImageIO.write(image, "png", file);
+            BufferedImage decoded = ImageDecoder.decode(file, 100, 75);
+            assertEquals(200, decoded.getWidth());
+            assertEquals(150, decoded.getHeight());
+            assertEquals(400, ImageDecoder.decode(file, 0, 0).getWidth());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    void orientationsPutTheTopLeftCornerBack() {
+        //a 3x2 image with a distinct colour in every pixel
+        BufferedImage image = new BufferedImage(3, 2, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 2; y++) {
+            for (int x = 0; x < 3; x++) {
+                image.setRGB(x, y, y * 3 + x);
+            }
+        }
+        //where the stored top-left pixel ends up once each orientation is applied
+        int[][] corners = {{0, 0}, {2, 0}, {2, 1}, {0, 1}, {0, 0}, {1, 0}, {1, 2}, {0, 2}};
+        for (int orientation = 1; orientation <= 8; orientation++) {
+            BufferedImage oriented = ImageDecoder.orient(image, orientation);
+            boolean sideways = orientation >= 5;
+            assertEquals(sideways ? 2 : 3, oriented.getWidth());
+            assertEquals(sideways ? 3 : 2, oriented.getHeight());
+            int[] corner = corners[orientation - 1];
+            assertEquals(0, oriented.getRGB(corner[0], corner[1]) & 0xFFFFFF);
+        }
+    }
+
+    @Test
+    void storedRegionOrientsIntoTheDisplayedBand() {
+        BufferedImage image = TestImages.randomImage(new Random(5), 7, 5);
+        for (int orientation = 1; orientation <= 8; orientation++) {
+            BufferedImage whole = ImageDecoder.orient(image, orientation);
+            Rectangle band = new Rectangle(0, 2, whole.getWidth(), 2);
+            Rectangle region = ImageDecoder.storedRegion(band, 7, 5, orientation);
+            BufferedImage oriented = ImageDecoder.orient(
+                    image.getSubimage(region.x, region.y, region.width, region.height), orientation);
+            assertEquals(band.width, oriented.getWidth());
+            assertEquals(band.height, oriented.getHeight());
+            for (int y = 0; y < band.height; y++) {
+                for (int x = 0; x < band.width; x++) {
+                    assertEquals(whole.getRGB(x, band.y + y), oriented.getRGB(x, y), "orientation " + orientation);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.demo.util;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static com.example.demo.util.TestImages.randomImage;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ImageEncoderTest {
+
+    @Test
+    void pngRoundTripsExactly() throws IOException {
+        BufferedImage image = randomImage(new Random(9), 64, 48);
+        Path file = Files.createTempFile("encoder", ".png");
+        try {
+            ImageEncoder encoder = new ImageEncoder().setPngCompression(0.5f).setPoolSize(1);
+            for (int n = 0; n < 2; n++) {
+                //the second time round uses the pooled writer
+                long size = encoder.encode(image, "png", file);
+                assertEquals(Files.size(file), size);
+                BufferedImage decoded = ImageIO.read(file.toFile());
+                for (int y = 0; y < image.getHeight(); y++) {
+                    for (int x = 0; x < image.getWidth(); x++) {
+                        assertEquals(image.getRGB(x, y), decoded.getRGB(x, y));
+                    }
+                }
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void jpegSettingsChangeTheOutput() throws IOException {
+        BufferedImage image = randomImage(new Random(9), 64, 48);
+        Path file = Files.createTempFile("encoder", ".jpg");
+        try {
+            long low = new ImageEncoder().setJpegQuality(0.3f).encode(image, "jpg", file);
+            long high = new ImageEncoder().setJpegQuality(0.9f).encode(image, "jpg", file);
+            long full = new ImageEncoder().setJpegQuality(0.9f).setFullChroma(true).setProgressive(true)
+                    .encode(image, "jpeg", file);
+            assertTrue(low < high);
+            assertTrue(high < full);
+            assertEquals(image.getWidth(), ImageIO.read(file.toFile()).getWidth());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void stripOfAnImageEncodesInMemory() throws IOException {
+        BufferedImage image = randomImage(new Random(9), 64, 48);
+        BufferedImage strip = image.getSubimage(9, 0, 12, image.getHeight());
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(
+                new ImageEncoder().encode(strip, "png")));
+        assertEquals(12, decoded.getWidth());
+        for (int y = 0; y < strip.getHeight(); y++) {
+            for (int x = 0; x < strip.getWidth(); x++) {
+                assertEquals(image.getRGB(x + 9, y), decoded.getRGB(x, y));
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.demo.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.example.demo.util.TestImages.randomImage;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IncrementalComposerTest {
+
+    @Test
+    void onlyTheEditedFragmentsMove() throws Exception {
+        Random random = new Random(13);
+        BufferedImage source = randomImage(random, 60, 45);
+        BufferedImage model = randomImage(random, 60, 45);
+        SourceFragments fragments = SourceFragments.breakdown(source, 3, 3);
+        ComposeResult first = ImageUtils.compose(fragments, model, new ComposeOptions());
+
+        //paint over a 4x3 block of fragments
+        for (int x = 12; x < 24; x++) {
+            for (int y = 9; y < 18; y++) {
+                model.setRGB(x, y, 0xFFFFFF);
+            }
+        }
+        Path file = Files.createTempFile("assignment", ".asgn");
+        try {
+            first.getAssignment().write(file);
+            ComposeResult second = ImageUtils.recompose(fragments, model, FragmentAssignment.read(file),
+                    new ComposeOptions());
+
+            int[] before = first.getAssignment().getSources();
+            int[] after = second.getAssignment().getSources();
+            int rows = 45 / 3;
+            int moved = 0;
+            for (int id = 0; id < before.length; id++) {
+                boolean edited = id / rows >= 4 && id / rows < 8 && id % rows >= 3 && id % rows < 6;
+                if (!edited) {
+                    assertEquals(before[id], after[id]);
+                } else if (before[id] != after[id]) {
+                    moved++;
+                }
+            }
+            assertTrue(moved > 0, "the edited fragments should be matched again");
+            //still a permutation of the source fragments
+            int[] used = after.clone();
+            Arrays.sort(used);
+            for (int id = 0; id < used.length; id++) {
+                assertEquals(id, used[id]);
+            }
+            assertArrayEquals(second.getAssignment().getModelFeatures(),
+                    FragmentIndex.computeFeatures(RasterSimilarity.data(model), 60, 45, 3, 3));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.demo.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static com.example.demo.util.TestImages.pixels;
+import static com.example.demo.util.TestImages.randomImage;
+import static com.example.demo.util.TestImages.sortedFragments;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class ParallelComposerTest {
+
+    @Test
+    void seededComposeIsRepeatable() {
+        Random random = new Random(3);
+        BufferedImage source = randomImage(random, 120, 90);
+        BufferedImage model = randomImage(random, 120, 90);
+        ComposeOptions options = new ComposeOptions().setParallelism(4).setSeed(99L);
+
+        int[] first = pixels(ImageUtils.remakeImage(source, model, 3, 3, options));
+        int[] second = pixels(ImageUtils.remakeImage(source, model, 3, 3, options));
+        assertArrayEquals(first, second);
+    }
+
+    @Test
+    void everySourceFragmentIsUsedOnce() {
+        Random random = new Random(5);
+        BufferedImage source = randomImage(random, 60, 60);
+        BufferedImage model = randomImage(random, 60, 60);
+        int[] expected = sortedFragments(source);
+
+        assertArrayEquals(expected, sortedFragments(
+                ImageUtils.remakeImage(source, model, 3, 3, new ComposeOptions().setParallelism(4))));
+        assertArrayEquals(expected, sortedFragments(
+                ImageUtils.remakeImage(source, model, 3, 3, new ComposeOptions().setParallelism(4).setSeed(1L))));
+    }
+
+    @Test
+    void everyColumnIsReportedFinished() {
+        Random random = new Random(11);
+        BufferedImage source = randomImage(random, 61, 45);
+        BufferedImage model = randomImage(random, 61, 45);
+
+        for (ComposeOptions options : new ComposeOptions[]{new ComposeOptions().setParallelism(3),
+                new ComposeOptions().setParallelism(3).setSeed(2L), new ComposeOptions()}) {
+            BufferedImage result = ImageUtils.remakeImage(source, model, 3, 3, options);
+            ComposeMonitor monitor = options.getMonitor();
+            assertSame(result, monitor.getResult());
+            assertEquals(3, monitor.getFragWidth());
+            assertEquals(20, monitor.getFinishedColumns().cardinality());
+            assertEquals(20, monitor.getFinishedColumns().length());
+        }
+    }
+}
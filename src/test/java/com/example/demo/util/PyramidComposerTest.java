@@ -0,0 +1,50 @@
+package com.example.demo.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static com.example.demo.util.TestImages.randomImage;
+import static com.example.demo.util.TestImages.sortedFragments;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+class PyramidComposerTest {
+
+    @Test
+    void everySourceFragmentIsUsedOnce() {
+        Random random = new Random(7);
+        //sizes that leave fragments outside the pyramid on the right and bottom edges
+        BufferedImage source = randomImage(random, 69, 57);
+        BufferedImage model = randomImage(random, 69, 57);
+        int[] expected = sortedFragments(source);
+
+        for (int depth = 0; depth <= 4; depth++) {
+            ComposeOptions options = new ComposeOptions()
+                    .setMatchMode(ComposeOptions.MatchMode.PYRAMID)
+                    .setPyramidDepth(depth);
+            assertArrayEquals(expected, sortedFragments(ImageUtils.remakeImage(source, model, 3, 3, options)));
+        }
+    }
+
+    @Test
+    void reducedFeaturesMatchFeaturesOfTheLargerBlock() {
+        //flat 2x2 fragments, so averaging the children loses nothing to rounding
+        Random random = new Random(11);
+        int width = 16;
+        int height = 12;
+        int[] pixels = new int[width * height];
+        for (int x = 0; x < width; x += 2) {
+            for (int y = 0; y < height; y += 2) {
+                int rgb = random.nextInt() & 0xFCFCFC;
+                for (int k = 0; k < 4; k++) {
+                    pixels[(y + k / 2) * width + x + k % 2] = rgb;
+                }
+            }
+        }
+        byte[] fine = FragmentIndex.computeFeatures(pixels, width, height, 2, 2);
+
+        assertArrayEquals(FragmentIndex.computeFeatures(pixels, width, height, 4, 4),
+                PyramidComposer.reduce(fine, width / 2, height / 2));
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.demo.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static com.example.demo.util.TestImages.randomImage;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RasterSimilarityTest {
+
+    @Test
+    void matchesColorBasedScoreOnSubimages() {
+        Random random = new Random(7);
+        BufferedImage a = randomImage(random, 40, 30, BufferedImage.TYPE_INT_RGB);
+        BufferedImage b = randomImage(random, 40, 30, BufferedImage.TYPE_INT_RGB);
+        for (int size = 1; size <= 5; size++) {
+            for (int n = 0; n < 50; n++) {
+                BufferedImage fragA = a.getSubimage(random.nextInt(40 - size), random.nextInt(30 - size), size, size);
+                BufferedImage fragB = b.getSubimage(random.nextInt(40 - size), random.nextInt(30 - size), size, size);
+                assertEquals(colorScore(fragA, fragB), ImageUtils.getSimilarityScore(fragA, fragB));
+            }
+        }
+    }
+
+    @Test
+    void matchesColorBasedScoreForOtherImageTypes() {
+        Random random = new Random(11);
+        BufferedImage a = randomImage(random, 9, 7, BufferedImage.TYPE_3BYTE_BGR);
+        BufferedImage b = randomImage(random, 9, 7, BufferedImage.TYPE_INT_RGB);
+        assertEquals(colorScore(a, b), ImageUtils.getSimilarityScore(a, b));
+    }
+
+
+    /**
+     * The original getRGB/Color implementation, kept here as the reference
+     */
+    private static int colorScore(BufferedImage src, BufferedImage tar) {
+        int similarityScore = 0;
+        for (int i = src.getWidth() - 1; i >= 0; i -= 2) {
+            for (int j = src.getHeight() - 1; j >= 0; j -= 2) {
+                Color srcColor = new Color(src.getRGB(i, j));
+                Color tarColor = new Color(tar.getRGB(i, j));
+                similarityScore += Math.abs(srcColor.getRed() - tarColor.getRed());
+                similarityScore += Math.abs(srcColor.getGreen() - tarColor.getGreen());
+                similarityScore += Math.abs(srcColor.getBlue() - tarColor.getBlue());
+            }
+        }
+        return similarityScore / (src.getWidth() * src.getHeight());
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.demo.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static com.example.demo.util.TestImages.pixels;
+import static com.example.demo.util.TestImages.randomImage;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ResamplerTest {
+
+    @Test
+    void halvingAveragesEachTwoByTwoBlock() {
+        Random random = new Random(19);
+        BufferedImage image = randomImage(random, 40, 30, BufferedImage.TYPE_INT_RGB);
+        BufferedImage half = Resampler.resample(image, 20, 15);
+
+        for (int x = 0; x < 20; x++) {
+            for (int y = 0; y < 15; y++) {
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    int sum = 0;
+                    for (int k = 0; k < 4; k++) {
+                        sum += (image.getRGB(2 * x + k % 2, 2 * y + k / 2) >> shift) & 0xFF;
+                    }
+                    int expected = (sum + 2) / 4;
+                    int actual = (half.getRGB(x, y) >> shift) & 0xFF;
+                    //fixed-point weights and the rounded intermediate pass can be off by one
+                    assertEquals(expected, actual, 1);
+                }
+            }
+        }
+    }
+
+    @Test
+    void readsByteAndIntRastersTheSame() {
+        Random random = new Random(23);
+        BufferedImage bgr = randomImage(random, 97, 61, BufferedImage.TYPE_3BYTE_BGR);
+        BufferedImage rgb = RasterSimilarity.toPackedRgb(bgr);
+        BufferedImage other = randomImage(random, 97, 61, BufferedImage.TYPE_USHORT_565_RGB);
+
+        for (int[] size : new int[][]{{720, 480}, {40, 25}, {13, 7}}) {
+            assertArrayEquals(pixels(Resampler.resample(rgb, size[0], size[1])),
+                    pixels(Resampler.resample(bgr, size[0], size[1])));
+            BufferedImage scaled = Resampler.resample(other, size[0], size[1]);
+            assertEquals(size[0], scaled.getWidth());
+            assertEquals(size[1], scaled.getHeight());
+        }
+    }
+
+    @Test
+    void flatImagesStayFlat() {
+        BufferedImage image = new BufferedImage(333, 221, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                image.setRGB(x, y, 0x3C8AF1);
+            }
+        }
+        for (int[] size : new int[][]{{100, 60}, {300, 200}, {500, 400}}) {
+            for (int pixel : pixels(Resampler.resample(image, size[0], size[1]))) {
+                assertEquals(0x3C8AF1, pixel & 0xFFFFFF);
+            }
+        }
+    }
+}
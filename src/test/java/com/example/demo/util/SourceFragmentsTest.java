@@ -0,0 +1,124 @@
+package com.example.demo.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static com.example.demo.util.TestImages.pixels;
+import static com.example.demo.util.TestImages.randomImage;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SourceFragmentsTest {
+
+    @Test
+    void roundTripsThroughDisk() throws IOException {
+        Random random = new Random(13);
+        BufferedImage source = new BufferedImage(31, 20, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < source.getWidth(); x++) {
+            for (int y = 0; y < source.getHeight(); y++) {
+                source.setRGB(x, y, random.nextInt());
+            }
+        }
+        SourceFragments fragments = SourceFragments.breakdown(source, 3, 2);
+
+        Path file = Files.createTempFile("fragments", ".frag");
+        try {
+            fragments.write(file);
+            SourceFragments loaded = SourceFragments.read(file);
+            assertEquals(31, loaded.getWidth());
+            assertEquals(20, loaded.getHeight());
+            assertEquals(3, loaded.getFragWidth());
+            assertEquals(2, loaded.getFragHeight());
+            assertArrayEquals(fragments.copyPixels(), loaded.copyPixels());
+            assertArrayEquals(fragments.getFeatures(), loaded.getFeatures());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void mappedFragmentsCopyOutTheSameAsHeapOnes() throws IOException {
+        //a width that isn't a whole number of fragments, so rows don't line up with fragment columns
+        SourceFragments fragments = SourceFragments.breakdown(randomImage(new Random(19), 31, 20), 3, 2);
+
+        Path file = Files.createTempFile("fragments", ".frag");
+        try {
+            fragments.write(file);
+            SourceFragments mapped = SourceFragments.read(file);
+            int count = (31 / 3) * (20 / 2);
+            for (int id = 0; id < count; id++) {
+                int[] fromHeap = new int[31 * 2 + 5];
+                int[] fromFile = new int[31 * 2 + 5];
+                fragments.copyFragment(id, fromHeap, 5);
+                mapped.copyFragment(id, fromFile, 5);
+                assertArrayEquals(fromHeap, fromFile, "fragment " + id);
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void composesTheSameFromTheMappedFile() throws IOException {
+        Random random = new Random(17);
+        BufferedImage source = randomImage(random, 48, 36);
+        BufferedImage model = randomImage(random, 48, 36);
+        SourceFragments fragments = SourceFragments.breakdown(source, 4, 3);
+
+        Path file = Files.createTempFile("fragments", ".frag");
+        try {
+            fragments.write(file);
+            SourceFragments mapped = SourceFragments.read(file);
+            assertTrue(mapped.isMapped());
+            for (ComposeOptions.MatchMode mode : ComposeOptions.MatchMode.values()) {
+                ComposeOptions options = new ComposeOptions().setMatchMode(mode).setParallelism(1);
+                assertArrayEquals(pixels(ImageUtils.remakeImage(fragments, model, options)),
+                        pixels(ImageUtils.remakeImage(mapped, model, options)));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void writersOfTheSameFileDontMixTheirOutput() throws Exception {
+        Random random = new Random(19);
+        SourceFragments fragments = SourceFragments.breakdown(randomImage(random, 200, 150), 4, 3);
+        Path dir = Files.createTempDirectory("fragments");
+        Path file = dir.resolve("source.frag");
+        ExecutorService writers = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> writes = new ArrayList<>();
+            for (int n = 0; n < 8; n++) {
+                writes.add(writers.submit(() -> {
+                    fragments.write(file);
+                    return null;
+                }));
+            }
+            for (Future<?> write : writes) {
+                write.get();
+            }
+            assertArrayEquals(fragments.copyPixels(), SourceFragments.read(file).copyPixels());
+            //no temporary files left behind
+            try (Stream<Path> files = Files.list(dir)) {
+                assertEquals(1, files.count());
+            }
+        } finally {
+            writers.shutdown();
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.demo.util;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Images and image checks shared by the compose tests
+ */
+final class TestImages {
+
+    private TestImages() {
+    }
+
+    static BufferedImage randomImage(Random random, int width, int height) {
+        return randomImage(random, width, height, BufferedImage.TYPE_INT_RGB);
+    }
+
+    static BufferedImage randomImage(Random random, int width, int height, int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        return image;
+    }
+
+    static int[] pixels(BufferedImage image) {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+
+    /**
+     * Top-left pixel of every 3x3 fragment, sorted; random images make these unique per fragment, so two images
+     * made of the same fragments give the same array
+     */
+    static int[] sortedFragments(BufferedImage image) {
+        int[] corners = new int[(image.getWidth() / 3) * (image.getHeight() / 3)];
+        int n = 0;
+        for (int x = 0; x + 3 <= image.getWidth(); x += 3) {
+            for (int y = 0; y + 3 <= image.getHeight(); y += 3) {
+                corners[n++] = image.getRGB(x, y) & 0xFFFFFF;
+            }
+        }
+        Arrays.sort(corners);
+        return corners;
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.demo.util;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static com.example.demo.util.TestImages.randomImage;
+import static com.example.demo.util.TestImages.sortedFragments;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TiledComposerTest {
+
+    @Test
+    void bandsTogetherUseEverySourceFragmentOnce() throws IOException {
+        Random random = new Random(17);
+        BufferedImage source = randomImage(random, 60, 45);
+        Path dir = Files.createTempDirectory("tiled");
+        File modelFile = dir.resolve("model.png").toFile();
+        File sourceFile = dir.resolve("source.png").toFile();
+        try {
+            ImageIO.write(randomImage(random, 60, 45), "png", modelFile);
+            ImageIO.write(source, "png", sourceFile);
+            //small enough to force several bands
+            TiledComposer composer = new TiledComposer(3, 3, 60 * 32 * 6);
+            assertEquals(6, composer.bandHeight(60, 45, 60, 45));
+
+            ComposeOptions options = new ComposeOptions();
+            try (RasterFile result = composer.compose(modelFile, sourceFile, dir, options)) {
+                assertEquals(60, result.getWidth());
+                assertEquals(45, result.getHeight());
+                assertEquals(options.getMonitor().getTotal(), options.getMonitor().getCompleted());
+                BufferedImage image = new BufferedImage(60, 45, BufferedImage.TYPE_INT_RGB);
+                result.copyData(image.getRaster());
+                assertArrayEquals(sortedFragments(source), sortedFragments(image));
+            }
+        } finally {
+            Files.deleteIfExists(modelFile.toPath());
+            Files.deleteIfExists(sourceFile.toPath());
+            Files.delete(dir);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.demo.web;
+
+import com.example.demo.property.ComposeProperties;
+import com.example.demo.service.ComposeJob;
+import com.example.demo.service.FileStorageService;
+import com.example.demo.service.PipelineMetrics;
+import com.example.demo.util.ComposeMonitor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ComposeEventStreamTest {
+
+    private ComposeEventStream events;
+
+    @AfterEach
+    void shutdown() {
+        if (events != null) {
+            events.shutdown();
+        }
+    }
+
+    @Test
+    void streamsTimeOut() {
+        ComposeProperties properties = properties();
+        properties.setStreamTimeoutMinutes(5);
+        events = new ComposeEventStream(mock(FileStorageService.class), properties, mock(PipelineMetrics.class));
+
+        assertEquals(TimeUnit.MINUTES.toMillis(5), events.stream(job(new AtomicBoolean(true))).getTimeout());
+    }
+
+    @Test
+    void finishedColumnsAreSentAsStripsBeforeTheJobIsDone() throws InterruptedException {
+        FileStorageService fileStorageService = mock(FileStorageService.class);
+        when(fileStorageService.encodeToBytes(any(), anyString())).thenReturn(new byte[]{1, 2, 3});
+        events = new ComposeEventStream(fileStorageService, properties(), mock(PipelineMetrics.class));
+        ComposeJob job = job(new AtomicBoolean(true));
+        BitSet finished = new BitSet();
+        finished.set(0, 2);
+        finished.set(3, 5);
+        when(job.getMonitor().getResult()).thenReturn(new BufferedImage(15, 10, BufferedImage.TYPE_INT_RGB));
+        when(job.getMonitor().getFragWidth()).thenReturn(3);
+        when(job.getMonitor().getFinishedColumns()).thenReturn(finished);
+        Client client = new Client(null);
+
+        events.stream(job, client);
+
+        assertTrue(client.completed.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("strip", "strip", "done"), client.events());
+    }
+
+    @Test
+    void stalledClientDoesntHoldUpTheOthers() throws InterruptedException {
+        events = new ComposeEventStream(mock(FileStorageService.class), properties(), mock(PipelineMetrics.class));
+        CountDownLatch unstall = new CountDownLatch(1);
+        Client stalled = new Client(unstall);
+        Client other = new Client(null);
+
+        events.stream(job(new AtomicBoolean(true)), stalled);
+        assertTrue(stalled.sending.await(10, TimeUnit.SECONDS));
+        events.stream(job(new AtomicBoolean(true)), other);
+
+        //one scheduler thread, which the stalled client would be blocking
+        assertTrue(other.completed.await(10, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("done"), other.events());
+        unstall.countDown();
+        assertTrue(stalled.completed.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void busyClientSkipsUpdatesRatherThanQueueingThem() throws InterruptedException {
+        events = new ComposeEventStream(mock(FileStorageService.class), properties(), mock(PipelineMetrics.class));
+        AtomicBoolean finished = new AtomicBoolean();
+        ComposeJob job = job(finished);
+        //progress on every update, so each one has something to send
+        AtomicInteger completed = new AtomicInteger();
+        when(job.getMonitor().getCompleted()).then(call -> completed.incrementAndGet());
+        CountDownLatch unstall = new CountDownLatch(1);
+        Client client = new Client(unstall);
+
+        events.stream(job, client);
+        assertTrue(client.sending.await(10, TimeUnit.SECONDS));
+        //a hundred or so updates come due while the first is stuck
+        Thread.sleep(1000);
+        assertEquals(1, client.sends.get());
+        unstall.countDown();
+        finished.set(true);
+
+        assertTrue(client.completed.await(10, TimeUnit.SECONDS));
+        assertEquals(1, client.mostAtOnce.get());
+        List<String> sent = client.events();
+        assertEquals("done", sent.get(sent.size() - 1));
+        assertTrue(sent.size() < 10, "sent " + sent.size() + " updates");
+    }
+
+    private static ComposeProperties properties() {
+        ComposeProperties properties = new ComposeProperties();
+        properties.setStreamThreads(1);
+        properties.setStreamIntervalMillis(10);
+        return properties;
+    }
+
+    private static ComposeJob job(AtomicBoolean finished) {
+        ComposeJob job = mock(ComposeJob.class);
+        ComposeMonitor monitor = mock(ComposeMonitor.class);
+        when(job.getId()).thenReturn("job");
+        when(job.getMonitor()).thenReturn(monitor);
+        when(job.isFinished()).then(call -> finished.get());
+        when(job.getStatus()).then(call -> finished.get() ? ComposeJob.Status.DONE : ComposeJob.Status.RUNNING);
+        return job;
+    }
+
+    /**
+     * A client that records the events sent to it, and can be made to take its time over the first
+     */
+    static class Client extends SseEmitter {
+
+        private static final Pattern EVENT_NAME = Pattern.compile("event:(\\w+)");
+
+        private final CountDownLatch unstall;
+        private final List<String> events = new ArrayList<>();
+        private final AtomicInteger sends = new AtomicInteger();
+        private final AtomicInteger inSend = new AtomicInteger();
+        private final AtomicInteger mostAtOnce = new AtomicInteger();
+        private final CountDownLatch sending = new CountDownLatch(1);
+        private final CountDownLatch completed = new CountDownLatch(1);
+
+        Client(CountDownLatch unstall) {
+            this.unstall = unstall;
+        }
+
+        @Override
+        public void send(SseEventBuilder builder) throws IOException {
+            int now = inSend.incrementAndGet();
+            mostAtOnce.accumulateAndGet(now, Math::max);
+            try {
+                sends.incrementAndGet();
+                sending.countDown();
+                if (unstall != null && !unstall.await(10, TimeUnit.SECONDS)) {
+                    throw new IOException("client never came back");
+                }
+                Matcher name = EVENT_NAME.matcher(builder.build().iterator().next().getData().toString());
+                synchronized (events) {
+                    events.add(name.find() ? name.group(1) : "?");
+                }
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            } finally {
+                inSend.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void complete() {
+            completed.countDown();
+        }
+
+        @Override
+        public void completeWithError(Throwable ex) {
+            completed.countDown();
+        }
+
+        List<String> events() {
+            synchronized (events) {
+                return new ArrayList<>(events);
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.demo.web;
+
+import com.example.demo.model.ImageFileRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import static org.mockito.Mockito.mock;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+class FileControllerTest {
+
+    private final MockMvc mvc = MockMvcBuilders.standaloneSetup(new FileController(mock(ImageFileRepository.class)))
+            .build();
+
+    @Test
+    void malformedCreatedCursorIsABadRequest() throws Exception {
+        for (String cursor : new String[]{"123", "abc:1", "1:", "1:2:3", ":"}) {
+            mvc.perform(get("/list").param("sort", "created").param("after", cursor))
+                    .andExpect(status().isBadRequest());
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.example.demo.web;
+
+import com.example.demo.property.FileStorageProperties;
+import com.example.demo.service.PipelineMetrics;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+class FileTransferTest {
+
+    @TempDir
+    Path dir;
+
+    private final FileTransfer transfer = new FileTransfer(new FileStorageProperties(), mock(PipelineMetrics.class));
+
+    @Test
+    void tomcatSendsTheFileItselfWhenItCan() throws IOException {
+        Path file = file(1000);
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/downloadFile/a.bin");
+        request.setAttribute("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+        request.addHeader(HttpHeaders.RANGE, "bytes=100-199");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        transfer.send(file, "a.bin", "abc", "application/octet-stream", request, response);
+
+        assertEquals(206, response.getStatus());
+        assertEquals(0, response.getContentAsByteArray().length);
+        assertEquals(file.toAbsolutePath().toString(), request.getAttribute("org.apache.tomcat.sendfile.filename"));
+        assertEquals(100L, request.getAttribute("org.apache.tomcat.sendfile.start"));
+        assertEquals(200L, request.getAttribute("org.apache.tomcat.sendfile.end"));
+    }
+
+    @Test
+    void rangeIsCopiedWithoutSendfile() throws IOException {
+        Path file = file(1000);
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/downloadFile/a.bin");
+        request.addHeader(HttpHeaders.RANGE, "bytes=100-199");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        transfer.send(file, "a.bin", "abc", "application/octet-stream", request, response);
+
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 100-199/1000", response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertArrayEquals(Arrays.copyOfRange(Files.readAllBytes(file), 100, 200), response.getContentAsByteArray());
+        assertNull(request.getAttribute("org.apache.tomcat.sendfile.filename"));
+    }
+
+    @Test
+    void matchingEtagIsNotModified() throws IOException {
+        Path file = file(10);
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/downloadFile/a.bin");
+        request.addHeader(HttpHeaders.IF_NONE_MATCH, "\"abc\"");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        transfer.send(file, "a.bin", "abc", "application/octet-stream", request, response);
+
+        assertEquals(304, response.getStatus());
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    void nonBlockingCopyOnlyWritesWhileTheClientIsReady() throws IOException {
+        Path file = file(200 * 1024);
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/downloadFile/a.bin");
+        request.setAsyncSupported(true);
+        SlowClient client = new SlowClient();
+        HttpServletResponse response = client.response();
+
+        nonBlocking().send(file, "a.bin", "abc", "application/octet-stream", request, response);
+
+        //nothing is written on the request thread, it's over to the container
+        assertTrue(request.isAsyncStarted());
+        assertEquals(0, client.written.size());
+        client.canTake(1);
+        assertEquals(64 * 1024, client.written.size());
+        assertTrue(request.isAsyncStarted());
+        client.canTake(10);
+        assertArrayEquals(Files.readAllBytes(file), client.written.toByteArray());
+        assertFalse(request.isAsyncStarted());
+    }
+
+    @Test
+    void nonBlockingCopySendsJustTheRange() throws IOException {
+        Path file = file(1000);
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/downloadFile/a.bin");
+        request.setAsyncSupported(true);
+        request.addHeader(HttpHeaders.RANGE, "bytes=100-199");
+        SlowClient client = new SlowClient();
+
+        nonBlocking().send(file, "a.bin", "abc", "application/octet-stream", request, client.response());
+        client.canTake(10);
+
+        assertArrayEquals(Arrays.copyOfRange(Files.readAllBytes(file), 100, 200), client.written.toByteArray());
+        assertFalse(request.isAsyncStarted());
+    }
+
+    @Test
+    void nonBlockingCopyStopsWhenItTimesOut() throws IOException {
+        Path file = file(200 * 1024);
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/downloadFile/a.bin");
+        request.setAsyncSupported(true);
+        SlowClient client = new SlowClient();
+
+        nonBlocking().send(file, "a.bin", "abc", "application/octet-stream", request, client.response());
+        client.canTake(1);
+        MockAsyncContext async = (MockAsyncContext) request.getAsyncContext();
+        for (AsyncListener listener : async.getListeners()) {
+            listener.onTimeout(new AsyncEvent(async));
+        }
+        client.canTake(10);
+
+        assertFalse(request.isAsyncStarted());
+        assertEquals(64 * 1024, client.written.size());
+    }
+
+    @Test
+    void sendfileIsStillUsedInNonBlockingMode() throws IOException {
+        Path file = file(1000);
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/downloadFile/a.bin");
+        request.setAsyncSupported(true);
+        request.setAttribute("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+
+        nonBlocking().send(file, "a.bin", "abc", "application/octet-stream", request, new MockHttpServletResponse());
+
+        assertFalse(request.isAsyncStarted());
+        assertEquals(file.toAbsolutePath().toString(), request.getAttribute("org.apache.tomcat.sendfile.filename"));
+    }
+
+    private static FileTransfer nonBlocking() {
+        FileStorageProperties properties = new FileStorageProperties();
+        properties.setIoMode(FileStorageProperties.IoMode.NON_BLOCKING);
+        return new FileTransfer(properties, mock(PipelineMetrics.class));
+    }
+
+    /**
+     * A client that only takes as many writes as it's told it can, then waits to be called back
+     */
+    static class SlowClient extends ServletOutputStream {
+
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private WriteListener listener;
+        private int writes;
+
+        HttpServletResponse response() {
+            return new HttpServletResponseWrapper(new MockHttpServletResponse()) {
+                @Override
+                public ServletOutputStream getOutputStream() {
+                    return SlowClient.this;
+                }
+            };
+        }
+
+        void canTake(int writes) throws IOException {
+            this.writes = writes;
+            listener.onWritePossible();
+        }
+
+        @Override
+        public boolean isReady() {
+            return writes > 0;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (writes <= 0) {
+                throw new IllegalStateException("wrote while not ready");
+            }
+            writes--;
+            written.write(b, off, len);
+        }
+    }
+
+    private Path file(int size) throws IOException {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) i;
+        }
+        return Files.write(dir.resolve("a.bin"), bytes);
+    }
+}
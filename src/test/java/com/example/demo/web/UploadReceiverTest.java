@@ -0,0 +1,246 @@
+package com.example.demo.web;
+
+import com.example.demo.exception.FileStorageException;
+import com.example.demo.exception.ReservedFileNameException;
+import com.example.demo.model.ImageFileRepository;
+import com.example.demo.property.EncodeProperties;
+import com.example.demo.property.FileStorageProperties;
+import com.example.demo.service.DecodedImageCache;
+import com.example.demo.service.FileStorageService;
+import com.example.demo.service.PipelineMetrics;
+import com.example.demo.service.StoredFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.StandardServletAsyncWebRequest;
+import org.springframework.web.context.request.async.WebAsyncManager;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+class UploadReceiverTest {
+
+    private static final Function<String, String> DOWNLOAD_URI = name -> "/downloadFile/" + name;
+
+    @TempDir
+    Path dir;
+
+    private FileStorageService fileStorageService;
+
+    @AfterEach
+    void shutdown() {
+        if (fileStorageService != null) {
+            fileStorageService.shutdown();
+        }
+    }
+
+    @Test
+    void blockingModeStoresTheBodyBeforeReturning() throws IOException {
+        byte[] body = body(100_000);
+        MockHttpServletRequest request = new MockHttpServletRequest("PUT", "/uploadStream/a.bin");
+        request.setContent(body);
+
+        DeferredResult<StoredFile> result = receiver(FileStorageProperties.IoMode.BLOCKING)
+                .receive(request, "a.bin", DOWNLOAD_URI, Function.identity());
+
+        assertFalse(request.isAsyncStarted());
+        assertEquals(body.length, ((StoredFile) result.getResult()).getSize());
+        assertArrayEquals(body, Files.readAllBytes(dir.resolve("uploads").resolve("a.bin")));
+    }
+
+    @Test
+    void nonBlockingModeStoresTheBodyAsItArrives() throws IOException {
+        byte[] body = body(200_000);
+        ArrivingBody arriving = new ArrivingBody();
+        HttpServletRequest request = request(arriving);
+
+        DeferredResult<StoredFile> result = start(receiver(FileStorageProperties.IoMode.NON_BLOCKING)
+                .receive(request, "a.bin", DOWNLOAD_URI, Function.identity()), request);
+        arriving.arrive(Arrays.copyOfRange(body, 0, 70_000));
+        arriving.arrive(Arrays.copyOfRange(body, 70_000, 150_000));
+        assertFalse(result.hasResult());
+        arriving.arrive(Arrays.copyOfRange(body, 150_000, body.length));
+        arriving.end();
+
+        assertEquals(body.length, ((StoredFile) result.getResult()).getSize());
+        assertArrayEquals(body, Files.readAllBytes(dir.resolve("uploads").resolve("a.bin")));
+        assertEquals(0, partFiles());
+    }
+
+    @Test
+    void nonBlockingModeGivesUpOverTheLimit() throws IOException {
+        ArrivingBody arriving = new ArrivingBody();
+        HttpServletRequest request = request(arriving);
+
+        DeferredResult<StoredFile> result = start(receiver(FileStorageProperties.IoMode.NON_BLOCKING)
+                .receive(request, "a.bin", DOWNLOAD_URI, Function.identity()), request);
+        arriving.arrive(new byte[1024 * 1024]);
+        arriving.arrive(new byte[1]);
+
+        assertTrue(result.getResult() instanceof FileStorageException);
+        assertEquals(0, partFiles());
+    }
+
+    @Test
+    void nonBlockingModeChecksTheNameBeforeReading() {
+        ArrivingBody arriving = new ArrivingBody();
+        HttpServletRequest request = request(arriving);
+
+        assertThrows(ReservedFileNameException.class, () -> receiver(FileStorageProperties.IoMode.NON_BLOCKING)
+                .receive(request, "a.jpg.preview-160.jpg", DOWNLOAD_URI, Function.identity()));
+    }
+
+    @Test
+    void abandonedUploadLeavesNothingBehind() throws IOException {
+        ArrivingBody arriving = new ArrivingBody();
+        HttpServletRequest request = request(arriving);
+
+        DeferredResult<StoredFile> result = start(receiver(FileStorageProperties.IoMode.NON_BLOCKING)
+                .receive(request, "a.bin", DOWNLOAD_URI, Function.identity()), request);
+        arriving.arrive(new byte[1000]);
+        assertEquals(1, partFiles());
+        //the client stops sending and the request times out
+        MockAsyncContext async = (MockAsyncContext) request.getAsyncContext();
+        for (AsyncListener listener : async.getListeners()) {
+            listener.onTimeout(new AsyncEvent(async));
+        }
+        async.complete();
+
+        assertTrue(result.isSetOrExpired());
+        assertEquals(0, partFiles());
+    }
+
+    private UploadReceiver receiver(FileStorageProperties.IoMode mode) {
+        FileStorageProperties properties = new FileStorageProperties();
+        properties.setUploadDir(dir.resolve("uploads").toString());
+        properties.setBlobDir(dir.resolve("blobs").toString());
+        properties.setStreamUploadMaxMegabytes(1);
+        properties.setIoMode(mode);
+        fileStorageService = new FileStorageService(properties, new EncodeProperties(),
+                mock(DecodedImageCache.class), mock(ImageFileRepository.class), mock(PipelineMetrics.class));
+        return new UploadReceiver(fileStorageService, properties);
+    }
+
+    private static HttpServletRequest request(ArrivingBody body) {
+        MockHttpServletRequest request = new MockHttpServletRequest("PUT", "/uploadStream/a.bin");
+        request.setAsyncSupported(true);
+        return new HttpServletRequestWrapper(request) {
+            @Override
+            public ServletInputStream getInputStream() {
+                return body;
+            }
+        };
+    }
+
+    /**
+     * What Spring does with a DeferredResult once the handler returns it
+     */
+    private static <T> DeferredResult<T> start(DeferredResult<T> result, HttpServletRequest request) {
+        WebAsyncManager asyncManager = WebAsyncUtils.getAsyncManager(request);
+        asyncManager.setAsyncWebRequest(new StandardServletAsyncWebRequest(request, new MockHttpServletResponse()));
+        try {
+            asyncManager.startDeferredResultProcessing(result);
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+        return result;
+    }
+
+    private static byte[] body(int size) {
+        byte[] body = new byte[size];
+        new Random(3).nextBytes(body);
+        return body;
+    }
+
+    private long partFiles() throws IOException {
+        try (Stream<Path> files = Files.walk(dir.resolve("blobs"))) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".part")).count();
+        }
+    }
+
+    /**
+     * A request body that turns up a piece at a time, calling its listener as each one does
+     */
+    static class ArrivingBody extends ServletInputStream {
+
+        private final Deque<byte[]> arrived = new ArrayDeque<>();
+        private int offset;
+        private boolean ended;
+        private ReadListener listener;
+
+        void arrive(byte[] piece) throws IOException {
+            arrived.add(piece);
+            listener.onDataAvailable();
+        }
+
+        void end() throws IOException {
+            ended = true;
+            listener.onAllDataRead();
+        }
+
+        @Override
+        public boolean isFinished() {
+            return ended && arrived.isEmpty();
+        }
+
+        @Override
+        public boolean isReady() {
+            return !arrived.isEmpty() || ended;
+        }
+
+        @Override
+        public void setReadListener(ReadListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public int read() {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (arrived.isEmpty()) {
+                if (ended) {
+                    return -1;
+                }
+                throw new IllegalStateException("read while not ready");
+            }
+            byte[] piece = arrived.peek();
+            int read = Math.min(len, piece.length - offset);
+            System.arraycopy(piece, offset, b, off, read);
+            offset += read;
+            if (offset == piece.length) {
+                arrived.remove();
+                offset = 0;
+            }
+            return read;
+        }
+    }
+}